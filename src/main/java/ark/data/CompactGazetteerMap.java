@@ -0,0 +1,585 @@
+package ark.data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import ark.util.Pair;
+
+/**
+ * CompactGazetteerMap is a read-only map from (cleaned) gazetteer values
+ * to weighted IDs that is stored in a binary file and memory-mapped, so
+ * that a large gazetteer loads instantly and multiple processes on the
+ * same machine share the same pages in the operating system's page
+ * cache.  Gazetteer uses this map in place of a HashMap when its source
+ * file is a compiled gazetteer (see Gazetteer.compile).
+ *
+ * The file contains:
+ *
+ *  - A header with the name of the clean function applied to the values,
+ *  and the numbers of values, distinct IDs, and (value, ID) pairs
+ *  - A table of the distinct ID strings
+ *  - For each value, the start of its range in packed arrays of ID
+ *  indices and weights
+ *  - The values, sorted by their UTF-8 bytes and front-coded in blocks
+ *  (each block starts with a full value, and each later value in the
+ *  block only stores the suffix that differs from the previous value),
+ *  with a table of block offsets for binary search
+ *
+ * Values are looked up by binary search over the first values of the
+ * blocks followed by a scan of a single block.  The weighted IDs of a 
+ * value are returned as a read-only list view over the mapped arrays, and
+ * each pair is only decoded when it's requested (with recently decoded 
+ * ID strings kept in a small cache).  The mapped buffer is only read with 
+ * absolute gets, so the map can be shared by multiple threads.  Files are 
+ * limited to 2GB, since they're mapped as a single buffer.
+ * 
+ * Iterating over the map (for example, by Gazetteer.min and max, or to 
+ * build Gazetteer's edit distance, prefix, and Aho-Corasick indices) 
+ * decodes a String for each value, and those indices hold their values on
+ * the heap, so they give up some of the memory that mapping the file saves.
+ * Values can be looked up by their sorted index (see getKey and 
+ * getWeightedIds) so that Gazetteer doesn't need to keep its own copy of 
+ * them.
+ *
+ */
+public class CompactGazetteerMap extends AbstractMap<String, List<Pair<String, Double>>> {
+	private static final int MAGIC = 0x47415A43; // "GAZC"
+	private static final int VERSION = 1;
+	private static final int BLOCK_SIZE = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int ID_CACHE_SIZE = 4096;
+
+	private MappedByteBuffer buffer;
+	private String cleanFnName;
+	private int valueCount;
+	private int idCount;
+	private int blockCount;
+
+	private int idOffsetsStart;
+	private int idBytesStart;
+	private int refStartsStart;
+	private int refIdsStart;
+	private int refWeightsStart;
+	private int blockOffsetsStart;
+	private int valueBytesStart;
+	
+	private DecodedId[] idCache; // Recently decoded IDs, indexed by ID index modulo the cache size
+	private ThreadLocal<byte[]> valueBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[64];
+		}
+	}; // Reused buffers for decoding values during lookups
+	
+	private static class DecodedId {
+		private final int index; // Final so that entries are safely shared between threads
+		private final String id;
+		
+		public DecodedId(int index, String id) {
+			this.index = index;
+			this.id = id;
+		}
+	}
+
+	public CompactGazetteerMap(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Compact gazetteer file " + file.getPath() + " is too large to map.");
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			randomAccessFile.close();
+		}
+
+		if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION)
+			throw new IOException("File " + file.getPath() + " is not a compact gazetteer.");
+
+		int cleanFnNameLength = this.buffer.getInt(8);
+		byte[] cleanFnNameBytes = new byte[cleanFnNameLength];
+		for (int i = 0; i < cleanFnNameLength; i++)
+			cleanFnNameBytes[i] = this.buffer.get(12 + i);
+		this.cleanFnName = new String(cleanFnNameBytes, UTF8);
+
+		int position = 12 + cleanFnNameLength;
+		this.valueCount = this.buffer.getInt(position);
+		this.idCount = this.buffer.getInt(position + 4);
+		int refCount = this.buffer.getInt(position + 8);
+		this.blockCount = (this.valueCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		position += 12;
+
+		this.idOffsetsStart = position;
+		this.idBytesStart = this.idOffsetsStart + 4*(this.idCount + 1);
+		this.refStartsStart = this.idBytesStart + this.buffer.getInt(this.idOffsetsStart + 4*this.idCount);
+		this.refIdsStart = this.refStartsStart + 4*(this.valueCount + 1);
+		this.refWeightsStart = this.refIdsStart + 4*refCount;
+		this.blockOffsetsStart = this.refWeightsStart + 8*refCount;
+		this.valueBytesStart = this.blockOffsetsStart + 4*(this.blockCount + 1);
+		this.idCache = new DecodedId[Math.max(1, Math.min(this.idCount, ID_CACHE_SIZE))];
+	}
+
+	/**
+	 * @return the name of the clean function that was applied to the
+	 * values when the file was written
+	 */
+	public String getCleanFnName() {
+		return this.cleanFnName;
+	}
+
+	@Override
+	public int size() {
+		return this.valueCount;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return (key instanceof String) && indexOf((String)key) >= 0;
+	}
+
+	@Override
+	public List<Pair<String, Double>> get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		int index = indexOf((String)key);
+		return (index < 0) ? null : getWeightedIds(index);
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				final Iterator<Entry<String, List<Pair<String, Double>>>> entries = entrySet().iterator();
+				return new Iterator<String>() {
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					public String next() {
+						return entries.next().getKey();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public int size() {
+				return valueCount;
+			}
+		};
+	}
+
+	@Override
+	public Set<Entry<String, List<Pair<String, Double>>>> entrySet() {
+		return new AbstractSet<Entry<String, List<Pair<String, Double>>>>() {
+			@Override
+			public Iterator<Entry<String, List<Pair<String, Double>>>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return valueCount;
+			}
+		};
+	}
+
+	/**
+	 * Iterates over the values in sorted order, decoding each block
+	 * sequentially.  Entries decode their IDs when getValue is called.
+	 */
+	private class EntryIterator implements Iterator<Entry<String, List<Pair<String, Double>>>> {
+		private int index = 0;
+		private int position;
+		private byte[] value = new byte[64]; // Previous value, for decoding front-coded suffixes
+		private int[] next = new int[1];
+
+		public boolean hasNext() {
+			return this.index < valueCount;
+		}
+
+		public Entry<String, List<Pair<String, Double>>> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			int prefixLength = 0;
+			if (this.index % BLOCK_SIZE == 0) {
+				this.position = valueBytesStart + buffer.getInt(blockOffsetsStart + 4*(this.index / BLOCK_SIZE));
+			} else {
+				prefixLength = readVarInt(this.position, this.next);
+				this.position = this.next[0];
+			}
+			int suffixLength = readVarInt(this.position, this.next);
+			this.position = this.next[0];
+
+			if (this.value.length < prefixLength + suffixLength)
+				this.value = Arrays.copyOf(this.value, 2*(prefixLength + suffixLength));
+			for (int i = 0; i < suffixLength; i++)
+				this.value[prefixLength + i] = buffer.get(this.position + i);
+			this.position += suffixLength;
+
+			final int entryIndex = this.index;
+			final String key = new String(this.value, 0, prefixLength + suffixLength, UTF8);
+			this.index++;
+
+			return new Entry<String, List<Pair<String, Double>>>() {
+				public String getKey() {
+					return key;
+				}
+
+				public List<Pair<String, Double>> getValue() {
+					return getWeightedIds(entryIndex);
+				}
+
+				public List<Pair<String, Double>> setValue(List<Pair<String, Double>> value) {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the index of the key in the sorted values, or -1 if the map
+	 * doesn't contain the key
+	 */
+	private int indexOf(String key) {
+		if (this.valueCount == 0)
+			return -1;
+
+		byte[] keyBytes = key.getBytes(UTF8);
+		int[] next = new int[1];
+
+		// Find the last block whose first value is at most the key
+		int low = 0;
+		int high = this.blockCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			int position = this.valueBytesStart + this.buffer.getInt(this.blockOffsetsStart + 4*mid);
+			int length = readVarInt(position, next);
+			if (compare(keyBytes, next[0], length) >= 0)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+
+		// Scan the block
+		byte[] value = this.valueBuffers.get();
+		int position = this.valueBytesStart + this.buffer.getInt(this.blockOffsetsStart + 4*low);
+		int blockEnd = Math.min(this.valueCount, (low + 1)*BLOCK_SIZE);
+		for (int index = low*BLOCK_SIZE; index < blockEnd; index++) {
+			int prefixLength = 0;
+			if (index % BLOCK_SIZE != 0) {
+				prefixLength = readVarInt(position, next);
+				position = next[0];
+			}
+			int suffixLength = readVarInt(position, next);
+			position = next[0];
+
+			if (value.length < prefixLength + suffixLength) {
+				value = Arrays.copyOf(value, 2*(prefixLength + suffixLength));
+				this.valueBuffers.set(value);
+			}
+			for (int i = 0; i < suffixLength; i++)
+				value[prefixLength + i] = this.buffer.get(position + i);
+			position += suffixLength;
+
+			int comparison = compareBytes(keyBytes, keyBytes.length, value, prefixLength + suffixLength);
+			if (comparison == 0)
+				return index;
+			else if (comparison < 0)
+				return -1;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param index
+	 * @return the value at the index in the sorted values (which is also 
+	 * the order of iteration)
+	 */
+	public String getKey(int index) {
+		int position = this.valueBytesStart + this.buffer.getInt(this.blockOffsetsStart + 4*(index / BLOCK_SIZE));
+		int[] next = new int[1];
+		byte[] value = this.valueBuffers.get();
+		int length = 0;
+		for (int i = index - index % BLOCK_SIZE; i <= index; i++) {
+			int prefixLength = 0;
+			if (i % BLOCK_SIZE != 0) {
+				prefixLength = readVarInt(position, next);
+				position = next[0];
+			}
+			int suffixLength = readVarInt(position, next);
+			position = next[0];
+			
+			if (value.length < prefixLength + suffixLength) {
+				value = Arrays.copyOf(value, 2*(prefixLength + suffixLength));
+				this.valueBuffers.set(value);
+			}
+			for (int j = 0; j < suffixLength; j++)
+				value[prefixLength + j] = this.buffer.get(position + j);
+			position += suffixLength;
+			length = prefixLength + suffixLength;
+		}
+		
+		return new String(value, 0, length, UTF8);
+	}
+	
+	/**
+	 * @param index
+	 * @return a read-only view of the weighted IDs of the value at the 
+	 * index in the sorted values
+	 */
+	public List<Pair<String, Double>> getWeightedIds(int index) {
+		return new WeightedIds(this.buffer.getInt(this.refStartsStart + 4*index), this.buffer.getInt(this.refStartsStart + 4*(index + 1)));
+	}
+	
+	private class WeightedIds extends AbstractList<Pair<String, Double>> implements RandomAccess {
+		private int start;
+		private int end;
+		
+		public WeightedIds(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public Pair<String, Double> get(int i) {
+			if (i < 0 || i >= this.end - this.start)
+				throw new IndexOutOfBoundsException();
+			int ref = this.start + i;
+			return new Pair<String, Double>(getId(buffer.getInt(refIdsStart + 4*ref)), buffer.getDouble(refWeightsStart + 8*ref));
+		}
+		
+		@Override
+		public int size() {
+			return this.end - this.start;
+		}
+	}
+
+	private String getId(int idIndex) {
+		DecodedId decodedId = this.idCache[idIndex % this.idCache.length];
+		if (decodedId != null && decodedId.index == idIndex)
+			return decodedId.id;
+		
+		int start = this.buffer.getInt(this.idOffsetsStart + 4*idIndex);
+		int end = this.buffer.getInt(this.idOffsetsStart + 4*(idIndex + 1));
+		byte[] id = new byte[end - start];
+		for (int i = 0; i < id.length; i++)
+			id[i] = this.buffer.get(this.idBytesStart + start + i);
+		
+		decodedId = new DecodedId(idIndex, new String(id, UTF8));
+		this.idCache[idIndex % this.idCache.length] = decodedId;
+		return decodedId.id;
+	}
+
+	/**
+	 * Compares key bytes to length bytes of the buffer at position
+	 */
+	private int compare(byte[] keyBytes, int position, int length) {
+		int n = Math.min(keyBytes.length, length);
+		for (int i = 0; i < n; i++) {
+			int c = (keyBytes[i] & 0xFF) - (this.buffer.get(position + i) & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return keyBytes.length - length;
+	}
+
+	private int readVarInt(int position, int[] next) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = this.buffer.get(position++);
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		next[0] = position;
+		return value;
+	}
+
+	private static int compareBytes(byte[] bytes1, int length1, byte[] bytes2, int length2) {
+		int n = Math.min(length1, length2);
+		for (int i = 0; i < n; i++) {
+			int c = (bytes1[i] & 0xFF) - (bytes2[i] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return length1 - length2;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file starts with the compact gazetteer header
+	 */
+	public static boolean isCompactFile(File file) {
+		if (!file.isFile() || file.length() < 8)
+			return false;
+
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readInt() == MAGIC && in.readInt() == VERSION;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a gazetteer map to a compact gazetteer file
+	 *
+	 * @param gazetteer map from cleaned values to weighted IDs
+	 * @param cleanFnName name of the clean function applied to the values
+	 * @param file
+	 * @return true if the file was written
+	 */
+	public static boolean write(Map<String, List<Pair<String, Double>>> gazetteer, String cleanFnName, File file) {
+		final Map<String, byte[]> keyBytes = new HashMap<String, byte[]>();
+		for (String key : gazetteer.keySet())
+			keyBytes.put(key, key.getBytes(UTF8));
+
+		// Sort keys by their UTF-8 bytes, which is the order used by lookups
+		String[] sortedKeys = keyBytes.keySet().toArray(new String[keyBytes.size()]);
+		Arrays.sort(sortedKeys, new Comparator<String>() {
+			public int compare(String key1, String key2) {
+				byte[] bytes1 = keyBytes.get(key1);
+				byte[] bytes2 = keyBytes.get(key2);
+				return compareBytes(bytes1, bytes1.length, bytes2, bytes2.length);
+			}
+		});
+
+		Map<String, Integer> idIndices = new HashMap<String, Integer>();
+		List<String> ids = new ArrayList<String>();
+		int refCount = 0;
+		for (List<Pair<String, Double>> weightedIds : gazetteer.values())
+			refCount += weightedIds.size();
+
+		int[] refStarts = new int[sortedKeys.length + 1];
+		int[] refIds = new int[refCount];
+		double[] refWeights = new double[refCount];
+		int ref = 0;
+		for (int i = 0; i < sortedKeys.length; i++) {
+			refStarts[i] = ref;
+			for (Pair<String, Double> weightedId : gazetteer.get(sortedKeys[i])) {
+				Integer idIndex = idIndices.get(weightedId.getFirst());
+				if (idIndex == null) {
+					idIndex = ids.size();
+					idIndices.put(weightedId.getFirst(), idIndex);
+					ids.add(weightedId.getFirst());
+				}
+				refIds[ref] = idIndex;
+				refWeights[ref] = weightedId.getSecond();
+				ref++;
+			}
+		}
+		refStarts[sortedKeys.length] = ref;
+
+		try {
+			ByteArrayOutputStream idBytes = new ByteArrayOutputStream();
+			int[] idOffsets = new int[ids.size() + 1];
+			for (int i = 0; i < ids.size(); i++) {
+				idOffsets[i] = idBytes.size();
+				idBytes.write(ids.get(i).getBytes(UTF8));
+			}
+			idOffsets[ids.size()] = idBytes.size();
+
+			int blockCount = (sortedKeys.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			int[] blockOffsets = new int[blockCount + 1];
+			ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+			byte[] previous = null;
+			for (int i = 0; i < sortedKeys.length; i++) {
+				byte[] value = keyBytes.get(sortedKeys[i]);
+				if (i % BLOCK_SIZE == 0) {
+					blockOffsets[i / BLOCK_SIZE] = valueBytes.size();
+					writeVarInt(valueBytes, value.length);
+					valueBytes.write(value);
+				} else {
+					int prefixLength = 0;
+					while (prefixLength < value.length && prefixLength < previous.length && value[prefixLength] == previous[prefixLength])
+						prefixLength++;
+					writeVarInt(valueBytes, prefixLength);
+					writeVarInt(valueBytes, value.length - prefixLength);
+					valueBytes.write(value, prefixLength, value.length - prefixLength);
+				}
+				previous = value;
+			}
+			blockOffsets[blockCount] = valueBytes.size();
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			byte[] cleanFnNameBytes = (cleanFnName == null) ? new byte[0] : cleanFnName.getBytes(UTF8);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(cleanFnNameBytes.length);
+			out.write(cleanFnNameBytes);
+			out.writeInt(sortedKeys.length);
+			out.writeInt(ids.size());
+			out.writeInt(refCount);
+			for (int i = 0; i < idOffsets.length; i++)
+				out.writeInt(idOffsets[i]);
+			idBytes.writeTo(out);
+			for (int i = 0; i < refStarts.length; i++)
+				out.writeInt(refStarts[i]);
+			for (int i = 0; i < refIds.length; i++)
+				out.writeInt(refIds[i]);
+			for (int i = 0; i < refWeights.length; i++)
+				out.writeDouble(refWeights[i]);
+			for (int i = 0; i < blockOffsets.length; i++)
+				out.writeInt(blockOffsets[i]);
+			valueBytes.writeTo(out);
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		return true;
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+}
@@ -21,9 +21,12 @@ package ark.data;
 import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 
+import ark.util.BoundedCache;
 import ark.util.OutputWriter;
+import ark.util.Pair;
 import ark.util.StringUtil;
 import ark.util.Timer;
 import ark.cluster.Clusterer;
@@ -116,6 +119,9 @@ public class DataTools {
 		}
 	}
 	
+	public static final int DEFAULT_GAZETTEER_CACHE_SIZE = 200000;
+	public static final String GAZETTEER_CONTAINS_MEASURE = "GazetteerContains";
+	
 	protected Map<String, Gazetteer> gazetteers;
 	protected Map<String, DataTools.StringTransform> cleanFns;
 	protected Map<String, DataTools.StringCollectionTransform> collectionFns;
@@ -130,6 +136,40 @@ public class DataTools {
 	protected OutputWriter outputWriter;
 	protected Timer timer;
 	
+	/**
+	 * GazetteerCacheKey identifies a gazetteer lookup result by the 
+	 * gazetteer instance (rather than its name, so that results from a 
+	 * gazetteer that has been replaced are never returned), the measure, 
+	 * and the cleaned string.
+	 */
+	private static class GazetteerCacheKey {
+		private Gazetteer gazetteer;
+		private String measure;
+		private String cleanStr;
+		
+		public GazetteerCacheKey(Gazetteer gazetteer, String measure, String cleanStr) {
+			this.gazetteer = gazetteer;
+			this.measure = measure;
+			this.cleanStr = cleanStr;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof GazetteerCacheKey))
+				return false;
+			GazetteerCacheKey key = (GazetteerCacheKey)o;
+			return this.gazetteer == key.gazetteer && this.measure.equals(key.measure) && this.cleanStr.equals(key.cleanStr);
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31*(31*System.identityHashCode(this.gazetteer) + this.measure.hashCode()) + this.cleanStr.hashCode();
+		}
+	}
+	
+	// Gazetteer lookup results keyed by gazetteer, measure, and cleaned string
+	protected volatile BoundedCache<GazetteerCacheKey, Pair<List<Pair<String, Double>>, Double>> gazetteerCache;
+	
 	public DataTools(OutputWriter outputWriter) {
 		this.gazetteers = new HashMap<String, Gazetteer>();
 		this.cleanFns = new HashMap<String, DataTools.StringTransform>();
@@ -168,6 +208,7 @@ public class DataTools {
 		this.tokenSpanClusterers.put("None", null);
 		this.globalRandom = new Random();
 		this.timer = new Timer();
+		this.gazetteerCache = new BoundedCache<GazetteerCacheKey, Pair<List<Pair<String, Double>>, Double>>(DEFAULT_GAZETTEER_CACHE_SIZE);
 		
 		this.addAnnotationTypeNLP(AnnotationTypeNLP.LANGUAGE);
 		this.addAnnotationTypeNLP(AnnotationTypeNLP.TOKEN);
@@ -239,8 +280,82 @@ public class DataTools {
 		return this.timer;
 	}
 	
+	/**
+	 * @param gazetteer
+	 * @param measure name of the function of the gazetteer and string
+	 * @param cleanStr string cleaned by the gazetteer's clean function
+	 * @return the cached result of the measure for the gazetteer and 
+	 * string, or null if it's not cached.  The cache is shared by the
+	 * gazetteer features and functions, so that the same strings aren't
+	 * repeatedly compared against the same gazetteer.
+	 */
+	public Pair<List<Pair<String, Double>>, Double> lookupGazetteerCache(Gazetteer gazetteer, String measure, String cleanStr) {
+		BoundedCache<GazetteerCacheKey, Pair<List<Pair<String, Double>>, Double>> gazetteerCache = this.gazetteerCache;
+		if (gazetteerCache == null)
+			return null;
+		return gazetteerCache.get(getGazetteerCacheKey(gazetteer, measure, cleanStr));
+	}
+	
+	public boolean addToGazetteerCache(Gazetteer gazetteer, String measure, String cleanStr, Pair<List<Pair<String, Double>>, Double> value) {
+		BoundedCache<GazetteerCacheKey, Pair<List<Pair<String, Double>>, Double>> gazetteerCache = this.gazetteerCache;
+		if (gazetteerCache == null)
+			return false;
+		gazetteerCache.put(getGazetteerCacheKey(gazetteer, measure, cleanStr), value);
+		return true;
+	}
+	
+	/**
+	 * @param gazetteer
+	 * @param str
+	 * @return gazetteer.getWeightedIds(str), looked up in the gazetteer cache
+	 * (shared with FeatureGazetteerContains)
+	 */
+	public List<Pair<String, Double>> getCachedWeightedIds(Gazetteer gazetteer, String str) {
+		String cleanStr = gazetteer.cleanString(str);
+		Pair<List<Pair<String, Double>>, Double> contains = lookupGazetteerCache(gazetteer, GAZETTEER_CONTAINS_MEASURE, cleanStr);
+		if (contains == null) {
+			List<Pair<String, Double>> ids = gazetteer.getWeightedIds(str);
+			contains = new Pair<List<Pair<String, Double>>, Double>(ids, (ids != null) ? 1.0 : 0.0);
+			addToGazetteerCache(gazetteer, GAZETTEER_CONTAINS_MEASURE, cleanStr, contains);
+		}
+		
+		return contains.getFirst();
+	}
+	
+	/**
+	 * @param size maximum number of gazetteer results to cache (0 disables 
+	 * the cache)
+	 */
+	public boolean setGazetteerCacheSize(int size) {
+		if (size <= 0)
+			this.gazetteerCache = null;
+		else
+			this.gazetteerCache = new BoundedCache<GazetteerCacheKey, Pair<List<Pair<String, Double>>, Double>>(size);
+		return true;
+	}
+	
+	/**
+	 * @return hit and miss counts for the gazetteer cache
+	 */
+	public String getGazetteerCacheStatistics() {
+		BoundedCache<GazetteerCacheKey, Pair<List<Pair<String, Double>>, Double>> gazetteerCache = this.gazetteerCache;
+		if (gazetteerCache == null)
+			return "disabled";
+		return gazetteerCache.toString();
+	}
+	
+	private GazetteerCacheKey getGazetteerCacheKey(Gazetteer gazetteer, String measure, String cleanStr) {
+		return new GazetteerCacheKey(gazetteer, measure, cleanStr);
+	}
+	
 	public boolean addGazetteer(Gazetteer gazetteer) {
-		this.gazetteers.put(gazetteer.getName(), gazetteer);
+		Gazetteer oldGazetteer = this.gazetteers.put(gazetteer.getName(), gazetteer);
+		
+		// Drop cached results that hold on to a replaced gazetteer
+		BoundedCache<GazetteerCacheKey, Pair<List<Pair<String, Double>>, Double>> gazetteerCache = this.gazetteerCache;
+		if (oldGazetteer != null && oldGazetteer != gazetteer && gazetteerCache != null)
+			gazetteerCache.clear();
+		
 		return true;
 	}
 	
@@ -19,13 +19,20 @@
 package ark.data;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import ark.util.AhoCorasick;
+import ark.util.BKTree;
 import ark.util.FileUtil;
+import ark.util.OutputWriter;
 import ark.util.Pair;
+import ark.util.TokenPrefixIndex;
 
 /**
  * Gazetteer represents a deserialized dictionary of strings
@@ -43,13 +50,24 @@ import ark.util.Pair;
  * that each string should be assigned to the given ID, but
  * these are optional.
  * 
+ * A gazetteer can also be compiled into a compact binary file (see 
+ * compile and main), which is memory-mapped rather than parsed when it
+ * is given as the source file.  The indices that speed up edit distance,
+ * prefix, and initialism lookups and matching in documents are still 
+ * built on the heap on first use (see CompactGazetteerMap).
+ * 
  * @authors Lingpeng Kong, Bill McDowell
  *
  */
 public class Gazetteer {
-	private HashMap<String, List<Pair<String, Double>>> gazetteer;
+	private Map<String, List<Pair<String, Double>>> gazetteer; // HashMap, or CompactGazetteerMap for compiled gazetteers
 	private String name;
 	private DataTools.StringTransform cleanFn;
+	private volatile BKTree editDistanceIndex; // Built on first use by minNormalizedEditDistance
+	private volatile TokenPrefixIndex initialismIndex; // Built on first use by maxInitialism
+	private volatile TokenPrefixIndex prefixTokensIndex; // Built on first use by maxPrefixTokenOverlap
+	private volatile AhoCorasick<List<Pair<String, Double>>> valueMatcher; // Built on first use by findMatches
+	private volatile String[] orderedValues; // Values in iteration order, indexed by the prefix indices' ordinals (not kept for compiled gazetteers)
 	
 	public Gazetteer(String name, String sourceFilePath) {
 		this(name, sourceFilePath, null);
@@ -64,6 +82,25 @@ public class Gazetteer {
 		this.gazetteer = new HashMap<String, List<Pair<String, Double>>>();
 		this.name = name;
 		
+		File sourceFile = new File(sourceFilePath);
+		if (CompactGazetteerMap.isCompactFile(sourceFile)) {
+			CompactGazetteerMap compactGazetteer = null;
+			try {
+				compactGazetteer = new CompactGazetteerMap(sourceFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			
+			// The compiled values were cleaned when they were compiled, so they can't
+			// be looked up with a different clean function
+			String cleanFnName = (this.cleanFn == null) ? "" : this.cleanFn.toString();
+			if (!compactGazetteer.getCleanFnName().equals(cleanFnName))
+				throw new IllegalArgumentException("Gazetteer " + name + " was compiled with clean function '" + compactGazetteer.getCleanFnName() + "' rather than '" + cleanFnName + "'.");
+			this.gazetteer = compactGazetteer;
+			return;
+		}
+		
 		try {
 			BufferedReader br = FileUtil.getFileReader(sourceFilePath);
 			String line = null;
@@ -118,7 +155,22 @@ public class Gazetteer {
 		return this.name;
 	}
 	
-	private String cleanString(String str) {	
+	/**
+	 * Writes the gazetteer (with its values already cleaned) to a compact
+	 * binary file.  Passing the file to the constructor in place of the 
+	 * source file memory-maps it rather than parsing the source again, so
+	 * large gazetteers load quickly and processes on the same machine 
+	 * share the gazetteer's memory.
+	 * 
+	 * @param outputFilePath
+	 * @return true if the compiled gazetteer was written
+	 */
+	public boolean compile(String outputFilePath) {
+		String cleanFnName = (this.cleanFn == null) ? "" : this.cleanFn.toString();
+		return CompactGazetteerMap.write(this.gazetteer, cleanFnName, new File(outputFilePath));
+	}
+	
+	public String cleanString(String str) {	
 		if (this.cleanFn == null)
 			return str;
 		else
@@ -165,6 +217,221 @@ public class Gazetteer {
 		return new Pair<List<Pair<String,Double>>, Double>(minIds, min);
 	}
 	
+	/**
+	 * @param str
+	 * @return the ids for the gazetteer string with the minimum Levenshtein 
+	 * distance to str divided by the sum of the lengths of the two strings, 
+	 * paired with that distance.  This gives the same result as min with the
+	 * normalized edit distance measure, but it searches a BK-tree index 
+	 * (built on the first call) rather than comparing str to every string 
+	 * in the gazetteer.
+	 */
+	public Pair<List<Pair<String,Double>>, Double> minNormalizedEditDistance(String str) {
+		Pair<String, Double> nearest = getEditDistanceIndex().nearestNormalized(cleanString(str));
+		if (nearest == null)
+			return new Pair<List<Pair<String,Double>>, Double>(null, Double.POSITIVE_INFINITY);
+		return new Pair<List<Pair<String,Double>>, Double>(this.gazetteer.get(nearest.getFirst()), nearest.getSecond());
+	}
+	
+	private BKTree getEditDistanceIndex() {
+		if (this.editDistanceIndex == null) {
+			synchronized (this) {
+				if (this.editDistanceIndex == null) {
+					BKTree editDistanceIndex = new BKTree();
+					for (String value : this.gazetteer.keySet())
+						editDistanceIndex.add(value);
+					this.editDistanceIndex = editDistanceIndex;
+				}
+			}
+		}
+		
+		return this.editDistanceIndex;
+	}
+	
+	/**
+	 * @param str
+	 * @param allowPrefix
+	 * @return the same result as max with a measure that is 1 if 
+	 * StringUtil.isInitialism(str, value, allowPrefix) and 0 otherwise, but
+	 * the matching values are looked up in an index of the values' token
+	 * initials (built on the first call) rather than found by comparing str to
+	 * every value.
+	 */
+	public Pair<List<Pair<String,Double>>, Double> maxInitialism(String str, boolean allowPrefix) {
+		if (this.gazetteer.isEmpty())
+			return new Pair<List<Pair<String,Double>>, Double>(null, Double.NEGATIVE_INFINITY);
+		
+		String initialism = cleanString(str).trim().toLowerCase();
+		String[] initials = new String[initialism.length()];
+		for (int i = 0; i < initials.length; i++)
+			initials[i] = String.valueOf(initialism.charAt(i));
+		
+		TokenPrefixIndex index = getInitialismIndex();
+		int ordinal = (allowPrefix) ? index.getPrefixedMin(initials, initials.length) : index.getExactMin(initials, initials.length);
+		if (ordinal < 0)
+			return new Pair<List<Pair<String,Double>>, Double>(getOrderedWeightedIds(0), 0.0);
+		else
+			return new Pair<List<Pair<String,Double>>, Double>(getOrderedWeightedIds(ordinal), 1.0);
+	}
+	
+	/**
+	 * @param str
+	 * @return the same result as max with StringUtil.prefixTokenOverlap as 
+	 * the measure, but the overlapping values are looked up in a trie of the 
+	 * values' tokens (built on the first call) rather than found by comparing 
+	 * str to every value.
+	 */
+	public Pair<List<Pair<String,Double>>, Double> maxPrefixTokenOverlap(String str) {
+		if (this.gazetteer.isEmpty())
+			return new Pair<List<Pair<String,Double>>, Double>(null, Double.NEGATIVE_INFINITY);
+		
+		String[] tokens = getPrefixTokens(cleanString(str));
+		TokenPrefixIndex index = getPrefixTokensIndex();
+		
+		// Values that start with all of the tokens have the maximum overlap
+		int ordinal = index.getPrefixedMin(tokens, tokens.length);
+		if (ordinal >= 0)
+			return new Pair<List<Pair<String,Double>>, Double>(getOrderedWeightedIds(ordinal), (double)tokens.length);
+		
+		// Otherwise, the longest value that is a prefix of the tokens
+		for (int length = tokens.length - 1; length > 0; length--) {
+			ordinal = index.getExactMin(tokens, length);
+			if (ordinal >= 0)
+				return new Pair<List<Pair<String,Double>>, Double>(getOrderedWeightedIds(ordinal), (double)length);
+		}
+		
+		return new Pair<List<Pair<String,Double>>, Double>(getOrderedWeightedIds(0), 0.0);
+	}
+	
+	/**
+	 * @param tokens
+	 * @return the occurrences of gazetteer values in the tokens, paired with
+	 * the values' weighted ids.  The occurrences are found in a single pass
+	 * over the tokens by an Aho-Corasick automaton over the values' tokens 
+	 * (built on the first call).  Each token is cleaned separately, and 
+	 * tokens that clean to nothing are skipped, so a value occurs at tokens 
+	 * [start, end) if the remaining cleaned tokens in that range are the
+	 * value's tokens.
+	 */
+	public List<AhoCorasick.Match<List<Pair<String, Double>>>> findMatches(String[] tokens) {
+		List<String> cleanTokens = new ArrayList<String>(tokens.length);
+		List<Integer> tokenIndices = new ArrayList<Integer>(tokens.length);
+		for (int i = 0; i < tokens.length; i++) {
+			String cleanToken = cleanString(tokens[i]).trim();
+			if (cleanToken.length() == 0)
+				continue;
+			for (String cleanTokenPart : cleanToken.split("\\s+")) {
+				cleanTokens.add(cleanTokenPart);
+				tokenIndices.add(i);
+			}
+		}
+		
+		List<AhoCorasick.Match<List<Pair<String, Double>>>> cleanMatches = getValueMatcher().findMatches(cleanTokens.toArray(new String[cleanTokens.size()]));
+		List<AhoCorasick.Match<List<Pair<String, Double>>>> matches = new ArrayList<AhoCorasick.Match<List<Pair<String, Double>>>>(cleanMatches.size());
+		for (AhoCorasick.Match<List<Pair<String, Double>>> cleanMatch : cleanMatches)
+			matches.add(new AhoCorasick.Match<List<Pair<String, Double>>>(
+					tokenIndices.get(cleanMatch.getStart()), 
+					tokenIndices.get(cleanMatch.getEnd() - 1) + 1, 
+					cleanMatch.getValue()));
+		
+		return matches;
+	}
+	
+	private AhoCorasick<List<Pair<String, Double>>> getValueMatcher() {
+		if (this.valueMatcher == null) {
+			synchronized (this) {
+				if (this.valueMatcher == null) {
+					AhoCorasick<List<Pair<String, Double>>> valueMatcher = new AhoCorasick<List<Pair<String, Double>>>();
+					for (Entry<String, List<Pair<String, Double>>> entry : this.gazetteer.entrySet())
+						valueMatcher.add(entry.getKey().trim().split("\\s+"), entry.getValue());
+					valueMatcher.build();
+					this.valueMatcher = valueMatcher;
+				}
+			}
+		}
+		
+		return this.valueMatcher;
+	}
+	
+	private TokenPrefixIndex getInitialismIndex() {
+		if (this.initialismIndex == null) {
+			synchronized (this) {
+				if (this.initialismIndex == null) {
+					TokenPrefixIndex initialismIndex = new TokenPrefixIndex();
+					int ordinal = 0;
+					for (String value : this.gazetteer.keySet()) {
+						String[] valueTokens = value.trim().toLowerCase().split("\\s+");
+						String[] initials = new String[valueTokens.length];
+						for (int j = 0; j < valueTokens.length; j++)
+							initials[j] = (valueTokens[j].length() == 0) ? "" : String.valueOf(valueTokens[j].charAt(0));
+						initialismIndex.add(initials, ordinal);
+						ordinal++;
+					}
+					this.initialismIndex = initialismIndex;
+				}
+			}
+		}
+		
+		return this.initialismIndex;
+	}
+	
+	private TokenPrefixIndex getPrefixTokensIndex() {
+		if (this.prefixTokensIndex == null) {
+			synchronized (this) {
+				if (this.prefixTokensIndex == null) {
+					TokenPrefixIndex prefixTokensIndex = new TokenPrefixIndex();
+					int ordinal = 0;
+					for (String value : this.gazetteer.keySet()) {
+						prefixTokensIndex.add(getPrefixTokens(value), ordinal);
+						ordinal++;
+					}
+					this.prefixTokensIndex = prefixTokensIndex;
+				}
+			}
+		}
+		
+		return this.prefixTokensIndex;
+	}
+	
+	/**
+	 * @param ordinal
+	 * @return the weighted ids of the value at the ordinal in the gazetteer's
+	 * iteration order (the ordinals used by the prefix indices).  Compiled 
+	 * gazetteers look the value up by its index, and other gazetteers keep 
+	 * an array of their values in iteration order.
+	 */
+	private List<Pair<String, Double>> getOrderedWeightedIds(int ordinal) {
+		if (this.gazetteer instanceof CompactGazetteerMap)
+			return ((CompactGazetteerMap)this.gazetteer).getWeightedIds(ordinal);
+		String[] orderedValues = this.orderedValues;
+		if (orderedValues == null)
+			orderedValues = getOrderedValues();
+		return this.gazetteer.get(orderedValues[ordinal]);
+	}
+	
+	private synchronized String[] getOrderedValues() {
+		if (this.orderedValues == null)
+			this.orderedValues = this.gazetteer.keySet().toArray(new String[this.gazetteer.size()]);
+		return this.orderedValues;
+	}
+	
+	/**
+	 * @param str
+	 * @return the tokens of str (as split by StringUtil.prefixTokenOverlap),
+	 * with each character mapped so that tokens are equal exactly when
+	 * they are equal ignoring case
+	 */
+	private String[] getPrefixTokens(String str) {
+		String[] tokens = str.trim().split("\\s+");
+		for (int i = 0; i < tokens.length; i++) {
+			char[] token = tokens[i].toCharArray();
+			for (int j = 0; j < token.length; j++)
+				token[j] = Character.toLowerCase(Character.toUpperCase(token[j]));
+			tokens[i] = new String(token);
+		}
+		return tokens;
+	}
+	
 	public Pair<List<Pair<String,Double>>, Double> max(String str, DataTools.StringPairMeasure fn) {
 		double max = Double.NEGATIVE_INFINITY;
 		List<Pair<String, Double>> maxIds = null;
@@ -198,4 +465,25 @@ public class Gazetteer {
 	public Set<String> getValues() {
 		return this.gazetteer.keySet();
 	}
+	
+	/**
+	 * Compiles a gazetteer source file into a compact gazetteer file.
+	 * 
+	 * Usage: Gazetteer [source file] [output file] [has weights (true/false)] [clean function name (optional)]
+	 * 
+	 * The clean function name must be one known to DataTools, and the same
+	 * clean function must be given when the compiled gazetteer is loaded.
+	 */
+	public static void main(String[] args) {
+		String sourceFilePath = args[0];
+		String outputFilePath = args[1];
+		boolean hasWeights = Boolean.valueOf(args[2]);
+		DataTools.StringTransform cleanFn = null;
+		if (args.length > 3)
+			cleanFn = new DataTools(new OutputWriter()).getCleanFn(args[3]);
+		
+		Gazetteer gazetteer = new Gazetteer(new File(sourceFilePath).getName(), sourceFilePath, cleanFn, hasWeights);
+		if (!gazetteer.compile(outputFilePath))
+			System.exit(1);
+	}
 }
\ No newline at end of file
@@ -18,23 +18,51 @@
 
 package ark.data.annotation;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Writer;
-import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Random;
-import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -49,6 +77,13 @@ import ark.util.ThreadMapper;
  * DataSet represents a collection of labeled and/or unlabeled 'datums'
  * to be used to train and evaluate models.  
  * 
+ * The datums are stored in a list in order of their ids, and each datum is
+ * identified within the data set by its position (ordinal) in the list.  
+ * The labels are stored as bit sets over the ordinals, so that filtered 
+ * iteration and label counts are scans over words of bits rather than over
+ * sets of boxed ids.  Labels should be changed through setDatumLabel 
+ * so that the bit sets are kept up to date.
+ * 
  * @author Bill McDowell
  *
  * @param <D> Datum type
@@ -63,26 +98,27 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 	
 	public class DataIterator implements Iterator<D> {
 		private DataFilter filter;
-		private Iterator<Entry<Integer, D>> iterator;
-		private D next;
+		private int next; // Ordinal of the next datum
 		
-		public DataIterator(DataFilter filter, Map<Integer, D> data) {
+		public DataIterator(DataFilter filter) {
 			this.filter = filter;
-			this.iterator = data.entrySet().iterator();
+			this.next = -1;
+			if (this.filter != DataFilter.All)
+				refreshLabelData();
 			iterate();
 		}
 		
 		@Override
 		public boolean hasNext() {
-			return this.next != null;
+			return this.next < data.size();
 		}
 
 		@Override
 		public D next() {
-			if (this.next == null)
+			if (!hasNext())
 				throw new NoSuchElementException();
 			
-			D next = this.next;
+			D next = data.get(this.next);
 			
 			iterate();
 			
@@ -95,24 +131,175 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 		}
 		
 		private void iterate() {
-			do {
-				if (this.iterator.hasNext())
-					this.next = this.iterator.next().getValue();
-				else
-					this.next = null;
-			} while (this.next != null && 
-						(  (this.filter == DataFilter.OnlyLabeled && this.next.getLabel() == null)
-						|| (this.filter == DataFilter.OnlyUnlabeled && this.next.getLabel() != null)));
+			this.next++;
+			if (this.filter == DataFilter.OnlyLabeled) {
+				this.next = unlabeledData.nextClearBit(this.next);
+			} else if (this.filter == DataFilter.OnlyUnlabeled) {
+				this.next = unlabeledData.nextSetBit(this.next);
+				if (this.next < 0)
+					this.next = data.size();
+			}
+		}
+		
+	}
+	
+	private class DatumDeserializer implements Callable<List<D>> {
+		private List<String> lines;
+		
+		public DatumDeserializer(List<String> lines) {
+			this.lines = lines;
+		}
+		
+		@Override
+		public List<D> call() throws Exception {
+			List<D> batch = new ArrayList<D>(this.lines.size());
+			for (String line : this.lines)
+				batch.add(datumTools.datumFromJSON(new JSONObject(line)));
+			return batch;
+		}
+	}
+	
+	private class DatumSerializer implements Callable<String> {
+		private List<D> batch;
+		
+		public DatumSerializer(List<D> batch) {
+			this.batch = batch;
+		}
+		
+		@Override
+		public String call() throws Exception {
+			StringBuilder str = new StringBuilder();
+			for (D datum : this.batch)
+				str.append(datumTools.datumToJSON(datum).toString()).append("\n");
+			return str.toString();
+		}
+	}
+	
+	private static final int SERIALIZATION_BATCH_SIZE = 1024; // Datums per batch when serializing with multiple threads
+	private static final int SERIALIZATION_BATCHES_PER_THREAD = 4; // Maximum batches in memory per thread
+	private static final int SERIALIZATION_BUFFER_SIZE = 1 << 16;
+	
+	/**
+	 * DatumBlockEncoder encodes a batch of datums into a compressed block of 
+	 * the binary format written by serializeBinary.  A block has the format:
+	 * 
+	 * [datum count (int)][uncompressed length (int)][compressed length (int)]
+	 * [deflated records]
+	 * 
+	 * Where each record is [length (int)][datum (see Datum.Tools.datumToBinary)].
+	 */
+	private class DatumBlockEncoder implements Callable<byte[]> {
+		private List<D> batch;
+		
+		public DatumBlockEncoder(List<D> batch) {
+			this.batch = batch;
+		}
+		
+		@Override
+		public byte[] call() throws Exception {
+			ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+			DataOutputStream record = new DataOutputStream(recordBytes);
+			ByteArrayOutputStream recordsBytes = new ByteArrayOutputStream();
+			DataOutputStream records = new DataOutputStream(recordsBytes);
+			for (D datum : this.batch) {
+				recordBytes.reset();
+				datumTools.datumToBinary(datum, record);
+				record.flush();
+				records.writeInt(recordBytes.size());
+				recordBytes.writeTo(records);
+			}
+			records.flush();
+			
+			byte[] uncompressed = recordsBytes.toByteArray();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(uncompressed.length/2 + 64);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(uncompressed);
+			deflater.finish();
+			byte[] buffer = new byte[SERIALIZATION_BUFFER_SIZE];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				compressed.write(buffer, 0, length);
+			}
+			deflater.end();
+			
+			ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(compressed.size() + 12);
+			DataOutputStream block = new DataOutputStream(blockBytes);
+			block.writeInt(this.batch.size());
+			block.writeInt(uncompressed.length);
+			block.writeInt(compressed.size());
+			compressed.writeTo(block);
+			block.flush();
+			
+			return blockBytes.toByteArray();
+		}
+	}
+	
+	/**
+	 * DatumBlockDecoder reads and decodes a block written by DatumBlockEncoder
+	 * from a position in a file channel.  Channels support concurrent reads 
+	 * at absolute positions, so blocks can be decoded in parallel.
+	 */
+	private class DatumBlockDecoder implements Callable<List<D>> {
+		private FileChannel channel;
+		private long position;
+		
+		public DatumBlockDecoder(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
 		}
 		
+		@Override
+		public List<D> call() throws Exception {
+			ByteBuffer header = readFully(this.channel, this.position, 12);
+			int datumCount = header.getInt();
+			int uncompressedLength = header.getInt();
+			int compressedLength = header.getInt();
+			ByteBuffer compressed = readFully(this.channel, this.position + 12, compressedLength);
+			
+			byte[] uncompressed = new byte[uncompressedLength];
+			Inflater inflater = new Inflater();
+			inflater.setInput(compressed.array(), 0, compressedLength);
+			int offset = 0;
+			try {
+				while (offset < uncompressedLength && !inflater.finished()) {
+					int inflated = inflater.inflate(uncompressed, offset, uncompressedLength - offset);
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						throw new IOException("Datum block at position " + this.position + " is truncated.");
+					offset += inflated;
+				}
+			} finally {
+				inflater.end();
+			}
+			
+			if (offset < uncompressedLength)
+				throw new IOException("Datum block at position " + this.position + " is shorter than its length.");
+			
+			List<D> batch = new ArrayList<D>(datumCount);
+			offset = 0;
+			for (int i = 0; i < datumCount; i++) {
+				int length = ByteBuffer.wrap(uncompressed, offset, 4).getInt();
+				offset += 4;
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(uncompressed, offset, length));
+				batch.add(datumTools.datumFromBinary(record));
+				offset += length;
+			}
+			
+			return batch;
+		}
 	}
 	
+	private static final int BINARY_MAGIC = 0x41524B44; // "ARKD"
+	private static final int BINARY_VERSION = 1;
+	private static final int BINARY_BLOCK_SIZE = 4096; // Datums per compressed block
+	
 	private Datum.Tools<D, L> datumTools;
 	private Datum.Tools.LabelMapping<L> labelMapping;
 	
-	protected Map<L, Set<Integer>> labeledData;
-	protected Set<Integer> unlabeledData;
-	protected TreeMap<Integer, D> data;
+	protected ArrayList<D> data; // Datums in order of id
+	protected int[] dataIds; // Ids of the datums in data (for binary search)
+	protected Map<L, BitSet> labeledData; // Maps from (mapped) labels to ordinals of datums with those labels
+	protected BitSet unlabeledData; // Ordinals of datums without labels
+	private volatile boolean labelDataStale; // True if datums were inserted before others, so labeledData and unlabeledData need to be rebuilt
 	
 	private Comparator<L> labelComparator = new Comparator<L>() {
 	      @Override
@@ -136,18 +323,15 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 	}
 	
 	public boolean setDatumLabel(D datum, L label) {
-		if (!this.contains(datum))
+		int ordinal = getOrdinal(datum.getId());
+		if (ordinal < 0)
 			return false;
-		if (datum.getLabel() == null) {
-			this.unlabeledData.remove(datum.getId());
-			this.data.remove(datum.getId());	
-			datum.setLabel(label);
-			add(datum);
-		} else {
-			this.labeledData.get(datum.getLabel()).remove(datum.getId());
-			this.data.remove(datum.getId());			
+		
+		refreshLabelData();
+		synchronized (this) {
+			setLabelData(ordinal, datum, false);
 			datum.setLabel(label);
-			add(datum);
+			setLabelData(ordinal, datum, true);
 		}
 		
 		return true;
@@ -160,48 +344,113 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 		return true;
 	}
 	
+	/**
+	 * Adds a datum to the data set.  Adding datums in increasing order of
+	 * id is constant time.  Otherwise, the datum is inserted into the list, 
+	 * and the label bit sets are rebuilt the next time they are used.
+	 * 
+	 * @param datum
+	 * @return true
+	 */
 	public boolean add(D datum) {
-		if (contains(datum))
+		int ordinal = getOrdinal(datum.getId());
+		if (ordinal >= 0)
 			return true;
-		L label = (this.labelMapping == null) ? datum.getLabel() : this.labelMapping.map(datum.getLabel());
-		if (label == null) {
-			this.unlabeledData.add(datum.getId());
-		} else {
-			if (!this.labeledData.containsKey(label))
-				this.labeledData.put(label, new HashSet<Integer>());
-			this.labeledData.get(label).add(datum.getId());
+		
+		ordinal = -(ordinal + 1);
+		if (this.data.size() == this.dataIds.length)
+			this.dataIds = Arrays.copyOf(this.dataIds, 2*this.dataIds.length);
+		
+		if (ordinal < this.data.size()) {
+			System.arraycopy(this.dataIds, ordinal, this.dataIds, ordinal + 1, this.data.size() - ordinal);
+			this.labelDataStale = true;
 		}
 		
-		this.data.put(datum.getId(), datum);
+		this.dataIds[ordinal] = datum.getId();
+		this.data.add(ordinal, datum);
+		
+		if (!this.labelDataStale)
+			setLabelData(ordinal, datum, true);
 		
 		return true;
 	}
 	
 	public D getDatumById(int id) {
-		return this.data.get(id);
+		int ordinal = getOrdinal(id);
+		return (ordinal < 0) ? null : this.data.get(ordinal);
+	}
+	
+	/**
+	 * @param id
+	 * @return the position of the datum with the given id in the data set,
+	 * or a negative number if the data set doesn't contain the datum
+	 */
+	protected int getOrdinal(int id) {
+		return Arrays.binarySearch(this.dataIds, 0, this.data.size(), id);
 	}
 	
 	public int getDataSizeForLabel(L label) {
 		if (this.labelMapping != null)
 			label = this.labelMapping.map(label);
-		if (!this.labeledData.containsKey(label))
+		refreshLabelData();
+		BitSet labelData = this.labeledData.get(label);
+		if (labelData == null)
 			return 0;
 		else
-			return this.labeledData.get(label).size();
+			return labelData.cardinality();
 	}
 	
 	public List<D> getDataForLabel(L label) {
 		if (this.labelMapping != null)
 			label = this.labelMapping.map(label);
+		refreshLabelData();
 		List<D> labelData = new ArrayList<D>();
-		if (!this.labeledData.containsKey(label))
+		BitSet ordinals = this.labeledData.get(label);
+		if (ordinals == null)
 			return labelData;
-		Set<Integer> datumIds = this.labeledData.get(label);
-		for (Integer datumId : datumIds)
-			labelData.add(this.data.get(datumId));
+		for (int i = ordinals.nextSetBit(0); i >= 0; i = ordinals.nextSetBit(i + 1))
+			labelData.add(this.data.get(i));
 		return labelData;
 	}
 	
+	private void setLabelData(int ordinal, D datum, boolean value) {
+		if (datum.getLabel() == null) {
+			this.unlabeledData.set(ordinal, value);
+			return;
+		}
+		
+		L label = (this.labelMapping == null) ? datum.getLabel() : this.labelMapping.map(datum.getLabel());
+		if (label == null)
+			return;
+		
+		BitSet labelData = this.labeledData.get(label);
+		if (labelData == null) {
+			if (!value)
+				return;
+			labelData = new BitSet();
+			this.labeledData.put(label, labelData);
+		}
+		
+		labelData.set(ordinal, value);
+	}
+	
+	private void refreshLabelData() {
+		if (!this.labelDataStale)
+			return;
+		
+		synchronized (this) {
+			if (!this.labelDataStale)
+				return;
+			
+			this.labeledData.clear();
+			this.unlabeledData.clear();
+			for (int i = 0; i < this.data.size(); i++)
+				setLabelData(i, this.data.get(i), true);
+			
+			this.labelDataStale = false;
+		}
+	}
+	
 	public List<DataSet<D, L>> makePartition(int parts, Random random) {
 		double[] distribution = new double[parts];
 		for (int i = 0; i < distribution.length; i++)
@@ -215,11 +464,17 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 	 * @param distribution
 	 * @param random
 	 * @return a random partition of the dataset with whose sets have sizes given
-	 * by the distribution
+	 * by the distribution.  The parts are constructed by makeSubsetInstance,
+	 * so they share the state of this data set (see FeaturizedDataSet), and 
+	 * they only hold references to this data set's datums.
 	 * 
 	 */
 	public List<DataSet<D, L>> makePartition(double[] distribution, Random random) {
-		List<Integer> dataPermutation = constructRandomDataPermutation(random);
+		List<Integer> ordinalPermutation = new ArrayList<Integer>(this.data.size());
+		for (int i = 0; i < this.data.size(); i++)
+			ordinalPermutation.add(i);
+		ordinalPermutation = MathUtil.randomPermutation(random, ordinalPermutation);
+		
 		List<DataSet<D, L>> partition = new ArrayList<DataSet<D, L>>(distribution.length);
 		
 		int offset = 0;
@@ -228,10 +483,14 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 			if (i == distribution.length - 1 && offset + partSize < this.data.size())
 				partSize = this.data.size() - offset;
 			
-			DataSet<D, L> part = new DataSet<D, L>(this.datumTools, this.labelMapping);
-			for (int j = offset; j < offset + partSize; j++) {
-				part.add(this.data.get(dataPermutation.get(j)));
-			}
+			int[] partOrdinals = new int[partSize];
+			for (int j = 0; j < partSize; j++)
+				partOrdinals[j] = ordinalPermutation.get(offset + j);
+			Arrays.sort(partOrdinals);
+			
+			DataSet<D, L> part = makeSubsetInstance(String.valueOf(i));
+			if (part == null || !part.addOrdinals(this, partOrdinals))
+				return null;
 			
 			offset += partSize;
 			partition.add(part);
@@ -251,10 +510,20 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 			if (i == distribution.length - 1 && offset + partSize < clusterList.size())
 				partSize = clusterList.size() - offset;
 			
-			DataSet<D, L> part = new DataSet<D, L>(this.datumTools, this.labelMapping);
+			List<Integer> partOrdinals = new ArrayList<Integer>();
 			for (int j = offset; j < offset + partSize; j++) {
-				part.addAll(clusters.get(clusterList.get(j)));
+				for (D datum : clusters.get(clusterList.get(j)))
+					partOrdinals.add(getOrdinal(datum.getId()));
 			}
+			Collections.sort(partOrdinals);
+			
+			int[] partOrdinalsArray = new int[partOrdinals.size()];
+			for (int j = 0; j < partOrdinalsArray.length; j++)
+				partOrdinalsArray[j] = partOrdinals.get(j);
+			
+			DataSet<D, L> part = makeSubsetInstance(String.valueOf(i));
+			if (part == null || !part.addOrdinals(this, partOrdinalsArray))
+				return null;
 			
 			offset += partSize;
 			partition.add(part);
@@ -278,17 +547,68 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 	}
 	
 	public DataSet<D, L> getSubset(DataFilter dataFilter) {
-		DataSet<D, L> subset = new DataSet<D, L>(this.datumTools, this.labelMapping);
+		refreshLabelData();
 		
-		Iterator<D> iterator = iterator(dataFilter);
-		
-		while (iterator.hasNext()) {
-			subset.add(iterator.next());
+		int[] ordinals = null;
+		if (dataFilter == DataFilter.All) {
+			ordinals = new int[this.data.size()];
+			for (int i = 0; i < ordinals.length; i++)
+				ordinals[i] = i;
+		} else {
+			BitSet filteredData = (BitSet)this.unlabeledData.clone();
+			if (dataFilter == DataFilter.OnlyLabeled)
+				filteredData.flip(0, this.data.size());
+			
+			ordinals = new int[filteredData.cardinality()];
+			for (int i = filteredData.nextSetBit(0), j = 0; i >= 0; i = filteredData.nextSetBit(i + 1), j++)
+				ordinals[j] = i;
 		}
 		
+		DataSet<D, L> subset = makeSubsetInstance(dataFilter.toString());
+		if (subset == null || !subset.addOrdinals(this, ordinals))
+			return null;
+		
 		return subset;
 	}
 	
+	/**
+	 * @param name
+	 * @return an empty data set into which subsets and parts of this data set 
+	 * are added (see getSubset and makePartition).  Subclasses override this so 
+	 * that the subsets share their state with this data set.
+	 */
+	protected DataSet<D, L> makeSubsetInstance(String name) {
+		return new DataSet<D, L>(this.datumTools, this.labelMapping);
+	}
+	
+	/**
+	 * Adds the datums at the given ordinals of the source data set.  If this
+	 * data set is empty, the datums are appended directly to its arrays.
+	 * 
+	 * @param source
+	 * @param ordinals positions of datums in source, in increasing order
+	 * @return true if the datums were added
+	 */
+	protected boolean addOrdinals(DataSet<D, L> source, int[] ordinals) {
+		if (!this.data.isEmpty()) {
+			for (int ordinal : ordinals)
+				if (!add(source.data.get(ordinal)))
+					return false;
+			return true;
+		}
+		
+		this.data.ensureCapacity(ordinals.length);
+		this.dataIds = new int[Math.max(16, ordinals.length)];
+		for (int i = 0; i < ordinals.length; i++) {
+			D datum = source.data.get(ordinals[i]);
+			this.dataIds[i] = source.dataIds[ordinals[i]];
+			this.data.add(datum);
+			setLabelData(i, datum, true);
+		}
+		
+		return true;
+	}
+	
 	public Datum.Tools<D, L> getDatumTools() {
 		return this.datumTools;
 	}
@@ -303,14 +623,14 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 	}
 	
 	public Iterator<D> iterator(DataFilter dataFilter) {
-		return new DataIterator(dataFilter, this.data);
+		return new DataIterator(dataFilter);
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public boolean contains(Object obj) {
 		Datum<L> datum = (Datum<L>)obj;
-		return this.data.containsKey(datum.getId());
+		return getOrdinal(datum.getId()) >= 0;
 	}
 
 	@Override
@@ -333,32 +653,12 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 
 	@Override
 	public Object[] toArray() {
-		Object[] array = new Object[this.data.size()];
-		int i = 0;
-		for (Entry<Integer, D> entry : this.data.entrySet()) {
-			array[i] = entry.getValue();
-			i++;
-		}
-
-		return array;
+		return this.data.toArray();
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public <T> T[] toArray(T[] array) {
-		if (array.length < this.data.size())
-			array = (T[])Array.newInstance(array.getClass().getComponentType(), this.data.size());
-		
-		int i = 0;
-		for (Entry<Integer, D> entry : this.data.entrySet()) {
-			array[i] = (T)entry.getValue();
-			i++;
-		}
-		
-		if (i < array.length)
-			array[i] = null;
-
-		return array;
+		return this.data.toArray(array);
 	}
 	
 	@Override
@@ -368,11 +668,13 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 		// is based on the Object reference (for example if L is an enum)
 		// (This isn't an issue right now since the labeledData map is no longer used
 		// to iterate through the data)
-		this.labeledData = new TreeMap<L, Set<Integer>>(this.labelComparator);
-		this.unlabeledData = new HashSet<Integer>();
+		this.labeledData = new TreeMap<L, BitSet>(this.labelComparator);
+		this.unlabeledData = new BitSet();
+		this.labelDataStale = false;
 		
 		// For iterating in order by ID
-		this.data = new TreeMap<Integer, D>();
+		this.data = new ArrayList<D>();
+		this.dataIds = new int[16];
 	}
 	
 	@Override
@@ -392,83 +694,397 @@ public class DataSet<D extends Datum<L>, L> implements Collection<D> {
 	
 	public List<Integer> constructRandomDataPermutation(Random random) {
 		List<Integer> permutation = new ArrayList<Integer>(this.data.size());
-		for (Integer dataKey : this.data.keySet())
-			permutation.add(dataKey);
+		for (int i = 0; i < this.data.size(); i++)
+			permutation.add(this.dataIds[i]);
 		
 		return MathUtil.randomPermutation(random, permutation);
 	}
 	
 	public Pair<L, Integer> computeMajorityLabel() {
+		refreshLabelData();
 		L maxLabel = null;
 		int maxLabelCount = 0;
-		for (Entry<L, Set<Integer>> entry : this.labeledData.entrySet()) {
-			if (entry.getValue().size() > maxLabelCount) {
+		for (Entry<L, BitSet> entry : this.labeledData.entrySet()) {
+			int labelCount = entry.getValue().cardinality();
+			if (labelCount > maxLabelCount) {
 				maxLabel = entry.getKey();
-				maxLabelCount = entry.getValue().size();
+				maxLabelCount = labelCount;
 			}
 		}
 		
 		return new Pair<L, Integer>(maxLabel, maxLabelCount);
 	}
 	
+	/**
+	 * @param fn
+	 * @param maxThreads
+	 * @return the results of applying fn to each datum (in order of datum 
+	 * id), computed in small chunks on a shared work-stealing pool of at most
+	 * maxThreads threads (see ThreadMapper.runChunked)
+	 */
 	public <T> List<T> map(final ThreadMapper.Fn<D, T> fn, int maxThreads) {
-		List<DataSet<D, L>> threadDataPartition  = this.makePartition(maxThreads, this.datumTools.getDataTools().getGlobalRandom());
-		
-		ThreadMapper<DataSet<D, L>, List<T>> threadMapper 
-		= new ThreadMapper<DataSet<D, L>, List<T>>(new ThreadMapper.Fn<DataSet<D, L>, List<T>>() {
-			@Override
-			public List<T> apply(DataSet<D, L> dataSet) {
-				List<T> results = new ArrayList<T>(dataSet.size());
-				for (D datum : dataSet) {
-					T result = fn.apply(datum);
-					results.add(result);
-				}
-				
-				return results;
-			}
-		});
+		ThreadMapper<D, T> threadMapper = new ThreadMapper<D, T>(fn);
+		return threadMapper.runChunked(Collections.unmodifiableList(this.data), maxThreads);
+	}
 	
-		List<List<T>> threadResults = threadMapper.run(threadDataPartition, maxThreads);
-		List<T> results = new ArrayList<T>(size());
-		for (List<T> threadResult : threadResults)
-			results.addAll(threadResult);
-		
-		return results;
+	public boolean deserialize(BufferedReader reader, int idOffset) throws IOException {
+		return deserialize(reader, idOffset, 1);
 	}
 	
-	public boolean deserialize(BufferedReader reader, int idOffset) throws IOException {		
+	/**
+	 * @param file file of UTF-8 JSON lines (gzip compressed if the file name 
+	 * ends with '.gz')
+	 * @param idOffset
+	 * @param maxThreads
+	 * @return true if the datums were deserialized from the file
+	 * @throws IOException
+	 */
+	public boolean deserialize(File file, int idOffset, int maxThreads) throws IOException {
+		InputStream stream = new FileInputStream(file);
+		if (file.getName().endsWith(".gz"))
+			stream = new GZIPInputStream(stream, SERIALIZATION_BUFFER_SIZE);
+		return deserialize(new BufferedReader(new InputStreamReader(stream, Charset.forName("UTF-8")), SERIALIZATION_BUFFER_SIZE), idOffset, maxThreads);
+	}
+	
+	/**
+	 * Deserializes datums from JSON lines.  The calling thread reads batches
+	 * of lines and hands them to maxThreads threads that parse them into 
+	 * datums, and the parsed batches are added in input order so that ids are 
+	 * assigned consecutively from idOffset (as in the single-threaded case).
+	 * 
+	 * @param reader
+	 * @param idOffset
+	 * @param maxThreads
+	 * @return true if the datums were deserialized
+	 * @throws IOException
+	 */
+	public boolean deserialize(BufferedReader reader, int idOffset, int maxThreads) throws IOException {
+		if (maxThreads <= 1) {
+			try {
+				String line = null;
+				int id = idOffset;
+				while ((line = reader.readLine()) != null) {
+					JSONObject json = new JSONObject(line);
+					D datum = this.datumTools.datumFromJSON(json);
+					
+					datum.id = id;
+					id++;
+					
+					if (!add(datum))
+						return false;
+				}
+				reader.close();
+				return true;
+			} catch (JSONException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		
+		ExecutorService threadPool = Executors.newFixedThreadPool(maxThreads);
+		LinkedList<Future<List<D>>> batches = new LinkedList<Future<List<D>>>();
+		int id = idOffset;
 		try {
 			String line = null;
-			int id = idOffset;
+			List<String> lines = new ArrayList<String>(SERIALIZATION_BATCH_SIZE);
 			while ((line = reader.readLine()) != null) {
-				JSONObject json = new JSONObject(line);
-				D datum = this.datumTools.datumFromJSON(json);
+				lines.add(line);
+				if (lines.size() < SERIALIZATION_BATCH_SIZE)
+					continue;
 				
-				datum.id = id;
-				id++;
+				batches.add(threadPool.submit(new DatumDeserializer(lines)));
+				lines = new ArrayList<String>(SERIALIZATION_BATCH_SIZE);
 				
-				if (!add(datum))
+				// Bound the number of batches in memory
+				if (batches.size() >= SERIALIZATION_BATCHES_PER_THREAD*maxThreads) {
+					id = addDeserializedBatch(batches.removeFirst().get(), id);
+					if (id < 0)
+						return false;
+				}
+			}
+			
+			if (lines.size() > 0)
+				batches.add(threadPool.submit(new DatumDeserializer(lines)));
+			
+			while (!batches.isEmpty()) {
+				id = addDeserializedBatch(batches.removeFirst().get(), id);
+				if (id < 0)
 					return false;
 			}
+			
 			reader.close();
 			return true;
-		} catch (JSONException e) {
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (ExecutionException e) {
 			e.printStackTrace();
 			return false;
+		} finally {
+			threadPool.shutdownNow();
+		}
+	}
+	
+	private int addDeserializedBatch(List<D> batch, int id) {
+		for (D datum : batch) {
+			datum.id = id;
+			id++;
+			
+			if (!add(datum))
+				return -1;
 		}
+		return id;
 	}
 	
 	public boolean serialize(Writer writer) throws IOException {
-		for (D datum : this) {
-			JSONObject json = this.datumTools.datumToJSON(datum);
-			writer.write(json.toString());
-			writer.write("\n");
+		return serialize(writer, 1);
+	}
+	
+	/**
+	 * @param file file to which UTF-8 JSON lines are written (gzip compressed 
+	 * if the file name ends with '.gz')
+	 * @param maxThreads
+	 * @return true if the datums were serialized to the file
+	 * @throws IOException
+	 */
+	public boolean serialize(File file, int maxThreads) throws IOException {
+		OutputStream stream = new FileOutputStream(file);
+		if (file.getName().endsWith(".gz"))
+			stream = new GZIPOutputStream(stream, SERIALIZATION_BUFFER_SIZE);
+		return serialize(new BufferedWriter(new OutputStreamWriter(stream, Charset.forName("UTF-8")), SERIALIZATION_BUFFER_SIZE), maxThreads);
+	}
+	
+	/**
+	 * Serializes the datums to JSON lines.  Batches of datums are encoded by
+	 * maxThreads threads, and the encoded batches are written by the calling 
+	 * thread in order.
+	 * 
+	 * @param writer
+	 * @param maxThreads
+	 * @return true if the datums were serialized
+	 * @throws IOException
+	 */
+	public boolean serialize(Writer writer, int maxThreads) throws IOException {
+		if (maxThreads <= 1) {
+			for (D datum : this) {
+				JSONObject json = this.datumTools.datumToJSON(datum);
+				writer.write(json.toString());
+				writer.write("\n");
+			}
+			writer.close();
+			
+			return true;
 		}
-		writer.close();
 		
+		ExecutorService threadPool = Executors.newFixedThreadPool(maxThreads);
+		LinkedList<Future<String>> batches = new LinkedList<Future<String>>();
+		try {
+			for (int i = 0; i < this.data.size(); i += SERIALIZATION_BATCH_SIZE) {
+				List<D> batch = this.data.subList(i, Math.min(this.data.size(), i + SERIALIZATION_BATCH_SIZE));
+				batches.add(threadPool.submit(new DatumSerializer(batch)));
+				
+				if (batches.size() >= SERIALIZATION_BATCHES_PER_THREAD*maxThreads)
+					writer.write(batches.removeFirst().get());
+			}
+			
+			while (!batches.isEmpty())
+				writer.write(batches.removeFirst().get());
+			
+			writer.close();
+			return true;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			threadPool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Serializes the datums to a binary file of compressed blocks, which 
+	 * are encoded by maxThreads threads and written in order.  The file has
+	 * the format:
+	 * 
+	 * [magic (int)][version (int)]
+	 * [block 1]...[block n] (see DatumBlockEncoder)
+	 * [block 1 position (long)][block 1 first datum (int)]...
+	 * [block n position (long)][block n first datum (int)]
+	 * [block count (int)][datum count (int)][block index position (long)]
+	 * 
+	 * The block index at the end of the file allows deserializeBinary to decode 
+	 * blocks in parallel, or to decode only the blocks for a range of datums.
+	 * 
+	 * If serialization fails, the partially written file is deleted.
+	 * 
+	 * @param file
+	 * @param maxThreads
+	 * @return true if the datums were serialized
+	 * @throws IOException
+	 */
+	public boolean serializeBinary(File file, int maxThreads) throws IOException {
+		DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), SERIALIZATION_BUFFER_SIZE));
+		ExecutorService threadPool = Executors.newFixedThreadPool(Math.max(1, maxThreads));
+		LinkedList<Future<byte[]>> blocks = new LinkedList<Future<byte[]>>();
+		List<Long> blockPositions = new ArrayList<Long>();
+		long position = 8;
+		boolean serialized = false;
+		try {
+			writer.writeInt(BINARY_MAGIC);
+			writer.writeInt(BINARY_VERSION);
+			
+			for (int i = 0; i < this.data.size(); i += BINARY_BLOCK_SIZE) {
+				List<D> batch = this.data.subList(i, Math.min(this.data.size(), i + BINARY_BLOCK_SIZE));
+				blocks.add(threadPool.submit(new DatumBlockEncoder(batch)));
+				
+				if (blocks.size() >= SERIALIZATION_BATCHES_PER_THREAD*maxThreads)
+					position = writeBinaryBlock(writer, blocks.removeFirst().get(), position, blockPositions);
+			}
+			
+			while (!blocks.isEmpty())
+				position = writeBinaryBlock(writer, blocks.removeFirst().get(), position, blockPositions);
+			
+			for (int i = 0; i < blockPositions.size(); i++) {
+				writer.writeLong(blockPositions.get(i));
+				writer.writeInt(i*BINARY_BLOCK_SIZE);
+			}
+			
+			writer.writeInt(blockPositions.size());
+			writer.writeInt(this.data.size());
+			writer.writeLong(position);
+			writer.close();
+			serialized = true;
+			return true;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			threadPool.shutdownNow();
+			if (!serialized) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					// The error that stopped serialization is the one reported
+				}
+				file.delete();
+			}
+		}
+	}
+	
+	private long writeBinaryBlock(DataOutputStream writer, byte[] block, long position, List<Long> blockPositions) throws IOException {
+		blockPositions.add(position);
+		writer.write(block);
+		return position + block.length;
+	}
+	
+	public boolean deserializeBinary(File file, int idOffset, int maxThreads) throws IOException {
+		return deserializeBinary(file, idOffset, 0, Integer.MAX_VALUE, maxThreads);
+	}
+	
+	/**
+	 * Deserializes the datums at positions startDatum (inclusive) through 
+	 * endDatum (exclusive) of a file written by serializeBinary.  Only the 
+	 * blocks containing those datums are read, and they are decoded by 
+	 * maxThreads threads.  The datum at position i is given id idOffset + i, 
+	 * so that datums get the same ids regardless of which range is loaded.
+	 * 
+	 * @param file
+	 * @param idOffset
+	 * @param startDatum
+	 * @param endDatum
+	 * @param maxThreads
+	 * @return true if the datums were deserialized
+	 * @throws IOException
+	 */
+	public boolean deserializeBinary(File file, int idOffset, int startDatum, int endDatum, int maxThreads) throws IOException {
+		RandomAccessFile fileAccess = new RandomAccessFile(file, "r");
+		FileChannel channel = fileAccess.getChannel();
+		ExecutorService threadPool = Executors.newFixedThreadPool(Math.max(1, maxThreads));
+		try {
+			ByteBuffer header = readFully(channel, 0, 8);
+			if (header.getInt() != BINARY_MAGIC || header.getInt() != BINARY_VERSION)
+				return false;
+			
+			ByteBuffer footer = readFully(channel, channel.size() - 16, 16);
+			int blockCount = footer.getInt();
+			int datumCount = footer.getInt();
+			long indexPosition = footer.getLong();
+			ByteBuffer index = readFully(channel, indexPosition, 12*blockCount);
+			long[] blockPositions = new long[blockCount];
+			int[] blockStarts = new int[blockCount + 1];
+			for (int i = 0; i < blockCount; i++) {
+				blockPositions[i] = index.getLong();
+				blockStarts[i] = index.getInt();
+			}
+			blockStarts[blockCount] = datumCount;
+			
+			LinkedList<Future<List<D>>> blocks = new LinkedList<Future<List<D>>>();
+			LinkedList<Integer> blockIndices = new LinkedList<Integer>();
+			for (int i = 0; i < blockCount; i++) {
+				if (blockStarts[i + 1] <= startDatum || blockStarts[i] >= endDatum)
+					continue;
+				
+				blocks.add(threadPool.submit(new DatumBlockDecoder(channel, blockPositions[i])));
+				blockIndices.add(i);
+				
+				if (blocks.size() >= SERIALIZATION_BATCHES_PER_THREAD*maxThreads) {
+					if (!addDecodedBlock(blocks.removeFirst().get(), blockStarts[blockIndices.removeFirst()], idOffset, startDatum, endDatum))
+						return false;
+				}
+			}
+			
+			while (!blocks.isEmpty()) {
+				if (!addDecodedBlock(blocks.removeFirst().get(), blockStarts[blockIndices.removeFirst()], idOffset, startDatum, endDatum))
+					return false;
+			}
+			
+			return true;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (ExecutionException e) {
+			// Blocks that can't be read (for example, if the file is truncated) 
+			// are reported like other read errors
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			e.printStackTrace();
+			return false;
+		} finally {
+			threadPool.shutdownNow();
+			fileAccess.close();
+		}
+	}
+	
+	private boolean addDecodedBlock(List<D> block, int blockStart, int idOffset, int startDatum, int endDatum) {
+		for (int i = 0; i < block.size(); i++) {
+			int datumIndex = blockStart + i;
+			if (datumIndex < startDatum || datumIndex >= endDatum)
+				continue;
+			
+			D datum = block.get(i);
+			datum.id = idOffset + datumIndex;
+			if (!add(datum))
+				return false;
+		}
 		return true;
 	}
 	
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0)
+				throw new EOFException();
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
 	public <T extends Datum<Boolean>> DataSet<T, Boolean> makeBinary(Context<T, Boolean> context) {
 		return makeBinary(null, context);
 	}
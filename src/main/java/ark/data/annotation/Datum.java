@@ -18,11 +18,16 @@
 
 package ark.data.annotation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import ark.data.Context;
@@ -54,6 +59,7 @@ import ark.data.feature.fn.FnAffix;
 import ark.data.feature.fn.FnComposite;
 import ark.data.feature.fn.FnFilter;
 import ark.data.feature.fn.FnGazetteerFilter;
+import ark.data.feature.fn.FnGazetteerMatch;
 import ark.data.feature.fn.FnHead;
 import ark.data.feature.fn.FnNGramContext;
 import ark.data.feature.fn.FnNGramDocument;
@@ -201,6 +207,8 @@ public abstract class Datum<L> {
 			C getCluster(D datum);
 		}
 		
+		private static final Charset BINARY_CHARSET = Charset.forName("UTF-8");
+		
 		protected DataTools dataTools;
 		
 		private Map<String, TokenSpanExtractor<D, L>> tokenSpanExtractors;
@@ -291,6 +299,7 @@ public abstract class Datum<L> {
 			addGenericTokenSpanFn(new FnNGramDocument());
 			addGenericTokenSpanFn(new FnNGramInside());
 			addGenericTokenSpanFn(new FnNGramSentence());
+			addGenericTokenSpanFn(new FnGazetteerMatch());
 			
 			addGenericTokenSpanStrFn(new FnComposite.FnCompositeTokenSpanTokenSpanStr());
 			addGenericTokenSpanStrFn(new FnComposite.FnCompositeTokenSpanStrStr());
@@ -465,6 +474,32 @@ public abstract class Datum<L> {
 			return makeBinaryDatum(datum, this.getLabelIndicator(labelIndicator));
 		}
 		
+		/**
+		 * Writes the datum in the binary format read by datumFromBinary (see
+		 * DataSet.serializeBinary).  By default, the datum's JSON is written
+		 * as length-prefixed UTF-8, but implementations can override this 
+		 * and datumFromBinary with a more compact encoding.
+		 * 
+		 * @param datum
+		 * @param out
+		 * @throws IOException
+		 */
+		public void datumToBinary(D datum, DataOutput out) throws IOException {
+			byte[] json = datumToJSON(datum).toString().getBytes(BINARY_CHARSET);
+			out.writeInt(json.length);
+			out.write(json);
+		}
+		
+		public D datumFromBinary(DataInput in) throws IOException {
+			byte[] json = new byte[in.readInt()];
+			in.readFully(json);
+			try {
+				return datumFromJSON(new JSONObject(new String(json, BINARY_CHARSET)));
+			} catch (JSONException e) {
+				throw new IOException(e);
+			}
+		}
+		
 		public abstract L labelFromString(String str);
 		public abstract JSONObject datumToJSON(D datum);
 		public abstract D datumFromJSON(JSONObject json);
@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.Stack;
 import ark.util.Pair;
 import ark.util.StringSerializable;
+import ark.util.TreeIndex;
 
 /**
  * Constituency parse represents a constituency parse for 
@@ -156,9 +157,89 @@ public class ConstituencyParse implements StringSerializable {
 		}
 	}
 
+	/**
+	 * ConstituentIndex is a flattened representation of the parse, with
+	 * the constituents numbered in pre-order, a TreeIndex of their parents
+	 * for finding paths, and a table from token indices to the leaves that
+	 * start at them.
+	 */
+	private class ConstituentIndex {
+		private Constituent[] nodes;
+		private Map<Constituent, Integer> nodeIndices;
+		private int[] tokenLeaves; // Node index of the leaf starting at each token (-1 if none)
+		private TreeIndex tree;
+		
+		public ConstituentIndex() {
+			List<Constituent> nodes = new ArrayList<Constituent>();
+			List<Integer> parents = new ArrayList<Integer>();
+			this.nodeIndices = new HashMap<Constituent, Integer>();
+			
+			int maxTokenIndex = -1;
+			if (root != null) {
+				Stack<Pair<Constituent, Integer>> toVisit = new Stack<Pair<Constituent, Integer>>();
+				toVisit.push(new Pair<Constituent, Integer>(root, -1));
+				while (!toVisit.isEmpty()) {
+					Pair<Constituent, Integer> current = toVisit.pop();
+					Constituent constituent = current.getFirst();
+					int node = nodes.size();
+					nodes.add(constituent);
+					parents.add(current.getSecond());
+					this.nodeIndices.put(constituent, node);
+					
+					if (constituent.isLeaf()) {
+						if (constituent.tokenSpan != null)
+							maxTokenIndex = Math.max(maxTokenIndex, constituent.tokenSpan.getStartTokenIndex());
+					} else {
+						Constituent[] children = constituent.getChildren();
+						for (int i = children.length - 1; i >= 0; i--)
+							toVisit.push(new Pair<Constituent, Integer>(children[i], node));
+					}
+				}
+			}
+			
+			this.nodes = nodes.toArray(new Constituent[nodes.size()]);
+			int[] parentArray = new int[parents.size()];
+			for (int i = 0; i < parentArray.length; i++)
+				parentArray[i] = parents.get(i);
+			this.tree = (this.nodes.length == 0) ? null : new TreeIndex(parentArray, 0);
+			
+			// Leaves are assigned in the same order that getTokenConstituent used to search them
+			this.tokenLeaves = new int[maxTokenIndex + 1];
+			for (int i = 0; i < this.tokenLeaves.length; i++)
+				this.tokenLeaves[i] = -1;
+			for (int i = this.nodes.length - 1; i >= 0; i--) {
+				if (!this.nodes[i].isLeaf() || this.nodes[i].tokenSpan == null)
+					continue;
+				int tokenIndex = this.nodes[i].tokenSpan.getStartTokenIndex();
+				if (tokenIndex >= 0 && this.tokenLeaves[tokenIndex] < 0)
+					this.tokenLeaves[tokenIndex] = i;
+			}
+		}
+		
+		public int getTokenLeaf(int tokenIndex) {
+			if (tokenIndex < 0 || tokenIndex >= this.tokenLeaves.length)
+				return -1;
+			return this.tokenLeaves[tokenIndex];
+		}
+		
+		public int getNode(Constituent constituent) {
+			Integer node = this.nodeIndices.get(constituent);
+			return (node == null) ? -1 : node;
+		}
+		
+		public ConstituentPath getPath(int source, int target) {
+			int[] pathNodes = this.tree.getPath(source, target);
+			List<Constituent> path = new ArrayList<Constituent>(pathNodes.length);
+			for (int i = 0; i < pathNodes.length; i++)
+				path.add(this.nodes[pathNodes[i]]);
+			return new ConstituentPath(path);
+		}
+	}
+	
 	private DocumentNLP document;
 	private int sentenceIndex;
 	private Constituent root;
+	private volatile ConstituentIndex constituentIndex; // Built on first use
 	
 	public ConstituencyParse(DocumentNLP document, int sentenceIndex, Constituent root) {
 		this.document = document;
@@ -188,6 +269,18 @@ public class ConstituencyParse implements StringSerializable {
 	 * at tokenIndex
 	 */
 	public Constituent getTokenConstituent(int tokenIndex) {
+		ConstituentIndex constituentIndex = getConstituentIndex();
+		int leaf = constituentIndex.getTokenLeaf(tokenIndex);
+		return (leaf < 0) ? null : constituentIndex.nodes[leaf];
+	}
+	
+	/**
+	 * @param tokenIndex
+	 * @return the constituent found by searching the parse from the root 
+	 * for a leaf that starts at tokenIndex, without the constituent index 
+	 * (getTokenConstituent gives the same result)
+	 */
+	Constituent searchTokenConstituent(int tokenIndex) {
 		Stack<Constituent> toVisit = new Stack<Constituent>();
 		toVisit.add(this.root);
 		while (!toVisit.isEmpty()) {
@@ -204,17 +297,54 @@ public class ConstituencyParse implements StringSerializable {
 		}
 		
 		return null;
-		
 	}
 	
 	public ConstituentPath getPath(int sourceTokenIndex, int targetTokenIndex) {
-		return getPath(getTokenConstituent(sourceTokenIndex), getTokenConstituent(targetTokenIndex));
+		ConstituentIndex constituentIndex = getConstituentIndex();
+		int source = constituentIndex.getTokenLeaf(sourceTokenIndex);
+		int target = constituentIndex.getTokenLeaf(targetTokenIndex);
+		if (source < 0 || target < 0)
+			return null;
+		return constituentIndex.getPath(source, target);
+	}
+	
+	/**
+	 * @param sourceTokenIndex
+	 * @param targetTokenIndex
+	 * @return the number of constituents on the path returned by getPath, 
+	 * or -1 if there is no path
+	 */
+	public int getPathLength(int sourceTokenIndex, int targetTokenIndex) {
+		ConstituentIndex constituentIndex = getConstituentIndex();
+		int source = constituentIndex.getTokenLeaf(sourceTokenIndex);
+		int target = constituentIndex.getTokenLeaf(targetTokenIndex);
+		if (source < 0 || target < 0)
+			return -1;
+		return constituentIndex.tree.getDistance(source, target) + 1;
 	}
 	
 	public ConstituentPath getPath(Constituent source, Constituent target) {
 		if (source == null || target == null)
 			return null;
 		
+		// Constituents in this parse's tree have a unique path through the index
+		ConstituentIndex constituentIndex = getConstituentIndex();
+		int sourceNode = constituentIndex.getNode(source);
+		int targetNode = constituentIndex.getNode(target);
+		if (sourceNode >= 0 && targetNode >= 0)
+			return constituentIndex.getPath(sourceNode, targetNode);
+		
+		return searchPath(source, target);
+	}
+	
+	/**
+	 * @param source
+	 * @param target
+	 * @return the path found by searching the parse from the target, 
+	 * without the constituent index (getPath uses this for constituents 
+	 * that aren't in this parse's tree)
+	 */
+	ConstituentPath searchPath(Constituent source, Constituent target) {
 		Stack<Constituent> toVisit = new Stack<Constituent>();
 		toVisit.push(target);
 		Map<Constituent, Constituent> paths = new HashMap<Constituent, Constituent>();
@@ -251,6 +381,17 @@ public class ConstituencyParse implements StringSerializable {
 		return null;
 	}
 	
+	private ConstituentIndex getConstituentIndex() {
+		if (this.constituentIndex == null) {
+			synchronized (this) {
+				if (this.constituentIndex == null)
+					this.constituentIndex = new ConstituentIndex();
+			}
+		}
+		
+		return this.constituentIndex;
+	}
+	
 	public boolean isAbove(Constituent source, Constituent target) {
 		if (source == null || target == null)
 			return false;
@@ -372,8 +513,10 @@ public class ConstituencyParse implements StringSerializable {
 					constituent = this.new Constituent(constituentParts.getFirst(), constituentParts.getSecond().toArray(new Constituent[0]));
 				}
 				
-				if (constituents.isEmpty())
+				if (constituents.isEmpty()) {
 					this.root = constituent;
+					this.constituentIndex = null;
+				}
 				else
 					constituents.peek().getSecond().add(constituent);
 			} else {
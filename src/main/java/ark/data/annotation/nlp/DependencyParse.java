@@ -24,6 +24,7 @@ import java.util.regex.Pattern;
 
 import ark.util.Pair;
 import ark.util.StringSerializable;
+import ark.util.TreeIndex;
 
 /**
  * DependencyParse represents a typed dependency parse for a sentence 
@@ -226,6 +227,8 @@ public class DependencyParse implements StringSerializable {
 	private int sentenceIndex;
 	private Node root;
 	private Node[] tokenNodes;
+	private volatile TreeIndex pathIndex; // Built on first use by getPath if the dependencies form a tree (node tokenNodes.length is the root)
+	private volatile boolean pathIndexBuilt;
 	
 	public DependencyParse(DocumentNLP document, int sentenceIndex, Node root, Node[] tokenNodes) {
 		this.document = document;
@@ -266,6 +269,27 @@ public class DependencyParse implements StringSerializable {
 		return null;
 	}
 	
+	/**
+	 * @param sourceTokenIndex
+	 * @param targetTokenIndex
+	 * @return the number of tokens on the path returned by getPath, or
+	 * -1 if there is no path.  This takes constant time if the 
+	 * dependencies form a tree.
+	 */
+	public int getPathTokenLength(int sourceTokenIndex, int targetTokenIndex) {
+		Node source = getNode(sourceTokenIndex);
+		Node target = getNode(targetTokenIndex);
+		if (source == null || target == null)
+			return -1;
+		
+		TreeIndex pathIndex = getPathIndex();
+		if (pathIndex != null)
+			return pathIndex.getDistance(getIndexNode(source), getIndexNode(target)) + 1;
+		
+		DependencyPath path = getPath(sourceTokenIndex, targetTokenIndex);
+		return (path == null) ? -1 : path.getTokenLength();
+	}
+	
 	public DependencyPath getPath(int sourceTokenIndex, int targetTokenIndex) {
 		
 		Node source = getNode(sourceTokenIndex);
@@ -274,6 +298,36 @@ public class DependencyParse implements StringSerializable {
 		if (source == null || target == null)
 			return null;
 		
+		// Paths in a tree are unique, so they can be read off the path index
+		TreeIndex pathIndex = getPathIndex();
+		if (pathIndex != null) {
+			int[] pathNodes = pathIndex.getPath(getIndexNode(source), getIndexNode(target));
+			List<Node> path = new ArrayList<Node>(pathNodes.length);
+			for (int i = 0; i < pathNodes.length; i++)
+				path.add(getIndexNode(pathNodes[i]));
+			return new DependencyPath(path);
+		}
+		
+		return searchPath(source, target);
+	}
+	
+	/**
+	 * @param sourceTokenIndex
+	 * @param targetTokenIndex
+	 * @return the path found by searching the parse from the target, 
+	 * without the path index (getPath uses this when the dependencies 
+	 * don't form a tree)
+	 */
+	DependencyPath searchPath(int sourceTokenIndex, int targetTokenIndex) {
+		Node source = getNode(sourceTokenIndex);
+		Node target = getNode(targetTokenIndex);
+		if (source == null || target == null)
+			return null;
+		
+		return searchPath(source, target);
+	}
+	
+	private DependencyPath searchPath(Node source, Node target) {
 		Stack<Node> toVisit = new Stack<Node>();
 		Map<Node, Node> paths = new HashMap<Node, Node>();
 		
@@ -314,6 +368,62 @@ public class DependencyParse implements StringSerializable {
 		return null;
 	}
 	
+	private int getIndexNode(Node node) {
+		return (node == this.root) ? this.tokenNodes.length : node.getTokenIndex();
+	}
+	
+	private Node getIndexNode(int node) {
+		return (node == this.tokenNodes.length) ? this.root : this.tokenNodes[node];
+	}
+	
+	/**
+	 * @return an index of the parse for computing paths in time 
+	 * proportional to their lengths, or null if the dependencies don't
+	 * form a tree (in which case paths are found by search)
+	 */
+	private TreeIndex getPathIndex() {
+		if (!this.pathIndexBuilt) {
+			synchronized (this) {
+				if (!this.pathIndexBuilt) {
+					this.pathIndex = buildPathIndex();
+					this.pathIndexBuilt = true;
+				}
+			}
+		}
+		
+		return this.pathIndex;
+	}
+	
+	private TreeIndex buildPathIndex() {
+		if (this.tokenNodes == null || this.tokenNodes.length == 0)
+			return null;
+		
+		// Each token in the parse must have a single governor
+		int rootNode = this.tokenNodes.length;
+		int[] parents = new int[rootNode + 1];
+		for (int i = 0; i < this.tokenNodes.length; i++) {
+			if (this.tokenNodes[i] == null) {
+				parents[i] = -1;
+				continue;
+			}
+			
+			Dependency[] governors = this.tokenNodes[i].getGovernors();
+			if (governors.length != 1)
+				return null;
+			int governor = governors[0].getGoverningTokenIndex();
+			if (governor >= this.tokenNodes.length || (governor >= 0 && this.tokenNodes[governor] == null))
+				return null;
+			parents[i] = (governor < 0) ? rootNode : governor;
+		}
+		parents[rootNode] = -1;
+		
+		// The root must reach every token (no cycles)
+		TreeIndex pathIndex = new TreeIndex(parents, rootNode);
+		if (!pathIndex.isConnected())
+			return null;
+		return pathIndex;
+	}
+	
 	public List<Dependency> getGoverningDependencies(int index) {
 		Node node = getNode(index);
 		List<Dependency> governors = new ArrayList<Dependency>();		
@@ -396,6 +506,8 @@ public class DependencyParse implements StringSerializable {
 			
 		this.root =  this.new Node(-1, new Dependency[0], nodesToDeps.get(-1).getSecond().toArray(new Dependency[0]));
 		this.tokenNodes = tokenNodes;
+		this.pathIndex = null;
+		this.pathIndexBuilt = false;
 				
 		return true;
 	}
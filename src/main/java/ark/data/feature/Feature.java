@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import ark.data.Context;
 import ark.data.annotation.Datum;
@@ -30,6 +31,7 @@ import ark.parse.ARKParsableFunction;
 import ark.parse.Assignment;
 import ark.parse.AssignmentList;
 import ark.parse.Obj;
+import ark.util.ThreadMapper;
 
 /**
  * Feature represents an abstract feature to be computed on data and
@@ -56,8 +58,36 @@ import ark.parse.Obj;
  * @param <L> datum label type
  */
 public abstract class Feature<D extends Datum<L>, L> extends ARKParsableFunction {
+	/**
+	 * InitObserver accumulates the statistics that a feature needs from 
+	 * each datum to initialize itself, so that several features can be 
+	 * initialized from a single pass over a data set (see 
+	 * FeaturizedDataSet.addFeatures).
+	 *
+	 * @param <D> datum type
+	 */
+	public interface InitObserver<D> {
+		/**
+		 * Called once for each datum, possibly from several threads at once
+		 */
+		void observe(D datum);
+		
+		/**
+		 * Called after every datum has been observed
+		 * @return true if the feature has been initialized
+		 */
+		boolean finish();
+	}
+	
 	protected Context<D, L> context;
 	
+	/**
+	 * Set while the default computeVector(D, int, FeatureVectorBuffer) is 
+	 * calling computeVector(D, int, Map) on the current thread, so that a 
+	 * feature that overrides neither method fails instead of recursing 
+	 */
+	private final ThreadLocal<Boolean> computingMapVector = new ThreadLocal<Boolean>();
+	
 	/**
 	 * @param dataSet
 	 * @return true if the feature has been initialized for the dataSet
@@ -65,11 +95,89 @@ public abstract class Feature<D extends Datum<L>, L> extends ARKParsableFunction
 	public abstract boolean init(FeaturizedDataSet<D, L> dataSet);
 	
 	/**
+	 * @param dataSet
+	 * @return an observer that initializes the feature for the dataSet from 
+	 * a pass over its datums, or null if the feature must be initialized by
+	 * init.  Features that return observers can implement init with 
+	 * initFromObserver.
+	 */
+	public InitObserver<D> makeInitObserver(FeaturizedDataSet<D, L> dataSet) {
+		return null;
+	}
+	
+	/**
+	 * Called when the feature is added to a data set (whether or not it was
+	 * initialized on that data set).  Features that depend on other 
+	 * features in the data set can override this to find them.
+	 * 
+	 * @param dataSet
+	 */
+	protected void addedToDataSet(FeaturizedDataSet<D, L> dataSet) {
+		
+	}
+	
+	/**
+	 * @param dataSet
+	 * @return true if the feature has been initialized for the dataSet by 
+	 * passing each datum to an observer from makeInitObserver (false if
+	 * makeInitObserver doesn't return an observer)
+	 */
+	protected boolean initFromObserver(FeaturizedDataSet<D, L> dataSet) {
+		final InitObserver<D> observer = makeInitObserver(dataSet);
+		if (observer == null)
+			return false;
+		
+		dataSet.map(new ThreadMapper.Fn<D, Boolean>() {
+			@Override
+			public Boolean apply(D datum) {
+				observer.observe(datum);
+				return true;
+			}
+		});
+		
+		return observer.finish();
+	}
+	
+	/**
+	 * Implementations must override either this method or 
+	 * computeVector(D, int, FeatureVectorBuffer), since each is implemented 
+	 * in terms of the other (an IllegalStateException is thrown if neither is
+	 * overridden).  Overriding the FeatureVectorBuffer version avoids
+	 * boxing the computed indices and values.
+	 * 
 	 * @param datum
+	 * @param offset amount added to each of the feature's vector indices
+	 * @param vector map into which the values are put
 	 * @return a sparse mapping from vector indices to values of the feature
 	 * for the given datum.
 	 */
-	public abstract Map<Integer, Double> computeVector(D datum, int offset, Map<Integer, Double> vector);
+	public Map<Integer, Double> computeVector(D datum, int offset, Map<Integer, Double> vector) {
+		return computeVector(datum, offset, new FeatureVectorBuffer()).toMap(vector);
+	}
+	
+	/**
+	 * @param datum
+	 * @param offset amount added to each of the feature's vector indices
+	 * @param vector buffer to which the values are appended
+	 * @return the buffer with the values of the feature for the given datum
+	 * appended to it
+	 */
+	public FeatureVectorBuffer computeVector(D datum, int offset, FeatureVectorBuffer vector) {
+		if (this.computingMapVector.get() != null)
+			throw new IllegalStateException(getClass().getName() + " must override computeVector(D, int, Map) or computeVector(D, int, FeatureVectorBuffer)");
+		
+		Map<Integer, Double> values = null;
+		this.computingMapVector.set(Boolean.TRUE);
+		try {
+			values = computeVector(datum, offset, new HashMap<Integer, Double>());
+		} finally {
+			this.computingMapVector.remove();
+		}
+		
+		for (Entry<Integer, Double> entry : values.entrySet())
+			vector.append(entry.getKey(), entry.getValue());
+		return vector;
+	}
 	
 	/**
 	 * @return the length of the vector computed by this feature for each
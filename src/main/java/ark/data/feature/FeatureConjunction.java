@@ -18,7 +18,9 @@
 
 package ark.data.feature;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -27,8 +29,11 @@ import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools.LabelIndicator;
 import ark.parse.AssignmentList;
 import ark.parse.Obj;
-import ark.util.BidirectionalLookupTable;
+import ark.util.CountMinSketch;
 import ark.util.CounterTable;
+import ark.util.LongCounterTable;
+import ark.util.LongLookupTable;
+import ark.util.StringLookupTable;
 import ark.util.ThreadMapper;
 
 /**
@@ -39,18 +44,333 @@ import ark.util.ThreadMapper;
  * The referenced features are given by a list of feature 'referenceNames'
  * used within a FeaturizedDataSet constructed from an experiment configuration file.
  * 
+ * Each conjunction is a tuple of vocabulary indices of the referenced features, and
+ * it's packed into a long so that conjunctions can be counted and looked up without
+ * building their terms (unless the referenced vocabularies are too large for their
+ * tuples to be packed, in which case conjunctions are looked up by their terms).  
+ * The referenced features' values are taken from the data set's precomputed blocks 
+ * where possible (see FeaturizedDataSet.getFeatureValues).
+ * 
  * @author Bill McDowell
  *
  * @param <D> datum type
  * @param <L> datum label type
  */
 public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
-	private BidirectionalLookupTable<String, Integer> vocabulary;
+	/**
+	 * Vocabulary maps conjunctions to indices.  A conjunction is packed as a
+	 * mixed radix number whose digits are the referenced features' indices 
+	 * and whose radices are their vocabulary sizes, and its term is only built
+	 * from the referenced features' terms when it's asked for.  If the product
+	 * of the radices doesn't fit in a long, then conjunctions are kept as terms
+	 * instead.  
+	 * 
+	 * A vocabulary that's set from parsed terms (see setVocabularyTerm) is 
+	 * packed when it's first used, if each of its terms can be split into terms 
+	 * of the referenced features.  Otherwise, it's kept as terms.
+	 */
+	private static class Vocabulary {
+		private StringLookupTable terms; // Terms at each index (null if packed by init)
+		private Feature<?, ?>[] features;
+		private long[] radices; // Null if the conjunctions are kept as terms
+		private LongLookupTable indices; // Indices of packed conjunctions
+		private volatile boolean resolved; // True once it's known whether the conjunctions are packed
+		
+		public Vocabulary() {
+			this.terms = new StringLookupTable();
+			this.resolved = false;
+		}
+		
+		public Vocabulary(Map<String, Integer> index) {
+			this.terms = new StringLookupTable();
+			for (Entry<String, Integer> entry : index.entrySet())
+				this.terms.put(entry.getKey(), entry.getValue());
+			this.resolved = true;
+		}
+		
+		public Vocabulary(Feature<?, ?>[] features, long[] radices, LongLookupTable indices) {
+			this.features = features;
+			this.radices = radices;
+			this.indices = indices;
+			this.resolved = true;
+		}
+		
+		public boolean isResolved() {
+			return this.resolved;
+		}
+		
+		/**
+		 * Packs the parsed terms if they can be split into terms of the given
+		 * referenced features
+		 * 
+		 * @param features
+		 */
+		public synchronized void resolve(Feature<?, ?>[] features) {
+			if (this.resolved)
+				return;
+			
+			long[] radices = computeRadices(features);
+			if (radices != null) {
+				List<Map<String, Integer>> featureIndices = new ArrayList<Map<String, Integer>>(features.length);
+				for (Feature<?, ?> feature : features) {
+					Map<String, Integer> featureIndex = new HashMap<String, Integer>();
+					for (int i = 0; i < feature.getVocabularySize(); i++)
+						featureIndex.put(feature.getVocabularyTerm(i), i);
+					featureIndices.add(featureIndex);
+				}
+				
+				LongLookupTable indices = new LongLookupTable();
+				for (int i = 0; i < this.terms.size(); i++) {
+					String term = this.terms.reverseGet(i);
+					long key = (term == null) ? -1 : packTerm(term, 0, 0, 0, featureIndices, radices);
+					if (key < 0) {
+						indices = null;
+						break;
+					}
+					indices.put(key, i);
+				}
+				
+				if (indices != null) {
+					this.features = features;
+					this.radices = radices;
+					this.indices = indices;
+				}
+			}
+			
+			this.resolved = true;
+		}
+		
+		/**
+		 * @return the radices for packing conjunctions, or null if the 
+		 * conjunctions are kept as terms
+		 */
+		public long[] getRadices() {
+			return this.radices;
+		}
+		
+		public int size() {
+			return (this.terms != null) ? this.terms.size() : this.indices.size();
+		}
+		
+		public int indexOf(long key) {
+			return this.indices.indexOf(key);
+		}
+		
+		public int indexOf(String term) {
+			return this.terms.indexOf(term);
+		}
+		
+		public String getTerm(int index) {
+			if (this.terms != null)
+				return this.terms.reverseGet(index);
+			if (!this.indices.reverseContainsKey(index))
+				return null;
+			
+			long key = this.indices.reverseGet(index);
+			String[] featureTerms = new String[this.features.length];
+			for (int i = this.features.length - 1; i >= 0; i--) {
+				featureTerms[i] = this.features[i].getVocabularyTerm((int)(key % this.radices[i]));
+				key /= this.radices[i];
+			}
+			
+			StringBuilder term = new StringBuilder();
+			for (int i = 0; i < featureTerms.length; i++)
+				term.append("//").append(featureTerms[i]);
+			return term.toString();
+		}
+		
+		public boolean setTerm(int index, String term) {
+			if (this.resolved)
+				return false;
+			this.terms.put(term, index);
+			return true;
+		}
+		
+		/**
+		 * @param features
+		 * @return the features' vocabulary sizes to use as radices for packing
+		 * conjunctions, or null if the product of the sizes doesn't fit in a long
+		 */
+		public static long[] computeRadices(Feature<?, ?>[] features) {
+			long[] radices = new long[features.length];
+			long product = 1;
+			for (int i = 0; i < radices.length; i++) {
+				radices[i] = Math.max(1, features[i].getVocabularySize());
+				if (product > Long.MAX_VALUE / radices[i])
+					return null;
+				product *= radices[i];
+			}
+			return radices;
+		}
+		
+		/**
+		 * @return the packed conjunction for the part of the term from position 
+		 * on (which is split into terms of the features from featureIndex on), 
+		 * or -1 if the part can't be split.  Feature terms can contain "//", so
+		 * each place the term can be split is tried.
+		 */
+		private static long packTerm(String term, int position, int featureIndex, long key, List<Map<String, Integer>> featureIndices, long[] radices) {
+			if (featureIndex == radices.length)
+				return (position == term.length()) ? key : -1;
+			if (!term.startsWith("//", position))
+				return -1;
+			
+			int start = position + 2;
+			for (int end = start; end <= term.length(); end++) {
+				if (end < term.length() && !term.startsWith("//", end))
+					continue;
+				Integer index = featureIndices.get(featureIndex).get(term.substring(start, end));
+				if (index == null)
+					continue;
+				long packedKey = packTerm(term, end, featureIndex + 1, key*radices[featureIndex] + index, featureIndices, radices);
+				if (packedKey >= 0)
+					return packedKey;
+			}
+			
+			return -1;
+		}
+	}
+	
+	/**
+	 * ConjunctionBuffer holds the conjunctions and their values for a datum,
+	 * and extends them by one referenced feature's values at a time.  The 
+	 * conjunctions are packed if radices are given, and otherwise they're
+	 * kept as terms.
+	 */
+	private static class ConjunctionBuffer {
+		private long[] keys = new long[16];
+		private String[] terms = new String[16];
+		private double[] values = new double[16];
+		private long[] nextKeys = new long[16];
+		private String[] nextTerms = new String[16];
+		private double[] nextValues = new double[16];
+		private int size;
+		private boolean packed;
+		
+		public void reset(boolean packed) {
+			this.keys[0] = 0;
+			this.terms[0] = "";
+			this.values[0] = 1.0;
+			this.size = 1;
+			this.packed = packed;
+		}
+		
+		public void extend(FeatureVectorBuffer vector, Feature<?, ?> feature, long radix) {
+			int capacity = this.size*vector.size();
+			if (this.nextKeys.length < capacity) {
+				this.nextKeys = new long[Math.max(capacity, 2*this.nextKeys.length)];
+				this.nextTerms = new String[this.nextKeys.length];
+				this.nextValues = new double[this.nextKeys.length];
+			}
+			
+			int vocabularySize = feature.getVocabularySize();
+			int nextSize = 0;
+			for (int i = 0; i < this.size; i++) {
+				for (int j = 0; j < vector.size(); j++) {
+					int index = vector.getIndex(j);
+					if (index < 0 || index >= vocabularySize)
+						continue;
+					if (this.packed)
+						this.nextKeys[nextSize] = this.keys[i]*radix + index;
+					else
+						this.nextTerms[nextSize] = this.terms[i] + "//" + feature.getVocabularyTerm(index);
+					this.nextValues[nextSize] = this.values[i]*vector.getValue(j);
+					nextSize++;
+				}
+			}
+			
+			long[] tempKeys = this.keys;
+			String[] tempTerms = this.terms;
+			double[] tempValues = this.values;
+			this.keys = this.nextKeys;
+			this.terms = this.nextTerms;
+			this.values = this.nextValues;
+			this.nextKeys = tempKeys;
+			this.nextTerms = tempTerms;
+			this.nextValues = tempValues;
+			this.size = nextSize;
+		}
+		
+		public int size() {
+			return this.size;
+		}
+		
+		public long getKey(int i) {
+			return this.keys[i];
+		}
+		
+		public String getTerm(int i) {
+			return this.terms[i];
+		}
+		
+		/**
+		 * @param i
+		 * @return the hash code of the packed conjunction (the same as its 
+		 * Long's) or of the term, for sketching
+		 */
+		public int getCountHashCode(int i) {
+			return (this.packed) ? (int)(this.keys[i] ^ (this.keys[i] >>> 32)) : this.terms[i].hashCode();
+		}
+		
+		public double getValue(int i) {
+			return this.values[i];
+		}
+	}
+	
+	/**
+	 * ConjunctionCounter counts conjunctions for init, in a LongCounterTable
+	 * if they're packed (so that their keys aren't boxed), and in a 
+	 * CounterTable of terms otherwise.
+	 */
+	private static class ConjunctionCounter {
+		private LongCounterTable keyCounter;
+		private CounterTable<String> termCounter;
+		
+		public ConjunctionCounter(long[] radices) {
+			if (radices != null)
+				this.keyCounter = new LongCounterTable();
+			else
+				this.termCounter = new CounterTable<String>();
+		}
+		
+		public void incrementCount(ConjunctionBuffer conjunction, int i) {
+			if (this.keyCounter != null)
+				this.keyCounter.incrementCount(conjunction.getKey(i));
+			else
+				this.termCounter.incrementCount(conjunction.getTerm(i));
+		}
+		
+		public Vocabulary buildVocabulary(Feature<?, ?>[] features, long[] radices, int minCount, int maxSize) {
+			if (this.keyCounter != null) {
+				this.keyCounter.removeCountsLessThan(minCount);
+				return new Vocabulary(features, radices, this.keyCounter.buildIndex(maxSize));
+			} else {
+				this.termCounter.removeCountsLessThan(minCount);
+				return new Vocabulary(this.termCounter.buildIndex(maxSize));
+			}
+		}
+	}
+	
+	private Vocabulary vocabulary;
 	private int minFeatureOccurrence;
+	private int maxVocabularySize; // if > 0, only the most frequent conjunctions are kept
+	private double sketchError; // if > 0, error bound for a count-min sketch pre-pass that prunes rare terms before exact counting
 	private String[] featureReferences;
-	private String[] parameterNames = {"minFeatureOccurrence", "featureReferences"};
+	private String[] parameterNames = {"minFeatureOccurrence", "featureReferences", "sketchError", "maxVocabularySize"};
 	
 	private FeaturizedDataSet<D, L> dataSet; // Has other initialized features to be conjoined
+	private ThreadLocal<FeatureVectorBuffer> referencedVectors = new ThreadLocal<FeatureVectorBuffer>() {
+		@Override
+		protected FeatureVectorBuffer initialValue() {
+			return new FeatureVectorBuffer();
+		}
+	}; // Reused buffers for the values of the referenced features
+	private ThreadLocal<ConjunctionBuffer> conjunctions = new ThreadLocal<ConjunctionBuffer>() {
+		@Override
+		protected ConjunctionBuffer initialValue() {
+			return new ConjunctionBuffer();
+		}
+	};
 	
 	public FeatureConjunction() {
 		
@@ -58,61 +378,146 @@ public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
 	
 	public FeatureConjunction(Context<D, L> context) {
 		this.context = context;
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>();
+		this.vocabulary = new Vocabulary();
 	}
 	
 	@Override
 	public boolean init(FeaturizedDataSet<D, L> dataSet) {
+		if (this.sketchError <= 0 || this.minFeatureOccurrence <= 1)
+			return initFromObserver(dataSet);
+		
 		this.dataSet = dataSet;
-
-		final CounterTable<String> counter = new CounterTable<String>();
+		final Feature<?, ?>[] features = getReferencedFeatures();
+		if (features == null)
+			return false;
+		final long[] radices = Vocabulary.computeRadices(features);
+		
+		final CountMinSketch<Object> sketch = new CountMinSketch<Object>(this.sketchError);
+		dataSet.map(new ThreadMapper.Fn<D, Boolean>() {
+			@Override
+			public Boolean apply(D datum) {
+				ConjunctionBuffer conjunction = conjunctionForDatum(datum, radices);
+				for (int i = 0; i < conjunction.size(); i++)
+					sketch.incrementHashCode(conjunction.getCountHashCode(i));
+				return true;
+			}
+		});
+		
+		// Only terms that might meet the minimum occurrence are counted exactly
+		final ConjunctionCounter counter = new ConjunctionCounter(radices);
 		dataSet.map(new ThreadMapper.Fn<D, Boolean>() {
 			@Override
 			public Boolean apply(D datum) {
-				Map<String, Double> conjunction = conjunctionForDatum(datum);
-				for (String key : conjunction.keySet())
-					counter.incrementCount(key);
+				ConjunctionBuffer conjunction = conjunctionForDatum(datum, radices);
+				for (int i = 0; i < conjunction.size(); i++) {
+					if (sketch.estimateHashCode(conjunction.getCountHashCode(i)) >= minFeatureOccurrence)
+						counter.incrementCount(conjunction, i);
+				}
 				return true;
 			}
 		});
 		
-		counter.removeCountsLessThan(this.minFeatureOccurrence);
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
+		this.vocabulary = counter.buildVocabulary(features, radices, this.minFeatureOccurrence, this.maxVocabularySize);
 		
 		return true;
 	}
+	
+	@Override
+	public InitObserver<D> makeInitObserver(FeaturizedDataSet<D, L> dataSet) {
+		if (this.sketchError > 0 && this.minFeatureOccurrence > 1)
+			return null; // Sketched vocabularies need two passes
+		
+		this.dataSet = dataSet;
+		final Feature<?, ?>[] features = getReferencedFeatures();
+		if (features == null)
+			return null; // Fails in init
+		final long[] radices = Vocabulary.computeRadices(features);
+		
+		final ConjunctionCounter counter = new ConjunctionCounter(radices);
+		return new InitObserver<D>() {
+			@Override
+			public void observe(D datum) {
+				ConjunctionBuffer conjunction = conjunctionForDatum(datum, radices);
+				for (int i = 0; i < conjunction.size(); i++)
+					counter.incrementCount(conjunction, i);
+			}
+			
+			@Override
+			public boolean finish() {
+				vocabulary = counter.buildVocabulary(features, radices, minFeatureOccurrence, maxVocabularySize);
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * Keeps the data set that the feature is added to if the feature wasn't
+	 * initialized on a data set (for example, if it was deserialized), so that 
+	 * it can find the referenced features.
+	 */
+	@Override
+	protected void addedToDataSet(FeaturizedDataSet<D, L> dataSet) {
+		if (this.dataSet == null)
+			this.dataSet = dataSet;
+	}
 
 	@Override
-	public Map<Integer, Double> computeVector(D datum, int offset, Map<Integer, Double> vector) {
-		Map<String, Double> unfilteredConjunction = conjunctionForDatum(datum);
-		for (Entry<String, Double> entry : unfilteredConjunction.entrySet()) {
-			if (this.vocabulary.containsKey(entry.getKey()))
-				vector.put(this.vocabulary.get(entry.getKey()) + offset, entry.getValue());
+	public FeatureVectorBuffer computeVector(D datum, int offset, FeatureVectorBuffer vector) {
+		Vocabulary vocabulary = this.vocabulary;
+		if (!vocabulary.isResolved()) {
+			Feature<?, ?>[] features = getReferencedFeatures();
+			if (features == null)
+				return vector;
+			vocabulary.resolve(features);
+		}
+		
+		long[] radices = vocabulary.getRadices();
+		ConjunctionBuffer conjunction = conjunctionForDatum(datum, radices);
+		for (int i = 0; i < conjunction.size(); i++) {
+			int index = (radices != null) ? vocabulary.indexOf(conjunction.getKey(i)) : vocabulary.indexOf(conjunction.getTerm(i));
+			if (index >= 0)
+				vector.append(index + offset, conjunction.getValue(i));
 		}
 		
 		return vector;
 	}
 	
-	private Map<String, Double> conjunctionForDatum(D datum) {
-		Map<String, Double> conjunction = new HashMap<String, Double>();
-		conjunction.put("", 1.0);
+	/**
+	 * @param datum
+	 * @param radices
+	 * @return the conjunctions for the datum, packed with the given radices, 
+	 * or kept as terms if the radices are null
+	 */
+	private ConjunctionBuffer conjunctionForDatum(D datum, long[] radices) {
+		ConjunctionBuffer conjunction = this.conjunctions.get();
+		conjunction.reset(radices != null);
 		for (int i = 0; i < this.featureReferences.length; i++) {
 			Feature<D, L> feature = this.dataSet.getFeatureByReferenceName(this.featureReferences[i]);
-			Map<Integer, Double> values = feature.computeVector(datum, 0, new HashMap<Integer, Double>());
-			Map<Integer, String> vocab = feature.getVocabularyForIndices(values.keySet());
-			Map<String, Double> nextConjunction = new HashMap<String, Double>();
-			
-			for (Entry<String, Double> conjunctionEntry : conjunction.entrySet()) {
-				for (Entry<Integer, String> vocabEntry : vocab.entrySet()) {
-					nextConjunction.put(conjunctionEntry.getKey() + "//" + vocabEntry.getValue(), conjunctionEntry.getValue()*values.get(vocabEntry.getKey()));
-				}
-			}
-			
-			conjunction = nextConjunction;
+			FeatureVectorBuffer values = this.referencedVectors.get();
+			values.clear();
+			this.dataSet.getFeatureValues(feature, datum, values).compact();
+			conjunction.extend(values, feature, (radices != null) ? radices[i] : 0);
 		}
 		
 		return conjunction;
 	}
+	
+	/**
+	 * @return the referenced features, or null if the feature doesn't have
+	 * a data set or if a referenced feature is missing from it
+	 */
+	private Feature<?, ?>[] getReferencedFeatures() {
+		if (this.dataSet == null)
+			return null;
+		
+		Feature<?, ?>[] features = new Feature<?, ?>[this.featureReferences.length];
+		for (int i = 0; i < features.length; i++) {
+			features[i] = this.dataSet.getFeatureByReferenceName(this.featureReferences[i]);
+			if (features[i] == null)
+				return null;
+		}
+		return features;
+	}
 
 	@Override
 	public String getGenericName() {
@@ -126,13 +531,12 @@ public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
 
 	@Override
 	public String getVocabularyTerm(int index) {
-		return this.vocabulary.reverseGet(index);
+		return this.vocabulary.getTerm(index);
 	}
 
 	@Override
 	protected boolean setVocabularyTerm(int index, String term) {
-		this.vocabulary.put(term, index);
-		return true;
+		return this.vocabulary.setTerm(index, term);
 	}
 
 	@Override
@@ -144,6 +548,10 @@ public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
 	public Obj getParameterValue(String parameter) {
 		if (parameter.equals("minFeatureOccurrence"))
 			return Obj.stringValue(String.valueOf(this.minFeatureOccurrence));
+		else if (parameter.equals("sketchError"))
+			return Obj.stringValue(String.valueOf(this.sketchError));
+		else if (parameter.equals("maxVocabularySize"))
+			return Obj.stringValue(String.valueOf(this.maxVocabularySize));
 		else if (parameter.equals("featureReferences")) {
 			if (this.featureReferences == null)
 				return Obj.stringValue("");
@@ -163,6 +571,10 @@ public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
 			Obj parameterValue) {
 		if (parameter.equals("minFeatureOccurrence")) {
 		 	this.minFeatureOccurrence = Integer.valueOf(this.context.getMatchValue(parameterValue));
+		} else if (parameter.equals("sketchError")) {
+			this.sketchError = Double.valueOf(this.context.getMatchValue(parameterValue));
+		} else if (parameter.equals("maxVocabularySize")) {
+			this.maxVocabularySize = Integer.valueOf(this.context.getMatchValue(parameterValue));
 		} else if (parameter.equals("featureReferences")) {
 			this.featureReferences = this.context.getMatchValue(parameterValue).split("/");
 		} else {
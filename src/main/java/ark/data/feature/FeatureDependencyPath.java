@@ -28,9 +28,8 @@ import ark.data.annotation.nlp.DependencyParse.DependencyPath;
 import ark.data.annotation.nlp.TokenSpan;
 import ark.parse.AssignmentList;
 import ark.parse.Obj;
-import ark.util.BidirectionalLookupTable;
 import ark.util.CounterTable;
-import ark.util.ThreadMapper;
+import ark.util.StringLookupTable;
 
 /**
  * FeatureDependencyPath computes paths in dependency parse trees
@@ -46,7 +45,8 @@ import ark.util.ThreadMapper;
  *  
  * The 'minFeatureOccurrence' parameter determines the minimum number of times a
  * path p_i must appear in the full data set for it to have a component in the 
- * returned vectors.
+ * returned vectors.  If the 'maxVocabularySize' parameter is greater than 0, then
+ * only that many of the most frequent paths have components.
  * 
  * The 'useRelationTypes' parameter determines whether the dependency paths corresponding
  * to components in the returned vector should be typed.
@@ -58,41 +58,48 @@ import ark.util.ThreadMapper;
  * 
  */
 public class FeatureDependencyPath<D extends Datum<L>, L> extends Feature<D, L> {
-	protected BidirectionalLookupTable<String, Integer> vocabulary;
+	protected StringLookupTable vocabulary;
 	
 	protected int minFeatureOccurrence;
+	protected int maxVocabularySize;
 	protected Datum.Tools.TokenSpanExtractor<D, L> sourceTokenExtractor;
 	protected Datum.Tools.TokenSpanExtractor<D, L> targetTokenExtractor;
 	protected boolean useRelationTypes = true;
-	protected String[] parameterNames = {"minFeatureOccurrence", "sourceTokenExtractor", "targetTokenExtractor", "useRelationTypes"};
+	protected String[] parameterNames = {"minFeatureOccurrence", "sourceTokenExtractor", "targetTokenExtractor", "useRelationTypes", "maxVocabularySize"};
 	
 	public FeatureDependencyPath() {
 		
 	}
 	
 	public FeatureDependencyPath(Context<D, L> context) {
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>();
+		this.vocabulary = new StringLookupTable();
 		this.context = context;
 	}
 	
 	@Override
 	public boolean init(FeaturizedDataSet<D, L> dataSet) {
+		return initFromObserver(dataSet);
+	}
+	
+	@Override
+	public InitObserver<D> makeInitObserver(FeaturizedDataSet<D, L> dataSet) {
 		final CounterTable<String> counter = new CounterTable<String>();
-		dataSet.map(new ThreadMapper.Fn<D, Boolean>() {
+		return new InitObserver<D>() {
 			@Override
-			public Boolean apply(D datum) {
+			public void observe(D datum) {
 				Set<String> paths = getPathsForDatum(datum);
 				for (String path : paths) {
 					counter.incrementCount(path);
 				}
+			}
+			
+			@Override
+			public boolean finish() {
+				counter.removeCountsLessThan(minFeatureOccurrence);
+				vocabulary = new StringLookupTable(counter.buildIndex(maxVocabularySize));
 				return true;
 			}
-		});
-		
-		counter.removeCountsLessThan(this.minFeatureOccurrence);
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
-		
-		return true;
+		};
 	}
 	
 	private Set<String> getPathsForDatum(D datum){
@@ -118,27 +125,36 @@ public class FeatureDependencyPath<D extends Datum<L>, L> extends Feature<D, L>
 				|| sourceSpan.getSentenceIndex() != targetSpan.getSentenceIndex())
 			return null;
 		
-		DependencyPath shortestPath = null;
+		// Find the closest token pair by path length, and only construct its path
+		int shortestLength = -1;
+		int shortestSource = -1;
+		int shortestTarget = -1;
 		int sentenceIndex = sourceSpan.getSentenceIndex();
 		DependencyParse parse = sourceSpan.getDocument().getDependencyParse(sentenceIndex);
 		for (int i = sourceSpan.getStartTokenIndex(); i < sourceSpan.getEndTokenIndex(); i++){
 			for (int j = targetSpan.getStartTokenIndex(); j < targetSpan.getEndTokenIndex(); j++){
-				DependencyPath path = parse.getPath(i, j);
-				if (shortestPath == null || (path != null && path.getTokenLength() < shortestPath.getTokenLength()))
-					shortestPath = path;
+				int length = parse.getPathTokenLength(i, j);
+				if (length >= 0 && (shortestLength < 0 || length < shortestLength)) {
+					shortestLength = length;
+					shortestSource = i;
+					shortestTarget = j;
+				}
 			}
 		}
 
-		return shortestPath;
+		if (shortestLength < 0)
+			return null;
+		return parse.getPath(shortestSource, shortestTarget);
 	}
 	
 	@Override
-	public Map<Integer, Double> computeVector(D datum, int offset, Map<Integer, Double> vector) {
+	public FeatureVectorBuffer computeVector(D datum, int offset, FeatureVectorBuffer vector) {
 		Set<String> pathsForDatum = getPathsForDatum(datum);
 		
 		for (String path : pathsForDatum) {
-			if (this.vocabulary.containsKey(path))
-				vector.put(this.vocabulary.get(path) + offset, 1.0);		
+			int index = this.vocabulary.indexOf(path);
+			if (index >= 0)
+				vector.append(index + offset, 1.0);
 		}
 
 		return vector;
@@ -175,6 +191,8 @@ public class FeatureDependencyPath<D extends Datum<L>, L> extends Feature<D, L>
 	public Obj getParameterValue(String parameter) {
 		if (parameter.equals("minFeatureOccurrence")) 
 			return Obj.stringValue(String.valueOf(this.minFeatureOccurrence));
+		else if (parameter.equals("maxVocabularySize"))
+			return Obj.stringValue(String.valueOf(this.maxVocabularySize));
 		else if (parameter.equals("sourceTokenExtractor"))
 			return Obj.stringValue((this.sourceTokenExtractor == null) ? "" : this.sourceTokenExtractor.toString());
 		else if (parameter.equals("targetTokenExtractor"))
@@ -188,6 +206,8 @@ public class FeatureDependencyPath<D extends Datum<L>, L> extends Feature<D, L>
 	public boolean setParameterValue(String parameter, Obj parameterValue) {
 		if (parameter.equals("minFeatureOccurrence")) 
 			this.minFeatureOccurrence = Integer.valueOf(this.context.getMatchValue(parameterValue));
+		else if (parameter.equals("maxVocabularySize"))
+			this.maxVocabularySize = Integer.valueOf(this.context.getMatchValue(parameterValue));
 		else if (parameter.equals("sourceTokenExtractor"))
 			this.sourceTokenExtractor = this.context.getDatumTools().getTokenSpanExtractor(this.context.getMatchValue(parameterValue));
 		else if (parameter.equals("targetTokenExtractor"))
@@ -17,20 +17,18 @@ package ark.data.feature;
  * under the License.
  */
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import ark.data.Context;
+import ark.data.DataTools;
 import ark.data.Gazetteer;
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools.LabelIndicator;
 import ark.parse.AssignmentList;
 import ark.parse.Obj;
-import ark.util.BidirectionalLookupTable;
 import ark.util.CounterTable;
 import ark.util.Pair;
-import ark.util.ThreadMapper;
+import ark.util.StringLookupTable;
 
 /**
  * FeatureGazetteer computes gazetteer features.  For a datum d, 
@@ -59,7 +57,7 @@ public abstract class FeatureGazetteer<D extends Datum<L>, L> extends Feature<D,
 	}
 
 	protected FeatureGazetteer.ExtremumType extremumType;
-	protected BidirectionalLookupTable<String, Integer> vocabulary;
+	protected StringLookupTable vocabulary;
 	
 	protected Gazetteer gazetteer;
 	protected Datum.Tools.StringExtractor<D, L> stringExtractor;
@@ -76,7 +74,7 @@ public abstract class FeatureGazetteer<D extends Datum<L>, L> extends Feature<D,
 	}
 	
 	public FeatureGazetteer(Context<D, L> context) {
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(); 
+		this.vocabulary = new StringLookupTable(); 
 		this.context = context;
 	}
 	
@@ -85,48 +83,53 @@ public abstract class FeatureGazetteer<D extends Datum<L>, L> extends Feature<D,
 		if (!this.includeIds)
 			return true;
 		
+		return initFromObserver(dataSet);
+	}
+	
+	@Override
+	public InitObserver<D> makeInitObserver(FeaturizedDataSet<D, L> dataSet) {
+		if (!this.includeIds)
+			return null;
+		
 		final CounterTable<String> counter = new CounterTable<String>();
-		dataSet.map(new ThreadMapper.Fn<D, Boolean>() {
+		return new InitObserver<D>() {
 			@Override
-			public Boolean apply(D datum) {
+			public void observe(D datum) {
 				Pair<List<Pair<String,Double>>, Double> extremum = computeExtremum(datum);
 				if (extremum.getFirst() == null)
-					return true;
+					return;
 				for (Pair<String, Double> id : extremum.getFirst())
 					counter.incrementCount(id.getFirst());
+			}
+			
+			@Override
+			public boolean finish() {
+				vocabulary = new StringLookupTable(counter.buildIndex());
 				return true;
 			}
-		});
-		
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
-		
-		return true;
+		};
 	}
 	
 	
 	@Override
-	public Map<Integer, Double> computeVector(D datum, int offset, Map<Integer, Double> vector) {
+	public FeatureVectorBuffer computeVector(D datum, int offset, FeatureVectorBuffer vector) {
 		Pair<List<Pair<String,Double>>, Double> extremum = computeExtremum(datum);
 		if (this.includeIds) {
-			if (extremum.getFirst() == null) {
-				return new HashMap<Integer, Double>();
-			}
+			if (extremum.getFirst() == null)
+				return vector;
 			
-			vector = new HashMap<Integer, Double>(extremum.getFirst().size());
 			for (Pair<String, Double> id : extremum.getFirst()) {
-				if (!this.vocabulary.containsKey(id.getFirst()))
+				int index = this.vocabulary.indexOf(id.getFirst());
+				if (index < 0)
 					continue;
-				int index = this.vocabulary.get(id.getFirst());
 				if (this.includeWeights && id.getSecond() >= this.weightThreshold) {
-					vector.put(index + offset, extremum.getSecond()*id.getSecond());
+					vector.append(index + offset, extremum.getSecond()*id.getSecond());
 				} else {
-					vector.put(index + offset, extremum.getSecond());
+					vector.append(index + offset, extremum.getSecond());
 				}
 			}
-			
 		} else {
-			vector = new HashMap<Integer, Double>(1);
-			vector.put(offset, extremum.getSecond());
+			vector.append(offset, extremum.getSecond());
 		}
 		
 		return vector;
@@ -139,7 +142,7 @@ public abstract class FeatureGazetteer<D extends Datum<L>, L> extends Feature<D,
 				null,
 				(this.extremumType == FeatureGazetteer.ExtremumType.Maximum) ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY);
 		for (String str : strs) {
-			Pair<List<Pair<String,Double>>, Double> curExtremum = computeExtremum(str);
+			Pair<List<Pair<String,Double>>, Double> curExtremum = computeCachedExtremum(str);
 			if ((this.extremumType == FeatureGazetteer.ExtremumType.Maximum && curExtremum.getSecond() > extremum.getSecond())
 					|| (this.extremumType == FeatureGazetteer.ExtremumType.Minimum && curExtremum.getSecond() < extremum.getSecond()))
 				extremum = curExtremum;	
@@ -147,6 +150,34 @@ public abstract class FeatureGazetteer<D extends Datum<L>, L> extends Feature<D,
 		return extremum;
 	}
 	
+	/**
+	 * @param str
+	 * @return computeExtremum(str), looked up in the gazetteer cache in 
+	 * DataTools (which is shared with other features that compute the same
+	 * measure over the same gazetteer)
+	 */
+	protected Pair<List<Pair<String,Double>>, Double> computeCachedExtremum(String str) {
+		DataTools dataTools = this.context.getDatumTools().getDataTools();
+		String measure = getExtremumMeasure();
+		String cleanStr = this.gazetteer.cleanString(str);
+		
+		Pair<List<Pair<String,Double>>, Double> extremum = dataTools.lookupGazetteerCache(this.gazetteer, measure, cleanStr);
+		if (extremum == null) {
+			extremum = computeExtremum(str);
+			dataTools.addToGazetteerCache(this.gazetteer, measure, cleanStr, extremum);
+		}
+		
+		return extremum;
+	}
+	
+	/**
+	 * @return a name for the function computed by computeExtremum(String), 
+	 * which must include any parameters that affect it
+	 */
+	protected String getExtremumMeasure() {
+		return getGenericName();
+	}
+	
 	@Override
 	public String[] getParameterNames() {
 		return this.parameterNames;
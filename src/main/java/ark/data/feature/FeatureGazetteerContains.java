@@ -21,6 +21,7 @@ package ark.data.feature;
 import java.util.List;
 
 import ark.data.Context;
+import ark.data.DataTools;
 import ark.data.annotation.Datum;
 import ark.util.Pair;
 
@@ -55,6 +56,11 @@ public class FeatureGazetteerContains<D extends Datum<L>, L> extends FeatureGaze
 		}
 	}
 	
+	@Override
+	protected String getExtremumMeasure() {
+		return DataTools.GAZETTEER_CONTAINS_MEASURE;
+	}
+	
 	@Override
 	public String getGenericName() {
 		return "GazetteerContains";
@@ -22,10 +22,8 @@ package ark.data.feature;
 import java.util.List;
 
 import ark.data.Context;
-import ark.data.DataTools;
 import ark.data.annotation.Datum;
 import ark.util.Pair;
-import ark.util.StringUtil;
 
 /**
  * For datum d, string extractor S, and gazetteer G, 
@@ -43,8 +41,6 @@ import ark.util.StringUtil;
  * 
  */
 public class FeatureGazetteerEditDistance<D extends Datum<L>, L> extends FeatureGazetteer<D, L> {
-	private DataTools.StringPairMeasure editDistanceMeasure;
-	
 	public FeatureGazetteerEditDistance() {
 		
 	}
@@ -53,17 +49,11 @@ public class FeatureGazetteerEditDistance<D extends Datum<L>, L> extends Feature
 		super(context);
 		
 		this.extremumType = FeatureGazetteer.ExtremumType.Minimum;
-		
-		this.editDistanceMeasure = new DataTools.StringPairMeasure() {
-			public double compute(String str1, String str2) {
-				return StringUtil.levenshteinDistance(str1, str2)/((double)(str1.length()+str2.length()));
-			}
-		};
 	}
 	
 	@Override
 	protected Pair<List<Pair<String,Double>>, Double> computeExtremum(String str) {
-		return this.gazetteer.min(str, this.editDistanceMeasure);
+		return this.gazetteer.minNormalizedEditDistance(str);
 	}
 
 	@Override
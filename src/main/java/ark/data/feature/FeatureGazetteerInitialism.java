@@ -22,11 +22,9 @@ import java.util.Arrays;
 import java.util.List;
 
 import ark.data.Context;
-import ark.data.DataTools;
 import ark.data.annotation.Datum;
 import ark.parse.Obj;
 import ark.util.Pair;
-import ark.util.StringUtil;
 
 /**
  * For datum d, string extractor S, and gazetteer G, 
@@ -44,7 +42,6 @@ import ark.util.StringUtil;
  *
  */
 public class FeatureGazetteerInitialism<D extends Datum<L>, L> extends FeatureGazetteer<D, L> {
-	private DataTools.StringPairMeasure initialismMeasure;
 	private boolean allowPrefix;
 	
 	public FeatureGazetteerInitialism() {
@@ -56,15 +53,6 @@ public class FeatureGazetteerInitialism<D extends Datum<L>, L> extends FeatureGa
 		
 		this.extremumType = FeatureGazetteer.ExtremumType.Maximum;
 		
-		this.initialismMeasure = new DataTools.StringPairMeasure() {
-			public double compute(String str1, String str2) {
-				if (StringUtil.isInitialism(str1, str2, allowPrefix))
-					return 1.0;
-				else
-					return 0.0;
-			}
-		};
-		
 		this.allowPrefix = false;
 		
 		this.parameterNames = Arrays.copyOf(this.parameterNames, this.parameterNames.length + 1);
@@ -73,9 +61,14 @@ public class FeatureGazetteerInitialism<D extends Datum<L>, L> extends FeatureGa
 	
 	@Override
 	protected Pair<List<Pair<String,Double>>, Double> computeExtremum(String str) {
-		return this.gazetteer.max(str, this.initialismMeasure);
+		return this.gazetteer.maxInitialism(str, this.allowPrefix);
 	}
 
+	@Override
+	protected String getExtremumMeasure() {
+		return getGenericName() + "_" + this.allowPrefix;
+	}
+	
 	@Override
 	public String getGenericName() {
 		return "GazetteerInitialism";
@@ -22,11 +22,9 @@ import java.util.Arrays;
 import java.util.List;
 
 import ark.data.Context;
-import ark.data.DataTools;
 import ark.data.annotation.Datum;
 import ark.parse.Obj;
 import ark.util.Pair;
-import ark.util.StringUtil;
 
 /**
  * For datum d, string extractor S, and gazetteer G, 
@@ -43,7 +41,6 @@ import ark.util.StringUtil;
  *
  */
 public class FeatureGazetteerPrefixTokens<D extends Datum<L>, L> extends FeatureGazetteer<D, L> {
-	private DataTools.StringPairMeasure prefixTokensMeasure;
 	private int minTokens;
 	
 	public FeatureGazetteerPrefixTokens() {
@@ -55,12 +52,6 @@ public class FeatureGazetteerPrefixTokens<D extends Datum<L>, L> extends Feature
 		
 		this.extremumType = FeatureGazetteer.ExtremumType.Maximum;
 		
-		this.prefixTokensMeasure = new DataTools.StringPairMeasure() {
-			public double compute(String str1, String str2) {
-				return StringUtil.prefixTokenOverlap(str1, str2);
-			}
-		};
-		
 		this.minTokens = 2;
 		
 		this.parameterNames = Arrays.copyOf(this.parameterNames, this.parameterNames.length + 1);
@@ -69,7 +60,7 @@ public class FeatureGazetteerPrefixTokens<D extends Datum<L>, L> extends Feature
 	
 	@Override
 	protected Pair<List<Pair<String,Double>>, Double> computeExtremum(String str) {
-		Pair<List<Pair<String,Double>>, Double> idsAndTokenPrefixCount = this.gazetteer.max(str, this.prefixTokensMeasure);
+		Pair<List<Pair<String,Double>>, Double> idsAndTokenPrefixCount = this.gazetteer.maxPrefixTokenOverlap(str);
 		
 		if (idsAndTokenPrefixCount.getSecond() >= this.minTokens)
 			return new Pair<List<Pair<String,Double>>, Double>(idsAndTokenPrefixCount.getFirst(), 1.0);
@@ -77,6 +68,11 @@ public class FeatureGazetteerPrefixTokens<D extends Datum<L>, L> extends Feature
 			return new Pair<List<Pair<String,Double>>, Double>(idsAndTokenPrefixCount.getFirst(), 0.0);
 	}
 
+	@Override
+	protected String getExtremumMeasure() {
+		return getGenericName() + "_" + this.minTokens;
+	}
+	
 	@Override
 	public String getGenericName() {
 		return "GazetteerPrefixTokens";
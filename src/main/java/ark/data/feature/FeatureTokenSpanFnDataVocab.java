@@ -15,8 +15,10 @@ import ark.data.feature.fn.Fn;
 import ark.parse.Assignment;
 import ark.parse.AssignmentList;
 import ark.parse.Obj;
-import ark.util.BidirectionalLookupTable;
+import ark.util.HashedVocabulary;
+import ark.util.CountMinSketch;
 import ark.util.CounterTable;
+import ark.util.StringLookupTable;
 import ark.util.ThreadMapper;
 
 public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<D, L> {
@@ -29,7 +31,8 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 	 * tf(x,v) computes the frequency of v in x.   Similarly, NORMALIZED_TFIDF
 	 * applies tfidf for each n-gram.  Both NORMALIZED_LOG and NORMALIZED_TFIDF
 	 * are normalized in the sense that the feature vector for n-gram v is 
-	 * scaled to length 1.
+	 * scaled to length 1.  NORMALIZED_TFIDF can't be used with hashBuckets,
+	 * since hashed vocabularies aren't counted.
 	 * 
 	 */
 	public enum Scale {
@@ -38,21 +41,26 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 		NORMALIZED_TFIDF
 	}
 	
-	protected BidirectionalLookupTable<String, Integer> vocabulary;
+	protected StringLookupTable vocabulary;
 	protected Map<Integer, Double> idfs; // maps vocabulary term indices to idf values to use in tfidf scale function
+	protected HashedVocabulary hashedVocabulary; // used in place of vocabulary when hashBuckets > 0
 	
 	protected int minFeatureOccurrence;
+	protected int maxVocabularySize; // if > 0, only the most frequent terms are kept
+	protected double sketchError; // if > 0, error bound for a count-min sketch pre-pass that prunes rare terms before exact counting
 	protected Datum.Tools.TokenSpanExtractor<D, L> tokenExtractor;
 	protected Scale scale;
 	protected Fn<TokenSpan, String> fn;
-	protected String[] parameterNames = {"minFeatureOccurrence", "tokenExtractor", "scale", "fn"};
+	protected int hashBuckets;
+	protected int hashTermSampleSize;
+	protected String[] parameterNames = {"minFeatureOccurrence", "tokenExtractor", "scale", "fn", "hashBuckets", "hashTermSampleSize", "sketchError", "maxVocabularySize"};
 	
 	public FeatureTokenSpanFnDataVocab() {
 		
 	}
 	
 	public FeatureTokenSpanFnDataVocab(Context<D, L> context) {
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>();
+		this.vocabulary = new StringLookupTable();
 		this.idfs = new HashMap<Integer, Double>();
 		this.scale = Scale.INDICATOR;
 		this.context = context;
@@ -60,26 +68,90 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 	
 	@Override
 	public boolean init(FeaturizedDataSet<D, L> dataSet) {
+		if (this.hashedVocabulary != null) // Hashed vocabularies only need a pass to sample bucket names
+			return this.hashTermSampleSize <= 0 || initFromObserver(dataSet);
+		
+		if (this.sketchError <= 0 || this.minFeatureOccurrence <= 1)
+			return initFromObserver(dataSet);
+		
+		final CountMinSketch<String> sketch = new CountMinSketch<String>(this.sketchError);
+		dataSet.map(new ThreadMapper.Fn<D, Boolean>() {
+			@Override
+			public Boolean apply(D datum) {
+				for (String gram : applyFnToDatum(datum).keySet())
+					sketch.increment(gram);
+				return true;
+			}
+		});
+		
+		// Only terms that might meet the minimum occurrence are counted exactly
 		final CounterTable<String> counter = new CounterTable<String>();
 		dataSet.map(new ThreadMapper.Fn<D, Boolean>() {
 			@Override
 			public Boolean apply(D datum) {
-				Map<String, Integer> gramsForDatum = applyFnToDatum(datum);
-				for (String gram : gramsForDatum.keySet()) {
-					counter.incrementCount(gram);
+				for (String gram : applyFnToDatum(datum).keySet()) {
+					if (sketch.estimate(gram) >= minFeatureOccurrence)
+						counter.incrementCount(gram);
 				}
 				return true;
 			}
 		});
 		
+		return initVocabulary(counter, dataSet.size());
+	}
+	
+	@Override
+	public InitObserver<D> makeInitObserver(final FeaturizedDataSet<D, L> dataSet) {
+		if (this.hashedVocabulary != null)
+			return makeHashTermSampleObserver();
+		
+		// Sketched vocabularies need two passes
+		if (this.sketchError > 0 && this.minFeatureOccurrence > 1)
+			return null;
+		
+		final CounterTable<String> counter = new CounterTable<String>();
+		return new InitObserver<D>() {
+			@Override
+			public void observe(D datum) {
+				for (String gram : applyFnToDatum(datum).keySet())
+					counter.incrementCount(gram);
+			}
+			
+			@Override
+			public boolean finish() {
+				return initVocabulary(counter, dataSet.size());
+			}
+		};
+	}
+	
+	private InitObserver<D> makeHashTermSampleObserver() {
+		if (this.hashTermSampleSize <= 0)
+			return null;
+		
+		return new InitObserver<D>() {
+			@Override
+			public void observe(D datum) {
+				for (String gram : applyFnToDatum(datum).keySet())
+					hashedVocabulary.addSampledTerm(gram);
+			}
+			
+			@Override
+			public boolean finish() {
+				return true;
+			}
+		};
+	}
+	
+	private boolean initVocabulary(CounterTable<String> counter, double N) {
 		counter.removeCountsLessThan(this.minFeatureOccurrence);
 		
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
+		this.vocabulary = new StringLookupTable(counter.buildIndex(this.maxVocabularySize));
 		
 		Map<String, Integer> counts = counter.getCounts();
-		double N = dataSet.size();
 		for (Entry<String, Integer> entry : counts.entrySet()) {
-			this.idfs.put(this.vocabulary.get(entry.getKey()), Math.log(N/(1.0 + entry.getValue())));
+			int index = this.vocabulary.indexOf(entry.getKey());
+			if (index >= 0)
+				this.idfs.put(index, Math.log(N/(1.0 + entry.getValue())));
 		}
 		
 		return true;
@@ -105,70 +177,76 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 	}
 	
 	@Override
-	public Map<Integer, Double> computeVector(D datum, int offset, Map<Integer, Double> vector) {
+	public FeatureVectorBuffer computeVector(D datum, int offset, FeatureVectorBuffer vector) {
 		Map<String, Integer> gramsForDatum = applyFnToDatum(datum);
 		
 		if (this.scale == Scale.INDICATOR) {
 			for (String gram : gramsForDatum.keySet()) {
-				if (this.vocabulary.containsKey(gram))
-					vector.put(this.vocabulary.get(gram) + offset, 1.0);		
+				int index = getVocabularyIndex(gram);
+				if (index >= 0)
+					vector.append(index + offset, 1.0);
 			}
-		} else if (this.scale == Scale.NORMALIZED_LOG) {
-			double norm = 0.0;
-			Map<Integer, Double> tempVector = new HashMap<Integer, Double>();
+		} else if (this.scale == Scale.NORMALIZED_LOG || this.scale == Scale.NORMALIZED_TFIDF) {
+			// Values are appended unnormalized, and then divided by the norm in place
+			int start = vector.size();
 			for (Entry<String, Integer> entry : gramsForDatum.entrySet()) {
-				if (!this.vocabulary.containsKey(entry.getKey()))
+				int index = getVocabularyIndex(entry.getKey());
+				if (index < 0)
 					continue;
-				int index = this.vocabulary.get(entry.getKey());
-				double value = Math.log(entry.getValue() + 1.0);
-				norm += value*value;
-				tempVector.put(index, value);
+				double value = 0.0;
+				if (this.scale == Scale.NORMALIZED_LOG)
+					value = Math.log(entry.getValue() + 1.0);
+				else
+					value = entry.getValue()*this.idfs.get(index);
+				vector.append(index + offset, value);
 			}
 			
-			norm = Math.sqrt(norm);
+			// Terms that hash to the same bucket add their values
+			if (this.hashedVocabulary != null)
+				vector.sumDuplicates(start);
 			
-			for (Entry<Integer, Double> entry : tempVector.entrySet()) {
-				vector.put(entry.getKey() + offset, entry.getValue()/norm);
-			}
-		} else if (this.scale == Scale.NORMALIZED_TFIDF) {
 			double norm = 0.0;
-			Map<Integer, Double> tempVector = new HashMap<Integer, Double>();
-			for (Entry<String, Integer> entry : gramsForDatum.entrySet()) {
-				if (!this.vocabulary.containsKey(entry.getKey()))
-					continue;
-				int index = this.vocabulary.get(entry.getKey());
-				double value = entry.getValue()*this.idfs.get(index);//Math.log(entry.getValue() + 1.0);
-				norm += value*value;
-				tempVector.put(index, value);
-			}
-			
+			for (int i = start; i < vector.size(); i++)
+				norm += vector.getValue(i)*vector.getValue(i);
 			norm = Math.sqrt(norm);
 			
-			for (Entry<Integer, Double> entry : tempVector.entrySet()) {
-				vector.put(entry.getKey() + offset, entry.getValue()/norm);
-			}
+			for (int i = start; i < vector.size(); i++)
+				vector.setValue(i, vector.getValue(i)/norm);
 		}
 
 		return vector;
 	}
 
-	public Integer getVocabularyIndex(String term) {
-		return this.vocabulary.get(term);
+	/**
+	 * @param term
+	 * @return the index of the term, or -1 if the term isn't in the vocabulary
+	 */
+	public int getVocabularyIndex(String term) {
+		if (this.hashedVocabulary != null)
+			return this.hashedVocabulary.get(term);
+		return this.vocabulary.indexOf(term);
 	}
 	
 	@Override
 	public String getVocabularyTerm(int index) {
+		if (this.hashedVocabulary != null)
+			return this.hashedVocabulary.getTerm(index);
 		return this.vocabulary.reverseGet(index);
 	}
 
 	@Override
 	protected boolean setVocabularyTerm(int index, String term) {
-		this.vocabulary.put(term, index);
+		if (this.hashedVocabulary != null)
+			this.hashedVocabulary.addSampledTerm(term);
+		else
+			this.vocabulary.put(term, index);
 		return true;
 	}
 
 	@Override
 	public int getVocabularySize() {
+		if (this.hashedVocabulary != null)
+			return this.hashedVocabulary.size();
 		return this.vocabulary.size();
 	}
 
@@ -181,12 +259,20 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 	public Obj getParameterValue(String parameter) {
 		if (parameter.equals("minFeatureOccurrence")) 
 			return Obj.stringValue(String.valueOf(this.minFeatureOccurrence));
+		else if (parameter.equals("sketchError"))
+			return Obj.stringValue(String.valueOf(this.sketchError));
+		else if (parameter.equals("maxVocabularySize"))
+			return Obj.stringValue(String.valueOf(this.maxVocabularySize));
 		else if (parameter.equals("fn"))
 			return this.fn.toParse();
 		else if (parameter.equals("tokenExtractor"))
 			return Obj.stringValue((this.tokenExtractor == null) ? "" : this.tokenExtractor.toString());
 		else if (parameter.equals("scale"))
 			return Obj.stringValue(this.scale.toString());
+		else if (parameter.equals("hashBuckets"))
+			return Obj.stringValue(String.valueOf(this.hashBuckets));
+		else if (parameter.equals("hashTermSampleSize"))
+			return Obj.stringValue(String.valueOf(this.hashTermSampleSize));
 		return null;
 	}
 
@@ -194,17 +280,44 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 	public boolean setParameterValue(String parameter, Obj parameterValue) {
 		if (parameter.equals("minFeatureOccurrence")) 
 			this.minFeatureOccurrence = Integer.valueOf(this.context.getMatchValue(parameterValue));
+		else if (parameter.equals("sketchError"))
+			this.sketchError = Double.valueOf(this.context.getMatchValue(parameterValue));
+		else if (parameter.equals("maxVocabularySize"))
+			this.maxVocabularySize = Integer.valueOf(this.context.getMatchValue(parameterValue));
 		else if (parameter.equals("fn"))
 			this.fn = this.context.getMatchOrConstructTokenSpanStrFn(parameterValue);
 		else if (parameter.equals("tokenExtractor"))
 			this.tokenExtractor = this.context.getDatumTools().getTokenSpanExtractor(this.context.getMatchValue(parameterValue));
-		else if (parameter.equals("scale"))
-			this.scale = Scale.valueOf(this.context.getMatchValue(parameterValue));
-		else
+		else if (parameter.equals("scale")) {
+			Scale scale = Scale.valueOf(this.context.getMatchValue(parameterValue));
+			if (!isValidHashedScale(this.hashBuckets, scale))
+				return false;
+			this.scale = scale;
+		} else if (parameter.equals("hashBuckets")) {
+			int hashBuckets = Integer.valueOf(this.context.getMatchValue(parameterValue));
+			if (!isValidHashedScale(hashBuckets, this.scale))
+				return false;
+			if (hashBuckets != this.hashBuckets) {
+				this.hashBuckets = hashBuckets;
+				this.hashedVocabulary = (hashBuckets > 0) ? new HashedVocabulary(hashBuckets, this.hashTermSampleSize) : null;
+			}
+		} else if (parameter.equals("hashTermSampleSize")) {
+			this.hashTermSampleSize = Integer.valueOf(this.context.getMatchValue(parameterValue));
+			if (this.hashedVocabulary != null)
+				this.hashedVocabulary.setMaxSampledTerms(this.hashTermSampleSize);
+		} else
 			return false;
+		
 		return true;
 	}
 	
+	/**
+	 * Hashed vocabularies aren't counted, so there are no idfs for tfidf
+	 */
+	private boolean isValidHashedScale(int hashBuckets, Scale scale) {
+		return hashBuckets <= 0 || scale != Scale.NORMALIZED_TFIDF;
+	}
+	
 	@Override
 	protected <T extends Datum<Boolean>> Feature<T, Boolean> makeBinaryHelper(
 			Context<T, Boolean> context, LabelIndicator<L> labelIndicator,
@@ -213,6 +326,7 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 		
 		binaryFeatureTokenSpanFnDataVocab.vocabulary = this.vocabulary;
 		binaryFeatureTokenSpanFnDataVocab.idfs = this.idfs;
+		binaryFeatureTokenSpanFnDataVocab.hashedVocabulary = this.hashedVocabulary;
 		
 		return binaryFeatureTokenSpanFnDataVocab;
 	}
@@ -221,6 +335,14 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 	protected boolean fromParseInternalHelper(AssignmentList internalAssignments) {
 		if (internalAssignments == null)
 			return true;
+		if (this.hashedVocabulary != null) {
+			if (internalAssignments.contains("hashTerms")) {
+				Obj.Array hashTerms = (Obj.Array)internalAssignments.get("hashTerms").getValue();
+				for (int i = 0; i < hashTerms.size(); i++)
+					this.hashedVocabulary.addSampledTerm(hashTerms.getStr(i));
+			}
+			return true;
+		}
 		if (!internalAssignments.contains("idfs"))
 			return false;
 		
@@ -233,6 +355,23 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 		return true;
 	}
 
+	@Override
+	protected AssignmentList toParseInternal() {
+		if (this.hashedVocabulary == null)
+			return super.toParseInternal();
+		
+		// Hashed indices are recomputed from the terms, so only the sampled terms are saved
+		AssignmentList internalAssignments = new AssignmentList();
+		Obj.Array hashTerms = Obj.array();
+		for (String term : this.hashedVocabulary.getSampledTerms())
+			hashTerms.add(Obj.stringValue(term));
+		
+		if (hashTerms.size() > 0)
+			internalAssignments.add(Assignment.assignmentTyped(new ArrayList<String>(), Context.ARRAY_STR, "hashTerms", hashTerms));
+		
+		return (internalAssignments.size() == 0) ? null : internalAssignments;
+	}
+	
 	@Override
 	protected AssignmentList toParseInternalHelper(
 			AssignmentList internalAssignments) {
@@ -267,6 +406,7 @@ public class FeatureTokenSpanFnDataVocab<D extends Datum<L>, L> extends Feature<
 		FeatureTokenSpanFnDataVocab<D, L> cloneData = (FeatureTokenSpanFnDataVocab<D, L>)clone;
 		cloneData.vocabulary = this.vocabulary;
 		cloneData.idfs = this.idfs;
+		cloneData.hashedVocabulary = this.hashedVocabulary;
 		return true;
 	}
 }
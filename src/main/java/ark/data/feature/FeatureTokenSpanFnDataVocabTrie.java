@@ -13,8 +13,8 @@ import ark.data.Context;
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools.LabelIndicator;
 import ark.parse.AssignmentList;
-import ark.util.BidirectionalLookupTable;
 import ark.util.CounterTable;
+import ark.util.StringLookupTable;
 import ark.util.ThreadMapper;
 
 public class FeatureTokenSpanFnDataVocabTrie<D extends Datum<L>, L> extends FeatureTokenSpanFnDataVocab<D, L> {
@@ -34,6 +34,9 @@ public class FeatureTokenSpanFnDataVocabTrie<D extends Datum<L>, L> extends Feat
 	
 	@Override
 	public boolean init(FeaturizedDataSet<D, L> dataSet) {
+		if (this.hashedVocabulary != null) // Prefix and suffix lookups aren't supported for hashed vocabularies
+			return super.init(dataSet);
+		
 		final CounterTable<String> counter = new CounterTable<String>();
 		dataSet.map(new ThreadMapper.Fn<D, Boolean>() {
 			@Override
@@ -48,12 +51,14 @@ public class FeatureTokenSpanFnDataVocabTrie<D extends Datum<L>, L> extends Feat
 		
 		counter.removeCountsLessThan(this.minFeatureOccurrence);
 		
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
+		this.vocabulary = new StringLookupTable(counter.buildIndex(this.maxVocabularySize));
 		
 		Map<String, Integer> counts = counter.getCounts();
 		double N = dataSet.size();
 		for (Entry<String, Integer> entry : counts.entrySet()) {
-			int id = this.vocabulary.get(entry.getKey());
+			int id = this.vocabulary.indexOf(entry.getKey());
+			if (id < 0)
+				continue;
 			double idf = Math.log(N/(1.0 + entry.getValue()));
 			this.idfs.put(id, idf);
 			this.forwardTrie.put(entry.getKey(), idf);
@@ -63,6 +68,11 @@ public class FeatureTokenSpanFnDataVocabTrie<D extends Datum<L>, L> extends Feat
 		return true;
 	}
 	
+	@Override
+	public InitObserver<D> makeInitObserver(FeaturizedDataSet<D, L> dataSet) {
+		return null; // The tries are built by init
+	}
+	
 	@Override
 	protected <T extends Datum<Boolean>> Feature<T, Boolean> makeBinaryHelper(
 			Context<T, Boolean> context, LabelIndicator<L> labelIndicator,
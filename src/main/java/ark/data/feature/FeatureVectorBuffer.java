@@ -0,0 +1,191 @@
+package ark.data.feature;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * FeatureVectorBuffer is a growable buffer of (index, value) pairs into
+ * which features append their computed values (see
+ * Feature.computeVector(D, int, FeatureVectorBuffer)).  The pairs are
+ * held in primitive arrays, so computing a vector doesn't box each
+ * index and value the way a Map<Integer, Double> does, and a buffer can
+ * be cleared and reused for many datums (FeaturizedDataSet keeps one
+ * buffer per thread).
+ *
+ * Features may append their values in any order.  Calling compact sorts
+ * the pairs by index, and if an index was appended more than once, the
+ * last value appended for it is kept (matching the behavior of Map.put).
+ *
+ */
+public class FeatureVectorBuffer {
+	private int[] indices;
+	private double[] values;
+	private int size;
+	private boolean compact;
+
+	// Scratch arrays used by compact
+	private long[] order;
+	private int[] compactIndices;
+	private double[] compactValues;
+
+	public FeatureVectorBuffer() {
+		this(16);
+	}
+
+	public FeatureVectorBuffer(int capacity) {
+		this.indices = new int[Math.max(1, capacity)];
+		this.values = new double[Math.max(1, capacity)];
+		this.size = 0;
+		this.compact = true;
+	}
+
+	public void append(int index, double value) {
+		if (this.size == this.indices.length) {
+			this.indices = Arrays.copyOf(this.indices, 2*this.indices.length);
+			this.values = Arrays.copyOf(this.values, 2*this.values.length);
+		}
+
+		if (this.size > 0 && index <= this.indices[this.size - 1])
+			this.compact = false;
+
+		this.indices[this.size] = index;
+		this.values[this.size] = value;
+		this.size++;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public void clear() {
+		this.size = 0;
+		this.compact = true;
+	}
+
+	public int getIndex(int i) {
+		return this.indices[i];
+	}
+
+	public double getValue(int i) {
+		return this.values[i];
+	}
+
+	public void setValue(int i, double value) {
+		this.values[i] = value;
+	}
+
+	/**
+	 * Sorts the buffered pairs by index, keeping only the last value
+	 * appended for each index.
+	 *
+	 * @return this buffer
+	 */
+	public FeatureVectorBuffer compact() {
+		if (this.compact)
+			return this;
+
+		if (this.order == null || this.order.length < this.size || this.compactIndices.length < this.size) {
+			this.order = new long[this.indices.length];
+			this.compactIndices = new int[this.indices.length];
+			this.compactValues = new double[this.indices.length];
+		}
+
+		// Sort by index, and then by position so that the last value for an index is last
+		for (int i = 0; i < this.size; i++)
+			this.order[i] = (((long)this.indices[i]) << 32) | i;
+		Arrays.sort(this.order, 0, this.size);
+
+		int compactSize = 0;
+		for (int i = 0; i < this.size; i++) {
+			int position = (int)(this.order[i] & 0xFFFFFFFFL);
+			int index = this.indices[position];
+			if (compactSize > 0 && this.compactIndices[compactSize - 1] == index) {
+				this.compactValues[compactSize - 1] = this.values[position];
+			} else {
+				this.compactIndices[compactSize] = index;
+				this.compactValues[compactSize] = this.values[position];
+				compactSize++;
+			}
+		}
+
+		int[] tempIndices = this.indices;
+		double[] tempValues = this.values;
+		this.indices = this.compactIndices;
+		this.values = this.compactValues;
+		this.compactIndices = tempIndices;
+		this.compactValues = tempValues;
+		this.size = compactSize;
+		this.compact = true;
+
+		return this;
+	}
+
+	/**
+	 * Sorts the pairs appended from position start on by index, and sums the
+	 * values of pairs that share an index.  Features that can map different
+	 * terms to the same index (for example, hashed vocabularies) use this to
+	 * combine the terms' values before normalizing them.
+	 *
+	 * @param start
+	 * @return this buffer
+	 */
+	public FeatureVectorBuffer sumDuplicates(int start) {
+		int length = this.size - start;
+		if (length <= 1)
+			return this;
+
+		if (this.order == null || this.order.length < length || this.compactIndices.length < length) {
+			this.order = new long[this.indices.length];
+			this.compactIndices = new int[this.indices.length];
+			this.compactValues = new double[this.indices.length];
+		}
+
+		for (int i = 0; i < length; i++)
+			this.order[i] = (((long)this.indices[start + i]) << 32) | i;
+		Arrays.sort(this.order, 0, length);
+
+		int sumSize = 0;
+		for (int i = 0; i < length; i++) {
+			int position = start + (int)(this.order[i] & 0xFFFFFFFFL);
+			int index = this.indices[position];
+			if (sumSize > 0 && this.compactIndices[sumSize - 1] == index) {
+				this.compactValues[sumSize - 1] += this.values[position];
+			} else {
+				this.compactIndices[sumSize] = index;
+				this.compactValues[sumSize] = this.values[position];
+				sumSize++;
+			}
+		}
+
+		System.arraycopy(this.compactIndices, 0, this.indices, start, sumSize);
+		System.arraycopy(this.compactValues, 0, this.values, start, sumSize);
+		this.size = start + sumSize;
+		this.compact = this.compact && (start == 0 || this.indices[start - 1] < this.indices[start]);
+
+		return this;
+	}
+
+	/**
+	 * @param id
+	 * @return a row for the datum with the given id containing copies of the
+	 * compacted values in this buffer
+	 */
+	public SparseFeatureMatrix.Row toRow(int id) {
+		compact();
+		return new SparseFeatureMatrix.Row(id, Arrays.copyOf(this.indices, this.size), Arrays.copyOf(this.values, this.size));
+	}
+
+	/**
+	 * @param map
+	 * @return the given map with the values in this buffer put into it
+	 */
+	public Map<Integer, Double> toMap(Map<Integer, Double> map) {
+		for (int i = 0; i < this.size; i++)
+			map.put(this.indices[i], this.values[i]);
+		return map;
+	}
+}
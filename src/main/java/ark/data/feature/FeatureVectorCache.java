@@ -0,0 +1,426 @@
+package ark.data.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FeatureVectorCache holds the feature vectors (as SparseFeatureMatrix.Row
+ * objects) that a FeaturizedDataSet computes on demand.  The cache has a
+ * memory budget in bytes, and when the budget is exceeded, the
+ * least-recently-used vectors are evicted.  If the cache is given a spill
+ * file, evicted vectors are written to memory-mapped segments of that file,
+ * and they are faulted back into memory the next time they are requested.
+ * Otherwise, evicted vectors are dropped, and the FeaturizedDataSet
+ * recomputes them when they are requested again.
+ *
+ * Vectors are immutable once cached, so a vector that has been spilled
+ * once is never written to the spill file again.
+ *
+ * Datum ids are split by hash across several segments (like BoundedCache),
+ * each with its own lock and an equal share of the memory budget, so that
+ * threads looking up different datums don't usually contend for the same
+ * lock.  Each segment evicts its own least recently used vectors, so
+ * eviction order is only approximately least recently used across the
+ * whole cache.  Writes to the spill file are serialized separately.
+ *
+ * The cache keeps hit, miss, spill, and fault counts so that the memory
+ * budget can be sized for a particular job (see toString).
+ *
+ * A cache can be shared by several FeaturizedDataSets (see share and 
+ * release), and its spill file is deleted once the last of them
+ * releases it.
+ *
+ */
+public class FeatureVectorCache {
+	private static final int SEGMENT_COUNT = 16;
+	private static final int SPILL_SEGMENT_SIZE = 64*1024*1024;
+	private static final long ROW_OVERHEAD = 96; // Approximate bytes for the row object, its arrays, and the map entry
+
+	private long maxMemory;
+	private List<Segment> segments;
+
+	private boolean spilling;
+	private File spillFile; // Guarded by spillLock, and null until the first spill if spillDirectory is set
+	private File spillDirectory; // Directory in which a temporary spill file is created on the first spill
+	private String spillFilePrefix;
+	private RandomAccessFile spillFileAccess; // Guarded by spillLock
+	private List<MappedByteBuffer> spillSegments;
+	private Object spillLock;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+	private AtomicLong spills;
+	private AtomicLong faults;
+
+	private AtomicInteger holders;
+
+	/**
+	 * Segment holds the rows for the datum ids that hash to it, and
+	 * the spill locations of the rows that it has evicted.
+	 */
+	private class Segment {
+		private long maxMemory;
+		private long memory;
+		private LinkedHashMap<Integer, SparseFeatureMatrix.Row> rows; // In access order
+		private Map<Integer, Long> spillLocations; // Map from datum ids to spill segment index (high bits) and spill segment offset (low bits)
+
+		public Segment(long maxMemory) {
+			this.maxMemory = maxMemory;
+			this.memory = 0;
+			this.rows = new LinkedHashMap<Integer, SparseFeatureMatrix.Row>(16, 0.75f, true);
+			this.spillLocations = new HashMap<Integer, Long>();
+		}
+
+		public synchronized long getMemory() {
+			return this.memory;
+		}
+
+		public synchronized int getMemorySize() {
+			return this.rows.size();
+		}
+
+		public synchronized int getSpilledSize() {
+			return this.spillLocations.size();
+		}
+
+		public synchronized int size() {
+			int size = this.spillLocations.size();
+			for (Integer id : this.rows.keySet())
+				if (!this.spillLocations.containsKey(id))
+					size++;
+			return size;
+		}
+
+		public synchronized boolean isEmpty() {
+			return this.rows.isEmpty() && this.spillLocations.isEmpty();
+		}
+
+		public synchronized boolean contains(int id) {
+			return this.rows.containsKey(id) || this.spillLocations.containsKey(id);
+		}
+
+		public synchronized SparseFeatureMatrix.Row get(int id) {
+			SparseFeatureMatrix.Row row = this.rows.get(id);
+			if (row != null) {
+				FeatureVectorCache.this.hits.incrementAndGet();
+				return row;
+			}
+
+			Long location = this.spillLocations.get(id);
+			if (location == null) {
+				FeatureVectorCache.this.misses.incrementAndGet();
+				return null;
+			}
+
+			row = readSpilledRow(id, location);
+			FeatureVectorCache.this.faults.incrementAndGet();
+			this.rows.put(id, row);
+			this.memory += getRowMemory(row);
+			evict();
+
+			return row;
+		}
+
+		public synchronized boolean put(SparseFeatureMatrix.Row row) {
+			SparseFeatureMatrix.Row oldRow = this.rows.put(row.getId(), row);
+			if (oldRow != null)
+				this.memory -= getRowMemory(oldRow);
+			this.spillLocations.remove(row.getId());
+			this.memory += getRowMemory(row);
+
+			return evict();
+		}
+
+		public synchronized void clear() {
+			this.rows.clear();
+			this.spillLocations.clear();
+			this.memory = 0;
+		}
+
+		private boolean evict() {
+			Iterator<Entry<Integer, SparseFeatureMatrix.Row>> iterator = this.rows.entrySet().iterator();
+			while (this.memory > this.maxMemory && iterator.hasNext()) {
+				SparseFeatureMatrix.Row row = iterator.next().getValue();
+				if (FeatureVectorCache.this.spilling && !this.spillLocations.containsKey(row.getId())) {
+					Long location = writeSpilledRow(row);
+					if (location == null)
+						return false;
+					this.spillLocations.put(row.getId(), location);
+					FeatureVectorCache.this.spills.incrementAndGet();
+				}
+
+				iterator.remove();
+				this.memory -= getRowMemory(row);
+				FeatureVectorCache.this.evictions.incrementAndGet();
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Constructs an unbounded cache
+	 */
+	public FeatureVectorCache() {
+		this(Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * @param maxMemory approximate maximum number of bytes used by vectors held
+	 * in memory
+	 * @param spillFile file to which evicted vectors are written, or null if
+	 * evicted vectors should be dropped
+	 */
+	public FeatureVectorCache(long maxMemory, File spillFile) {
+		this.maxMemory = maxMemory;
+		this.segments = new ArrayList<Segment>(SEGMENT_COUNT);
+		long segmentMaxMemory = (maxMemory == Long.MAX_VALUE) ? Long.MAX_VALUE : Math.max(1, maxMemory / SEGMENT_COUNT);
+		for (int i = 0; i < SEGMENT_COUNT; i++)
+			this.segments.add(new Segment(segmentMaxMemory));
+
+		this.spilling = spillFile != null;
+		this.spillFile = spillFile;
+		this.spillSegments = new CopyOnWriteArrayList<MappedByteBuffer>();
+		this.spillLock = new Object();
+
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+		this.spills = new AtomicLong();
+		this.faults = new AtomicLong();
+
+		this.holders = new AtomicInteger(1);
+	}
+
+	/**
+	 * @return an empty cache with the same memory budget as this one.  If
+	 * this cache spills to disk, then the new cache spills to a new file
+	 * in the same directory, which isn't created until the new cache first
+	 * spills.
+	 */
+	public FeatureVectorCache makeEmpty() {
+		FeatureVectorCache cache = new FeatureVectorCache(this.maxMemory, null);
+		if (!this.spilling)
+			return cache;
+
+		cache.spilling = true;
+		if (this.spillDirectory != null) {
+			cache.spillDirectory = this.spillDirectory;
+			cache.spillFilePrefix = this.spillFilePrefix;
+		} else {
+			cache.spillDirectory = this.spillFile.getAbsoluteFile().getParentFile();
+			cache.spillFilePrefix = this.spillFile.getName();
+		}
+
+		return cache;
+	}
+
+	/**
+	 * @return this cache, after recording that one more holder shares it.
+	 * Each holder should call release when it stops using the cache.
+	 */
+	public FeatureVectorCache share() {
+		this.holders.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Records that a holder has stopped using this cache, and clears the
+	 * cache (deleting its spill file) if no other holder shares it.
+	 *
+	 * @return true if the cache was cleared
+	 */
+	public boolean release() {
+		if (this.holders.decrementAndGet() > 0)
+			return false;
+		clear();
+		return true;
+	}
+
+	public boolean isBounded() {
+		return this.maxMemory < Long.MAX_VALUE;
+	}
+
+	public long getMaxMemory() {
+		return this.maxMemory;
+	}
+
+	public long getMemory() {
+		long memory = 0;
+		for (Segment segment : this.segments)
+			memory += segment.getMemory();
+		return memory;
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	public long getSpills() {
+		return this.spills.get();
+	}
+
+	public long getFaults() {
+		return this.faults.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : this.segments)
+			size += segment.size();
+		return size;
+	}
+
+	public boolean isEmpty() {
+		for (Segment segment : this.segments)
+			if (!segment.isEmpty())
+				return false;
+		return true;
+	}
+
+	public boolean contains(int id) {
+		return getSegment(id).contains(id);
+	}
+
+	/**
+	 * @param id
+	 * @return the cached row for the datum with the given id (faulting it
+	 * back from the spill file if necessary), or null if the row is not in
+	 * the cache
+	 */
+	public SparseFeatureMatrix.Row get(int id) {
+		return getSegment(id).get(id);
+	}
+
+	public boolean put(SparseFeatureMatrix.Row row) {
+		return getSegment(row.getId()).put(row);
+	}
+
+	public void clear() {
+		for (Segment segment : this.segments)
+			segment.clear();
+
+		synchronized (this.spillLock) {
+			this.spillSegments.clear();
+			if (this.spillFileAccess != null) {
+				try {
+					this.spillFileAccess.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				this.spillFileAccess = null;
+				this.spillFile.delete();
+				if (this.spillDirectory != null)
+					this.spillFile = null;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		int memorySize = 0;
+		int spilledSize = 0;
+		for (Segment segment : this.segments) {
+			memorySize += segment.getMemorySize();
+			spilledSize += segment.getSpilledSize();
+		}
+
+		long hits = this.hits.get();
+		long faults = this.faults.get();
+		long misses = this.misses.get();
+		long requests = hits + faults + misses;
+		double hitRate = (requests == 0) ? 0.0 : (hits + faults)/(double)requests;
+		return "Feature vector cache: " + memorySize + " in memory (" + getMemory() + "/" + this.maxMemory + " bytes), "
+				+ spilledSize + " spilled, "
+				+ hits + " hits, "
+				+ faults + " faults, "
+				+ misses + " misses, "
+				+ this.evictions.get() + " evictions, "
+				+ this.spills.get() + " spills (hit rate " + hitRate + ")";
+	}
+
+	private Segment getSegment(int id) {
+		int hash = id * 0x9E3779B9;
+		return this.segments.get((hash >>> 16) % SEGMENT_COUNT);
+	}
+
+	private long getRowMemory(SparseFeatureMatrix.Row row) {
+		return ROW_OVERHEAD + 12L*row.getIndices().length;
+	}
+
+	private Long writeSpilledRow(SparseFeatureMatrix.Row row) {
+		int length = 4 + 12*row.getIndices().length;
+
+		synchronized (this.spillLock) {
+			try {
+				if (this.spillFileAccess == null) {
+					if (this.spillFile == null)
+						this.spillFile = File.createTempFile(this.spillFilePrefix, "", this.spillDirectory);
+					this.spillFile.deleteOnExit();
+					this.spillFileAccess = new RandomAccessFile(this.spillFile, "rw");
+					this.spillFileAccess.setLength(0);
+				}
+
+				MappedByteBuffer segment = (this.spillSegments.size() == 0) ? null : this.spillSegments.get(this.spillSegments.size() - 1);
+				if (segment == null || segment.remaining() < length) {
+					long position = this.spillFileAccess.length();
+					segment = this.spillFileAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, position, Math.max(SPILL_SEGMENT_SIZE, length));
+					this.spillSegments.add(segment);
+				}
+
+				long location = (((long)this.spillSegments.size() - 1) << 32) | segment.position();
+
+				int[] indices = row.getIndices();
+				double[] values = row.getValues();
+				segment.putInt(indices.length);
+				for (int i = 0; i < indices.length; i++)
+					segment.putInt(indices[i]);
+				for (int i = 0; i < values.length; i++)
+					segment.putDouble(values[i]);
+
+				return location;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
+	private SparseFeatureMatrix.Row readSpilledRow(int id, long location) {
+		MappedByteBuffer segment = this.spillSegments.get((int)(location >>> 32));
+		int offset = (int)(location & 0xFFFFFFFFL);
+
+		int length = segment.getInt(offset);
+		offset += 4;
+		int[] indices = new int[length];
+		double[] values = new double[length];
+		for (int i = 0; i < length; i++, offset += 4)
+			indices[i] = segment.getInt(offset);
+		for (int i = 0; i < length; i++, offset += 8)
+			values[i] = segment.getDouble(offset);
+
+		return new SparseFeatureMatrix.Row(id, indices, values);
+	}
+}
@@ -18,10 +18,24 @@
 
 package ark.data.feature;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
@@ -32,12 +46,12 @@ import org.platanios.learn.data.DataSetInMemory;
 import org.platanios.learn.data.PredictedDataInstance;
 import org.platanios.learn.math.matrix.SparseVector;
 import org.platanios.learn.math.matrix.Vector;
-import org.platanios.learn.math.matrix.Vector.VectorElement;
 
 import ark.data.Context;
 import ark.data.annotation.DataSet;
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools.LabelIndicator;
+import ark.parse.Obj;
 import ark.util.ThreadMapper;
 import ark.util.ThreadMapper.Fn;
 
@@ -47,10 +61,34 @@ import ark.util.ThreadMapper.Fn;
  * evaluate models.  
  * 
  * The current implementation computes the features on demand as their
- * values are requested, and permanently caches their values in memory.
- * In the future, this might be improved so that some values can be
- * evicted from the cache and possibly serialized/deserialized from
- * disk.
+ * values are requested, and caches their values in a FeatureVectorCache.
+ * By default, the cache is unbounded and in memory, but it can be given a
+ * memory budget (see setFeatureVectorCache), in which case the 
+ * least-recently-used vectors are evicted and possibly spilled to a 
+ * memory-mapped file on disk.
+ * 
+ * Once precomputeFeatures is called with an unbounded cache, the values 
+ * of each feature for all datums are stored in a separate compact 
+ * compressed-sparse-row block (see SparseFeatureMatrix) keyed by the
+ * feature's starting vocabulary index, and the vectors returned for 
+ * the datums are assembled from the rows of the blocks.  Since the
+ * blocks are computed per feature, adding a feature to a precomputed
+ * data set only computes the new feature's block, removing a feature
+ * only drops its block, and subsets and binary data sets share the 
+ * blocks of the data sets from which they are constructed.
+ * 
+ * Subsets and partitions (see getSubset and makePartition) are 
+ * FeaturizedDataSets with the same features, and they share the names,
+ * cached vectors, and precomputed blocks of the data set from which they
+ * are constructed, so their vectors are the same as that data set's
+ * without recomputing them.  Adding or removing features on either
+ * data set replaces its shared caches rather than changing them.
+ * 
+ * The features and precomputed values can be saved to a snapshot file
+ * (see saveFeatureSnapshot), and a later run with the same feature
+ * configuration and datums can memory-map the snapshot rather than
+ * initializing the features and recomputing their values (see 
+ * addFeaturesFromSnapshot).
  * 
  * @author Bill McDowell
  *
@@ -58,16 +96,27 @@ import ark.util.ThreadMapper.Fn;
  * @param <L> Datum label type
  */
 public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
+	private static final int SNAPSHOT_MAGIC = 0x41524B46; // "ARKF"
+	private static final int SNAPSHOT_VERSION = 2;
+	
 	private String name;
 	private int maxThreads;
 	
 	private List<Feature<D, L>> featureList; // Just to keep all of the features referenced in one place for when cloning the dataset
 	private Map<String, Feature<D, L>> referencedFeatures; // Maps from reference names to features
 	private TreeMap<Integer, Feature<D, L>> features; // Maps from the feature's starting vocabulary index to the feature
+	private Map<Feature<D, L>, Integer> featureStartIndices; // Inverse of features (by identity) for looking up start indices
 	private Map<Integer, String> featureVocabularyNames; // Sparse map from indices to names
-	private Map<Integer, Vector> featureVocabularyValues; // Map from datum ids to indices to values
+	private FeatureVectorCache featureVocabularyValues; // Map from datum ids to indices to values (for datums that aren't in the precomputed blocks)
+	private TreeMap<Integer, SparseFeatureMatrix> featureBlocks; // Maps from the feature's starting vocabulary index to the feature's precomputed values (relative to the start index)
 	private int featureVocabularySize;
 	private boolean precomputedFeatures;
+	private ThreadLocal<FeatureVectorBuffer> featureVectorBuffers = new ThreadLocal<FeatureVectorBuffer>() {
+		@Override
+		protected FeatureVectorBuffer initialValue() {
+			return new FeatureVectorBuffer();
+		}
+	}; // Reused by each thread to compute feature vectors
 	
 	public FeaturizedDataSet(String name, Datum.Tools<D, L> datumTools, Datum.Tools.LabelMapping<L> labelMapping) {
 		this(name, 1, datumTools, labelMapping);
@@ -82,16 +131,18 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		this.name = name;
 		this.referencedFeatures = new HashMap<String, Feature<D, L>>();
 		this.features = new TreeMap<Integer, Feature<D, L>>();
+		this.featureStartIndices = new IdentityHashMap<Feature<D, L>, Integer>();
 		this.maxThreads = maxThreads;
-		 
+		
+		this.featureVocabularyNames = new ConcurrentHashMap<Integer, String>();
+		this.featureVocabularyValues = new FeatureVectorCache();
+		this.featureBlocks = new TreeMap<Integer, SparseFeatureMatrix>();
+		this.precomputedFeatures = false;
+		
 		this.featureList = new ArrayList<Feature<D, L>>();
 		this.featureVocabularySize = 0;
 		for (Feature<D, L> feature : features)
 			addFeature(feature);
-		
-		this.featureVocabularyNames = new ConcurrentHashMap<Integer, String>();
-		this.featureVocabularyValues = new ConcurrentHashMap<Integer, Vector>();
-		this.precomputedFeatures = false;
 	}
 	
 	public String getName() {
@@ -111,6 +162,22 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		return true;
 	}
 	
+	public FeatureVectorCache getFeatureVectorCache() {
+		return this.featureVocabularyValues;
+	}
+	
+	/**
+	 * @param featureVectorCache
+	 * @return true if the cache has been set.  Vectors that were cached
+	 * in the previous cache are discarded, and so this should generally
+	 * be called before any feature values are computed.
+	 */
+	public boolean setFeatureVectorCache(FeatureVectorCache featureVectorCache) {
+		this.featureVocabularyValues.release();
+		this.featureVocabularyValues = featureVectorCache;
+		return true;
+	}
+	
 	public <T> List<T> map(final ThreadMapper.Fn<D, T> fn) {
 		return map(fn, this.maxThreads);
 	}
@@ -136,6 +203,10 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 	 * refers to FeaturizedDataSet, then the required feature should be 
 	 * set to be 'ignored'.
 	 * 
+	 * If the feature values have already been precomputed, then the values
+	 * of the added feature are precomputed as well (without recomputing the
+	 * values of the existing features).
+	 * 
 	 */
 	public boolean addFeature(Feature<D, L> feature, boolean initFeature) {
 		if (initFeature)
@@ -148,8 +219,42 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		return addFeature(feature, false);
 	}
 	
+	/**
+	 * @param features
+	 * @param initFeatures
+	 * @return true if the features have been added.  If initFeatures is
+	 * true, then features that provide InitObservers (see 
+	 * Feature.makeInitObserver) are initialized together from a single pass 
+	 * over the data, and the remaining features are initialized by their 
+	 * init methods in parallel.
+	 */
 	public boolean addFeatures(List<Feature<D, L>> features, boolean initFeatures) {
 		if (initFeatures) {
+			final List<Feature.InitObserver<D>> observers = new ArrayList<Feature.InitObserver<D>>();
+			List<Feature<D, L>> unobservedFeatures = new ArrayList<Feature<D, L>>();
+			for (Feature<D, L> feature : features) {
+				Feature.InitObserver<D> observer = feature.makeInitObserver(this);
+				if (observer != null)
+					observers.add(observer);
+				else
+					unobservedFeatures.add(feature);
+			}
+			
+			if (observers.size() > 0) {
+				map(new ThreadMapper.Fn<D, Boolean>() {
+					@Override
+					public Boolean apply(D datum) {
+						for (Feature.InitObserver<D> observer : observers)
+							observer.observe(datum);
+						return true;
+					}
+				});
+				
+				for (Feature.InitObserver<D> observer : observers)
+					if (!observer.finish())
+						return false;
+			}
+			
 			final FeaturizedDataSet<D, L> data = this;
 			ThreadMapper<Feature<D, L>, Boolean> threads = new ThreadMapper<Feature<D, L>, Boolean>(new Fn<Feature<D, L>, Boolean>() {
 				public Boolean apply(Feature<D, L> feature) {
@@ -157,7 +262,7 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 				}
 			});
 			
-			List<Boolean> threadResults = threads.run(features, this.maxThreads);
+			List<Boolean> threadResults = threads.run(unobservedFeatures, this.maxThreads);
 			for (boolean threadResult : threadResults)
 				if (!threadResult)
 					return false;
@@ -177,16 +282,91 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 	
 	private boolean addFeatureHelper(Feature<D, L> feature) {
 		if (!feature.isIgnored()) {
-			this.features.put(this.featureVocabularySize, feature);
+			int startIndex = this.featureVocabularySize;
+			this.features.put(startIndex, feature);
+			if (!this.featureStartIndices.containsKey(feature))
+				this.featureStartIndices.put(feature, startIndex);
 			this.featureVocabularySize += feature.getVocabularySize();
+			resetFeatureVocabularyValues();
+			
+			if (this.precomputedFeatures) {
+				if (this.featureVocabularyValues.isBounded()) {
+					this.precomputedFeatures = false;
+				} else {
+					Map<Integer, SparseFeatureMatrix> blocks = computeFeatureBlocks(Arrays.asList(startIndex));
+					if (blocks == null)
+						return false;
+					this.featureBlocks.putAll(blocks);
+				}
+			}
 		}
 		if (feature.getReferenceName() != null)
 			this.referencedFeatures.put(feature.getReferenceName(), feature);
 		this.featureList.add(feature);
+		feature.addedToDataSet(this);
+		
+		return true;
+	}
+	
+	/**
+	 * @param feature
+	 * @return true if the feature has been removed.  The starting vocabulary
+	 * indices of the features that follow the removed feature are shifted 
+	 * down by the removed feature's vocabulary size, and their precomputed 
+	 * values are kept (so that, for example, feature ablations don't 
+	 * require recomputing the remaining features).
+	 */
+	public boolean removeFeature(Feature<D, L> feature) {
+		if (!this.featureList.remove(feature))
+			return false;
+		if (feature.getReferenceName() != null && this.referencedFeatures.get(feature.getReferenceName()) == feature)
+			this.referencedFeatures.remove(feature.getReferenceName());
+		if (feature.isIgnored())
+			return true;
+		
+		TreeMap<Integer, Feature<D, L>> features = new TreeMap<Integer, Feature<D, L>>();
+		Map<Feature<D, L>, Integer> featureStartIndices = new IdentityHashMap<Feature<D, L>, Integer>();
+		TreeMap<Integer, SparseFeatureMatrix> featureBlocks = new TreeMap<Integer, SparseFeatureMatrix>();
+		int featureVocabularySize = 0;
+		for (Entry<Integer, Feature<D, L>> entry : this.features.entrySet()) {
+			if (entry.getValue() == feature)
+				continue;
+			
+			features.put(featureVocabularySize, entry.getValue());
+			if (!featureStartIndices.containsKey(entry.getValue()))
+				featureStartIndices.put(entry.getValue(), featureVocabularySize);
+			if (this.featureBlocks.containsKey(entry.getKey()))
+				featureBlocks.put(featureVocabularySize, this.featureBlocks.get(entry.getKey()));
+			featureVocabularySize += entry.getValue().getVocabularySize();
+		}
+		
+		this.features = features;
+		this.featureStartIndices = featureStartIndices;
+		this.featureBlocks = featureBlocks;
+		this.featureVocabularySize = featureVocabularySize;
+		resetFeatureVocabularyValues();
 		
 		return true;
 	}
 	
+	/**
+	 * Replaces the cached names and vectors after the feature vocabulary 
+	 * changes.  The old ones are replaced rather than cleared since they 
+	 * might still be shared with subsets that have the old vocabulary (even
+	 * if they're empty now, since the subsets can still fill them).  The 
+	 * old vector cache is released, so it is cleared (and its spill file 
+	 * deleted) if no subset shares it.
+	 */
+	private void resetFeatureVocabularyValues() {
+		FeatureVectorCache oldValues = this.featureVocabularyValues;
+		boolean cached = !oldValues.isEmpty();
+		this.featureVocabularyNames = new ConcurrentHashMap<Integer, String>();
+		this.featureVocabularyValues = oldValues.makeEmpty();
+		oldValues.release();
+		if (cached && this.featureVocabularyValues.isBounded())
+			this.precomputedFeatures = false;
+	}
+	
 	public Feature<D, L> getFeature(int index) {
 		return this.featureList.get(index);
 	}
@@ -254,10 +434,15 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 	}
 	
 	public Map<Integer, Double> getFeatureVocabularyValuesAsMap(D datum, boolean cacheValues) {
+		if (!contains(datum))
+			return null;
+		
+		SparseFeatureMatrix.Row row = getFeatureVocabularyRow(datum, cacheValues, false);
+		int[] indices = row.getIndices();
+		double[] values = row.getValues();
 		Map<Integer, Double> map = new HashMap<Integer, Double>();
-		Vector vector = getFeatureVocabularyValues(datum, cacheValues);
-		for (VectorElement vectorElement : vector)
-			map.put(vectorElement.index(), vectorElement.value());
+		for (int i = 0; i < indices.length; i++)
+			map.put(indices[i], values[i]);
 		return map;
 	}
 	
@@ -266,90 +451,475 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 	}
 	
 	public Vector getFeatureVocabularyValues(D datum, boolean cacheValues) {
-		if (!this.data.containsKey(datum.getId()))
+		if (!contains(datum))
 			return null;
-		if (this.featureVocabularyValues.containsKey(datum.getId()))
-			return this.featureVocabularyValues.get(datum.getId());
 		
-		Map<Integer, Double> values = new HashMap<Integer, Double>();
+		SparseFeatureMatrix.Row row = getFeatureVocabularyRow(datum, cacheValues, true);
+		return new SparseVector(getFeatureVocabularySize(), row.getIndices(), row.getValues());
+	}
+	
+	/**
+	 * @param datum
+	 * @param cacheValues
+	 * @return the datum's values, assembled from the rows of the precomputed
+	 * feature blocks.  Features that don't have a precomputed row for the datum 
+	 * (for example, if the datum was added after precomputation) are computed,
+	 * and then the assembled values are cached if cacheValues is true.
+	 * @param copyCached whether to return a copy of the row if it's held by 
+	 * the cache.  Rows held by the cache are shared between callers, so they 
+	 * must be copied before they're handed to anything that can modify them 
+	 * (like a SparseVector).
+	 */
+	private SparseFeatureMatrix.Row getFeatureVocabularyRow(D datum, boolean cacheValues, boolean copyCached) {
+		SparseFeatureMatrix.Row row = this.featureVocabularyValues.get(datum.getId());
+		if (row != null)
+			return (copyCached) ? copyRow(row) : row;
+		
+		FeatureVectorBuffer buffer = this.featureVectorBuffers.get();
+		buffer.clear();
+		boolean computed = false;
 		for (Entry<Integer, Feature<D, L>> featureEntry : this.features.entrySet()) {
-			values = featureEntry.getValue().computeVector(datum, featureEntry.getKey(), values);
+			int startIndex = featureEntry.getKey();
+			SparseFeatureMatrix block = this.featureBlocks.get(startIndex);
+			int position = (block == null) ? -1 : block.getRowPosition(datum.getId());
+			if (position >= 0) {
+				int end = block.getRowEnd(position);
+				for (int i = block.getRowStart(position); i < end; i++)
+					buffer.append(block.getColumnIndex(i) + startIndex, block.getValue(i));
+			} else {
+				featureEntry.getValue().computeVector(datum, startIndex, buffer);
+				computed = true;
+			}
 		}
 		
-		Vector vector = new SparseVector(getFeatureVocabularySize(), values);
-		
-		if (cacheValues)
-			this.featureVocabularyValues.put(datum.getId(), vector);
+		row = buffer.toRow(datum.getId());
+		if (computed && cacheValues) {
+			this.featureVocabularyValues.put(row);
+			if (copyCached)
+				row = copyRow(row);
+		}
 		
-		return vector;
+		return row;
+	}
+	
+	private SparseFeatureMatrix.Row copyRow(SparseFeatureMatrix.Row row) {
+		return new SparseFeatureMatrix.Row(row.getId(), 
+				Arrays.copyOf(row.getIndices(), row.getIndices().length), 
+				Arrays.copyOf(row.getValues(), row.getValues().length));
 	}
 	
 	public Vector computeFeatureVocabularyRange(D datum, int startIndex, int endIndex) {
-		Map<Integer, Double> values = new HashMap<Integer, Double>();
+		FeatureVectorBuffer buffer = this.featureVectorBuffers.get();
+		buffer.clear();
 		for (Entry<Integer, Feature<D, L>> featureEntry : this.features.entrySet()) {
 			if (featureEntry.getKey() + featureEntry.getValue().getVocabularySize() <= startIndex)
 				continue;
 			if (featureEntry.getKey() >= endIndex)
 				break;
 			
-			if (startIndex <= featureEntry.getKey() && endIndex >= featureEntry.getKey() + featureEntry.getValue().getVocabularySize()) {
-				values = featureEntry.getValue().computeVector(datum, featureEntry.getKey(), values);
-			} else {
-				Map<Integer, Double> featureValues = featureEntry.getValue().computeVector(datum);
-			
-				for (Entry<Integer, Double> featureValueEntry : featureValues.entrySet()) {
-					int index = featureValueEntry.getKey() + featureEntry.getKey();
-					if (index < startIndex || index >= endIndex)
-						continue;
-					values.put(index - startIndex, featureValueEntry.getValue());
-				}
-			}
+			featureEntry.getValue().computeVector(datum, featureEntry.getKey() - startIndex, buffer);
 		}
 		
-		return new SparseVector(endIndex - startIndex, values);
+		// Drop the values of features that are only partly within the range
+		buffer.compact();
+		int start = 0;
+		while (start < buffer.size() && buffer.getIndex(start) < 0)
+			start++;
+		int end = start;
+		while (end < buffer.size() && buffer.getIndex(end) < endIndex - startIndex)
+			end++;
+		
+		int[] indices = new int[end - start];
+		double[] values = new double[end - start];
+		for (int i = start; i < end; i++) {
+			indices[i - start] = buffer.getIndex(i);
+			values[i - start] = buffer.getValue(i);
+		}
+		
+		return new SparseVector(endIndex - startIndex, indices, values);
+	}
+	
+	/**
+	 * @param feature
+	 * @param datum
+	 * @param vector
+	 * @return the given vector with the feature's values for the datum 
+	 * (relative to the feature's starting vocabulary index) appended to it.
+	 * The values are copied from the feature's precomputed block if it has a 
+	 * row for the datum, so that features built from other features (like 
+	 * FeatureConjunction) don't recompute them, and they're computed by the
+	 * feature otherwise.
+	 */
+	public FeatureVectorBuffer getFeatureValues(Feature<D, L> feature, D datum, FeatureVectorBuffer vector) {
+		int startIndex = getStartVocabularyIndex(feature);
+		SparseFeatureMatrix block = (startIndex < 0) ? null : this.featureBlocks.get(startIndex);
+		// Blocks only hold values for this data set's datums, so a datum from
+		// another data set with the same id is computed directly
+		int position = (block == null || getDatumById(datum.getId()) != datum) ? -1 : block.getRowPosition(datum.getId());
+		if (position < 0)
+			return feature.computeVector(datum, 0, vector);
+		
+		int end = block.getRowEnd(position);
+		for (int i = block.getRowStart(position); i < end; i++)
+			vector.append(block.getColumnIndex(i), block.getValue(i));
+		return vector;
 	}
 	
 	public boolean precomputeFeatures() {
 		if (this.precomputedFeatures)
 			return true;
 		
+		// A bounded cache is filled (and possibly spilled to disk) rather than 
+		// building the matrix, so that precomputation respects the memory budget
+		if (this.featureVocabularyValues.isBounded())
+			return precomputeFeaturesIntoCache();
+		
+		List<Integer> startIndices = new ArrayList<Integer>();
+		for (Integer startIndex : this.features.keySet())
+			if (!this.featureBlocks.containsKey(startIndex))
+				startIndices.add(startIndex);
+		
+		Map<Integer, SparseFeatureMatrix> blocks = computeFeatureBlocks(startIndices);
+		if (blocks == null)
+			return false;
+		
+		this.featureBlocks.putAll(blocks);
+		this.featureVocabularyValues.clear();
+		this.precomputedFeatures = true;
+		return true;
+	}
+	
+	/**
+	 * @param startIndices
+	 * @return blocks of values for all datums for the features at the given
+	 * starting vocabulary indices.  The values are computed in a single pass
+	 * over the data.
+	 */
+	private Map<Integer, SparseFeatureMatrix> computeFeatureBlocks(final List<Integer> startIndices) {
+		Map<Integer, SparseFeatureMatrix> blocks = new HashMap<Integer, SparseFeatureMatrix>();
+		if (startIndices.size() == 0)
+			return blocks;
+		
+		final List<Feature<D, L>> blockFeatures = new ArrayList<Feature<D, L>>(startIndices.size());
+		for (Integer startIndex : startIndices)
+			blockFeatures.add(this.features.get(startIndex));
+		
+		List<SparseFeatureMatrix.Row[]> datumRows = map(new ThreadMapper.Fn<D, SparseFeatureMatrix.Row[]>() {
+			@Override
+			public SparseFeatureMatrix.Row[] apply(D datum) {
+				FeatureVectorBuffer buffer = featureVectorBuffers.get();
+				SparseFeatureMatrix.Row[] rows = new SparseFeatureMatrix.Row[blockFeatures.size()];
+				for (int i = 0; i < rows.length; i++) {
+					buffer.clear();
+					rows[i] = blockFeatures.get(i).computeVector(datum, 0, buffer).toRow(datum.getId());
+				}
+				return rows;
+			}
+		}, this.maxThreads);
+		
+		if (datumRows == null)
+			return null;
+		
+		for (int i = 0; i < blockFeatures.size(); i++) {
+			List<SparseFeatureMatrix.Row> rows = new ArrayList<SparseFeatureMatrix.Row>(datumRows.size());
+			for (SparseFeatureMatrix.Row[] datumRow : datumRows) {
+				rows.add(datumRow[i]);
+				datumRow[i] = null;
+			}
+			
+			blocks.put(startIndices.get(i), SparseFeatureMatrix.fromRows(blockFeatures.get(i).getVocabularySize(), rows));
+		}
+		
+		return blocks;
+	}
+	
+	private SparseFeatureMatrix.Row computeFeatureVocabularyRow(D datum) {
+		FeatureVectorBuffer buffer = this.featureVectorBuffers.get();
+		buffer.clear();
+		for (Entry<Integer, Feature<D, L>> featureEntry : this.features.entrySet())
+			featureEntry.getValue().computeVector(datum, featureEntry.getKey(), buffer);
+		return buffer.toRow(datum.getId());
+	}
+	
+	private boolean precomputeFeaturesIntoCache() {
 		List<Boolean> threadResults = map(new ThreadMapper.Fn<D, Boolean>() {
 			@Override
 			public Boolean apply(D datum) {
-				Vector featureVector = getFeatureVocabularyValues(datum);
-					if (featureVector == null)
-						return false;
+				if (featureVocabularyValues.contains(datum.getId()))
+					return true;
 				
-				return true;
+				return featureVocabularyValues.put(computeFeatureVocabularyRow(datum));
 			}
 		}, this.maxThreads);
 		
-
+		if (threadResults == null)
+			return false;
 		for (boolean result : threadResults)
 			if (!result)
 				return false;
 		
+		getDatumTools().getDataTools().getOutputWriter().debugWriteln(this.name + " " + this.featureVocabularyValues.toString());
+		
 		this.precomputedFeatures = true;
 		return true;
 	}
 	
+	/**
+	 * Saves the features (including their vocabularies), their starting
+	 * vocabulary indices, and their precomputed blocks of values to a binary 
+	 * file.  The file is keyed by computeFeatureSnapshotKey so that it is only 
+	 * loaded by addFeaturesFromSnapshot for the same feature configuration 
+	 * and datums.  The file has the format:
+	 * 
+	 * [magic (int)][version (int)][key (long)]
+	 * [length of feature context (int)][feature context (UTF-8)]
+	 * [feature count (int)][starting vocabulary index for each feature, or -1 if ignored (int)...]
+	 * [feature vocabulary size (int)][padding to 8 bytes]
+	 * [block for each feature that isn't ignored, in order of starting index (see SparseFeatureMatrix.write)...]
+	 * 
+	 * @param file
+	 * @return true if the snapshot has been saved
+	 */
+	public boolean saveFeatureSnapshot(File file) {
+		if (!precomputeFeatures())
+			return false;
+		
+		// A bounded cache doesn't keep blocks, so compute them for the snapshot
+		List<Integer> missingStartIndices = new ArrayList<Integer>();
+		for (Integer startIndex : this.features.keySet())
+			if (!this.featureBlocks.containsKey(startIndex))
+				missingStartIndices.add(startIndex);
+		Map<Integer, SparseFeatureMatrix> missingBlocks = computeFeatureBlocks(missingStartIndices);
+		if (missingBlocks == null)
+			return false;
+		
+		Long key = computeFeatureSnapshotKey(this.featureList);
+		if (key == null)
+			return false;
+		
+		byte[] context = new Context<D, L>(getDatumTools(), this.featureList).toString().getBytes(Charset.forName("UTF-8"));
+		
+		try {
+			DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+			writer.writeInt(SNAPSHOT_MAGIC);
+			writer.writeInt(SNAPSHOT_VERSION);
+			writer.writeLong(key);
+			writer.writeInt(context.length);
+			writer.write(context);
+			writer.writeInt(this.featureList.size());
+			for (Feature<D, L> feature : this.featureList)
+				writer.writeInt(getStartVocabularyIndex(feature));
+			writer.writeInt(this.featureVocabularySize);
+			
+			long length = 28 + context.length + 4*this.featureList.size();
+			for (; length % 8 != 0; length++)
+				writer.writeByte(0);
+			
+			for (Integer startIndex : this.features.keySet()) {
+				SparseFeatureMatrix block = this.featureBlocks.get(startIndex);
+				if (block == null)
+					block = missingBlocks.get(startIndex);
+				block.write(writer);
+			}
+			
+			writer.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Adds features and their precomputed values to the data set from a
+	 * snapshot saved by saveFeatureSnapshot.  The given features should
+	 * be uninitialized instances with the same configuration and reference
+	 * names as the features that were saved, and their vocabularies are 
+	 * loaded from the snapshot.  The precomputed blocks of values are memory-mapped 
+	 * from the file rather than read onto the heap.
+	 * 
+	 * @param features
+	 * @param file
+	 * @return true if the features have been added from the snapshot.  If
+	 * the snapshot does not exist, or was saved for a different feature
+	 * configuration or set of datums, then this returns false without 
+	 * changing the data set, and the features should be initialized and 
+	 * added normally.
+	 */
+	public boolean addFeaturesFromSnapshot(List<Feature<D, L>> features, File file) {
+		if (!file.exists() || this.featureList.size() > 0)
+			return false;
+		
+		Long key = computeFeatureSnapshotKey(features);
+		if (key == null)
+			return false;
+		
+		try {
+			DataInputStream reader = new DataInputStream(new FileInputStream(file));
+			List<Feature<D, L>> savedFeatures = null;
+			int[] startIndices = null;
+			int featureVocabularySize = 0;
+			long length = 0;
+			try {
+				if (reader.readInt() != SNAPSHOT_MAGIC
+						|| reader.readInt() != SNAPSHOT_VERSION
+						|| reader.readLong() != key)
+					return false;
+			
+				byte[] context = new byte[reader.readInt()];
+				reader.readFully(context);
+				Context<D, L> savedContext = Context.deserialize(getDatumTools(), new String(context, Charset.forName("UTF-8")));
+				if (savedContext == null)
+					return false;
+				savedFeatures = savedContext.getFeatures();
+			
+				startIndices = new int[reader.readInt()];
+				for (int i = 0; i < startIndices.length; i++)
+					startIndices[i] = reader.readInt();
+				featureVocabularySize = reader.readInt();
+				
+				length = 28 + context.length + 4*startIndices.length;
+				length += (8 - length % 8) % 8;
+			} finally {
+				reader.close();
+			}
+			
+			if (startIndices.length != features.size() || savedFeatures.size() != features.size())
+				return false;
+			
+			// The saved context orders features by reference name, so they're
+			// matched to the given features by name
+			Map<String, Feature<D, L>> savedFeaturesByName = new HashMap<String, Feature<D, L>>();
+			for (Feature<D, L> savedFeature : savedFeatures)
+				savedFeaturesByName.put(savedFeature.getReferenceName(), savedFeature);
+			
+			// The saved features are checked against copies of the given features 
+			// and their layout, so that the given features and the data set are only
+			// changed once the snapshot is known to match
+			List<Obj> savedParses = new ArrayList<Obj>(features.size());
+			int startIndex = 0;
+			for (int i = 0; i < features.size(); i++) {
+				Feature<D, L> feature = features.get(i);
+				Feature<D, L> savedFeature = savedFeaturesByName.get(feature.getReferenceName());
+				if (savedFeature == null || !savedFeature.getGenericName().equals(feature.getGenericName()))
+					return false;
+				
+				Obj savedParse = savedFeature.toParse();
+				Feature<D, L> featureCopy = feature.context.getDatumTools().makeFeatureInstance(feature.getGenericName(), feature.context);
+				if (!featureCopy.fromParse(feature.getModifiers(), feature.getReferenceName(), savedParse))
+					return false;
+				
+				if (featureCopy.isIgnored()) {
+					if (startIndices[i] != -1)
+						return false;
+				} else {
+					if (startIndices[i] != startIndex)
+						return false;
+					startIndex += featureCopy.getVocabularySize();
+				}
+				
+				savedParses.add(savedParse);
+			}
+			
+			if (startIndex != featureVocabularySize)
+				return false;
+			
+			Map<Integer, SparseFeatureMatrix> blocks = new HashMap<Integer, SparseFeatureMatrix>();
+			RandomAccessFile blockFile = new RandomAccessFile(file, "r");
+			try {
+				for (int i = 0; i < startIndices.length; i++) {
+					if (startIndices[i] < 0)
+						continue;
+					SparseFeatureMatrix block = SparseFeatureMatrix.map(blockFile.getChannel(), length);
+					blocks.put(startIndices[i], block);
+					length += block.getWrittenSize();
+				}
+			} finally {
+				blockFile.close(); // Mapped regions remain valid after the channel is closed
+			}
+			
+			for (int i = 0; i < features.size(); i++) {
+				Feature<D, L> feature = features.get(i);
+				if (!feature.fromParse(feature.getModifiers(), feature.getReferenceName(), savedParses.get(i)))
+					return false;
+			}
+			
+			if (!addFeatures(features, false))
+				return false;
+			
+			this.featureBlocks.putAll(blocks);
+			this.featureVocabularyValues.clear();
+			this.precomputedFeatures = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @param features
+	 * @return a hash of the configurations of the given features (excluding
+	 * their vocabularies and other internal state) and the ids of the 
+	 * datums in this data set.  This is used to key the snapshots saved by
+	 * saveFeatureSnapshot.
+	 */
+	public Long computeFeatureSnapshotKey(List<Feature<D, L>> features) {
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		Charset utf8 = Charset.forName("UTF-8");
+		for (Feature<D, L> feature : features) {
+			digest.update(String.valueOf(feature.getReferenceName()).getBytes(utf8));
+			digest.update(String.valueOf(feature.getModifiers()).getBytes(utf8));
+			digest.update(feature.toParse(false).toString().getBytes(utf8));
+		}
+		
+		byte[] id = new byte[4];
+		for (D datum : this) {
+			id[0] = (byte)(datum.getId() >>> 24);
+			id[1] = (byte)(datum.getId() >>> 16);
+			id[2] = (byte)(datum.getId() >>> 8);
+			id[3] = (byte)datum.getId();
+			digest.update(id);
+		}
+		
+		byte[] hash = digest.digest();
+		long key = 0;
+		for (int i = 0; i < 8; i++)
+			key = (key << 8) | (hash[i] & 0xFF);
+		return key;
+	}
+	
+	private int getStartVocabularyIndex(Feature<D, L> feature) {
+		Integer startIndex = this.featureStartIndices.get(feature);
+		return (startIndex == null) ? -1 : startIndex;
+	}
+	
+	/**
+	 * @return an empty FeaturizedDataSet with this data set's features 
+	 * that shares this data set's cached and precomputed values, into which
+	 * getSubset and makePartition add datums
+	 */
 	@Override
-	public DataSet<D, L> getSubset(DataFilter dataFilter) {
-		FeaturizedDataSet<D, L> subset = new FeaturizedDataSet<D, L>(this.name + " " + dataFilter, this.maxThreads, getDatumTools(), getLabelMapping());
-		Iterator<D> iterator = iterator(dataFilter);
+	protected DataSet<D, L> makeSubsetInstance(String name) {
+		FeaturizedDataSet<D, L> subset = new FeaturizedDataSet<D, L>(this.name + " " + name, this.maxThreads, getDatumTools(), getLabelMapping());
 		
 		if (!subset.addFeatures(this.featureList, false))
 			return null;
 		
 		subset.featureVocabularyNames = this.featureVocabularyNames;
+		subset.featureVocabularyValues = this.featureVocabularyValues.share();
+		subset.featureBlocks = new TreeMap<Integer, SparseFeatureMatrix>(this.featureBlocks);
 		subset.precomputedFeatures = this.precomputedFeatures;
 		
-		while (iterator.hasNext()) {
-			D datum = iterator.next();
-			subset.add(datum);
-			subset.featureVocabularyValues.put(datum.getId(), this.featureVocabularyValues.get(datum.getId()));
-		}
-		
 		return subset;
 	}
 	
@@ -368,64 +938,172 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		
 		dataSet.featureVocabularySize = this.featureVocabularySize;
 		dataSet.featureVocabularyNames = this.featureVocabularyNames;
-		dataSet.featureVocabularyValues = this.featureVocabularyValues;
+		dataSet.featureVocabularyValues = this.featureVocabularyValues.share();
+		dataSet.featureBlocks = new TreeMap<Integer, SparseFeatureMatrix>(this.featureBlocks);
 		
 		return dataSet;
 	}
 	
-	public DataSetInMemory<PredictedDataInstance<Vector, Double>> makePlataniosDataSet(boolean weightedLabels, double minPositiveSampleRate, boolean onlyLabeled, boolean infiniteVectorsWithBias) {
-		double pos = (this.labeledData.get(true) != null) ? this.labeledData.get(true).size() : 1.0;
-		double neg = (this.labeledData.get(false) != null) ? this.labeledData.get(false).size() : 0.0;
-		double posFrac = pos/(pos+neg);
-		double negFrac = 1.0;
-		if (posFrac < minPositiveSampleRate) {
-			double targetNeg = (pos-minPositiveSampleRate*pos)/minPositiveSampleRate;
-			negFrac = targetNeg/neg;
+	/**
+	 * PlataniosDataInstanceIterator lazily constructs platanios data instances
+	 * for the datums in the data set (see makePlataniosDataInstances).  
+	 * Negative datums that are not sampled are skipped before their vectors 
+	 * are constructed.
+	 */
+	public class PlataniosDataInstanceIterator implements Iterator<PredictedDataInstance<Vector, Double>> {
+		private Iterator<D> iterator;
+		private boolean weightedLabels;
+		private boolean infiniteVectorsWithBias;
+		private double negativeSampleRate;
+		private Random random;
+		private D next;
+		
+		public PlataniosDataInstanceIterator(boolean weightedLabels, double minPositiveSampleRate, boolean onlyLabeled, boolean infiniteVectorsWithBias) {
+			this.iterator = iterator((onlyLabeled) ? DataFilter.OnlyLabeled : DataFilter.All);
+			this.weightedLabels = weightedLabels;
+			this.infiniteVectorsWithBias = infiniteVectorsWithBias;
+			this.negativeSampleRate = getNegativeSampleRate(minPositiveSampleRate);
+			this.random = getDatumTools().getDataTools().makeLocalRandom();
+			iterate();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.next != null;
+		}
+
+		@Override
+		public PredictedDataInstance<Vector, Double> next() {
+			if (this.next == null)
+				throw new NoSuchElementException();
+			
+			D next = this.next;
+			
+			iterate();
+			
+			return makePlataniosDataInstance(next, this.weightedLabels, this.infiniteVectorsWithBias);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
 		
-		final double finalNegFrac = negFrac;
+		private void iterate() {
+			do {
+				if (this.iterator.hasNext())
+					this.next = this.iterator.next();
+				else
+					this.next = null;
+			} while (this.next != null && !isPlataniosDatumSampled(this.next, this.negativeSampleRate, this.random));
+		}
+	}
+	
+	/**
+	 * @param weightedLabels
+	 * @param minPositiveSampleRate
+	 * @param onlyLabeled
+	 * @param infiniteVectorsWithBias
+	 * @return the same instances as makePlataniosDataSet, but constructed 
+	 * one at a time as they are iterated over rather than all held in 
+	 * memory at once.  This is useful when the instances only need to be
+	 * visited once (for example, when classifying).
+	 */
+	public Iterable<PredictedDataInstance<Vector, Double>> makePlataniosDataInstances(final boolean weightedLabels, final double minPositiveSampleRate, final boolean onlyLabeled, final boolean infiniteVectorsWithBias) {
+		return new Iterable<PredictedDataInstance<Vector, Double>>() {
+			@Override
+			public Iterator<PredictedDataInstance<Vector, Double>> iterator() {
+				return new PlataniosDataInstanceIterator(weightedLabels, minPositiveSampleRate, onlyLabeled, infiniteVectorsWithBias);
+			}
+		};
+	}
+	
+	public DataSetInMemory<PredictedDataInstance<Vector, Double>> makePlataniosDataSet(final boolean weightedLabels, double minPositiveSampleRate, final boolean onlyLabeled, final boolean infiniteVectorsWithBias) {
+		final double negativeSampleRate = getNegativeSampleRate(minPositiveSampleRate);
 		final Random r = getDatumTools().getDataTools().makeLocalRandom();
 		
 		List<PredictedDataInstance<Vector, Double>> dataInstances = this.map(new ThreadMapper.Fn<D, PredictedDataInstance<Vector, Double>>() {
-				@SuppressWarnings("unchecked")
 				@Override
 				public PredictedDataInstance<Vector, Double> apply(D datum) {
-					Vector vector = null;
-					if (infiniteVectorsWithBias) {
-						Vector features = getFeatureVocabularyValues(datum, false);
-						Map<Integer, Double> vectorMap = new HashMap<Integer, Double>();
-						vectorMap.put(0, 1.0);
-						for (VectorElement featureElement : features)
-							vectorMap.put(featureElement.index() + 1, featureElement.value());
-						vector = new SparseVector(Integer.MAX_VALUE, vectorMap);
-					} else {
-						vector = getFeatureVocabularyValues(datum, false);
-					}
-					
-					Double label = null;
-					if (datum.getLabel() != null) {
-						if (!(Boolean)datum.getLabel() && r.nextDouble() > finalNegFrac)
-							return null;					
-						if (weightedLabels) {
-							label = datum.getLabelWeight((L)(new Boolean(true)));
-						} else {
-							label = (Boolean)datum.getLabel() ? 1.0 : 0.0;
-						}
-					}
-				
-					return new PredictedDataInstance<Vector, Double>(String.valueOf(datum.getId()), vector, label, null, 1);
+					if (onlyLabeled && datum.getLabel() == null)
+						return null;
+					if (!isPlataniosDatumSampled(datum, negativeSampleRate, r))
+						return null;
+					return makePlataniosDataInstance(datum, weightedLabels, infiniteVectorsWithBias);
 				}
 			});
 		
-		// FIXME: Could do this faster by adding to list in thread mapper... but this is good enough for now
-		List<PredictedDataInstance<Vector, Double>> retDataInstances = new ArrayList<PredictedDataInstance<Vector, Double>>();
+		List<PredictedDataInstance<Vector, Double>> retDataInstances = new ArrayList<PredictedDataInstance<Vector, Double>>(dataInstances.size());
 		for (PredictedDataInstance<Vector, Double> dataInstance : dataInstances) {
-			if (dataInstance == null) 
-				continue;
-			if (!onlyLabeled || dataInstance.label() != null)
+			if (dataInstance != null) 
 				retDataInstances.add(dataInstance);
 		}
 		
 		return new DataSetInMemory<PredictedDataInstance<Vector, Double>>(retDataInstances);
 	}
+	
+	/**
+	 * @param minPositiveSampleRate
+	 * @return the rate at which negative datums should be sampled so that
+	 * at least minPositiveSampleRate of the sampled labeled datums are 
+	 * positive
+	 */
+	@SuppressWarnings("unchecked")
+	private double getNegativeSampleRate(double minPositiveSampleRate) {
+		int posCount = getDataSizeForLabel((L)(new Boolean(true)));
+		double pos = (posCount > 0) ? posCount : 1.0;
+		double neg = getDataSizeForLabel((L)(new Boolean(false)));
+		double posFrac = pos/(pos+neg);
+		double negFrac = 1.0;
+		if (posFrac < minPositiveSampleRate) {
+			double targetNeg = (pos-minPositiveSampleRate*pos)/minPositiveSampleRate;
+			negFrac = targetNeg/neg;
+		}
+		return negFrac;
+	}
+	
+	private boolean isPlataniosDatumSampled(D datum, double negativeSampleRate, Random r) {
+		return datum.getLabel() == null || (Boolean)datum.getLabel() || r.nextDouble() <= negativeSampleRate;
+	}
+	
+	/**
+	 * @param datum
+	 * @param weightedLabels
+	 * @param infiniteVectorsWithBias
+	 * @return a platanios data instance for the datum.  If infiniteVectorsWithBias
+	 * is true, then the instance's vector has a bias term at index 0 and the 
+	 * feature values shifted up by one index.  The shifted vector is constructed 
+	 * directly from the arrays of the datum's row.
+	 */
+	@SuppressWarnings("unchecked")
+	private PredictedDataInstance<Vector, Double> makePlataniosDataInstance(D datum, boolean weightedLabels, boolean infiniteVectorsWithBias) {
+		Vector vector = null;
+		if (infiniteVectorsWithBias) {
+			SparseFeatureMatrix.Row row = getFeatureVocabularyRow(datum, false, false);
+			int[] rowIndices = row.getIndices();
+			double[] rowValues = row.getValues();
+			int[] indices = new int[rowIndices.length + 1];
+			double[] values = new double[rowValues.length + 1];
+			indices[0] = 0;
+			values[0] = 1.0;
+			for (int i = 0; i < rowIndices.length; i++) {
+				indices[i + 1] = rowIndices[i] + 1;
+				values[i + 1] = rowValues[i];
+			}
+			vector = new SparseVector(Integer.MAX_VALUE, indices, values);
+		} else {
+			vector = getFeatureVocabularyValues(datum, false);
+		}
+		
+		Double label = null;
+		if (datum.getLabel() != null) {
+			if (weightedLabels) {
+				label = datum.getLabelWeight((L)(new Boolean(true)));
+			} else {
+				label = (Boolean)datum.getLabel() ? 1.0 : 0.0;
+			}
+		}
+	
+		return new PredictedDataInstance<Vector, Double>(String.valueOf(datum.getId()), vector, label, null, 1);
+	}
 }
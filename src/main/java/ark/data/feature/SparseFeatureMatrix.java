@@ -0,0 +1,356 @@
+package ark.data.feature;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.platanios.learn.math.matrix.SparseVector;
+import org.platanios.learn.math.matrix.Vector;
+
+/**
+ * SparseFeatureMatrix is an immutable compressed-sparse-row (CSR) store of
+ * feature vectors for a collection of datums.  All of the rows share three
+ * flat arrays (row offsets, column indices, and values), so storing a
+ * vector costs 12 bytes per non-zero entry rather than a boxed
+ * object per entry.
+ *
+ * Rows are keyed by datum id, and the ids are kept in a sorted array
+ * so that a row is found by binary search.  Vectors returned by getRow are
+ * short-lived SparseVector views constructed from the row's slice of
+ * the shared arrays.
+ *
+ * The arrays are held in java.nio buffers so that a matrix can either
+ * live on the heap or be memory-mapped from a file written by the write
+ * method (see FeaturizedDataSet.saveFeatureSnapshot).  The column indices
+ * and values are split into segments of at most 2^27 entries, since
+ * a single mapped buffer cannot be larger than 2GB.
+ */
+public class SparseFeatureMatrix {
+	/**
+	 * Row holds the sparse values of a single datum while the matrix is
+	 * being constructed.  Indices must be sorted in increasing order.
+	 */
+	public static class Row {
+		private int id;
+		private int[] indices;
+		private double[] values;
+
+		public Row(int id, int[] indices, double[] values) {
+			this.id = id;
+			this.indices = indices;
+			this.values = values;
+		}
+
+		public Row(int id, Map<Integer, Double> values) {
+			this.id = id;
+			this.indices = new int[values.size()];
+			this.values = new double[values.size()];
+
+			int i = 0;
+			for (Integer index : values.keySet()) {
+				this.indices[i] = index;
+				i++;
+			}
+
+			Arrays.sort(this.indices);
+			for (i = 0; i < this.indices.length; i++)
+				this.values[i] = values.get(this.indices[i]);
+		}
+
+		public int getId() {
+			return this.id;
+		}
+
+		public int[] getIndices() {
+			return this.indices;
+		}
+
+		public double[] getValues() {
+			return this.values;
+		}
+	}
+
+	private static final int SEGMENT_BITS = 27;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private int columnCount;
+	private int rowCount;
+	private IntBuffer rowIds;
+	private IntBuffer rowOffsets;
+	private IntBuffer[] columnIndices;
+	private DoubleBuffer[] values;
+
+	private SparseFeatureMatrix(int columnCount, IntBuffer rowIds, IntBuffer rowOffsets, IntBuffer[] columnIndices, DoubleBuffer[] values) {
+		this.columnCount = columnCount;
+		this.rowCount = rowIds.limit();
+		this.rowIds = rowIds;
+		this.rowOffsets = rowOffsets;
+		this.columnIndices = columnIndices;
+		this.values = values;
+	}
+
+	public SparseFeatureMatrix(int columnCount, int[] rowIds, int[] rowOffsets, int[] columnIndices, double[] values) {
+		this.columnCount = columnCount;
+		this.rowCount = rowIds.length;
+		this.rowIds = IntBuffer.wrap(rowIds);
+		this.rowOffsets = IntBuffer.wrap(rowOffsets);
+
+		int segmentCount = getSegmentCount(columnIndices.length);
+		this.columnIndices = new IntBuffer[segmentCount];
+		this.values = new DoubleBuffer[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			int start = i*SEGMENT_SIZE;
+			int length = Math.min(SEGMENT_SIZE, columnIndices.length - start);
+			this.columnIndices[i] = IntBuffer.wrap(columnIndices, start, length).slice();
+			this.values[i] = DoubleBuffer.wrap(values, start, length).slice();
+		}
+	}
+
+	/**
+	 * @param columnCount
+	 * @param rows
+	 * @return a matrix containing the given rows.  The rows list is sorted
+	 * by datum id as a side effect.
+	 */
+	public static SparseFeatureMatrix fromRows(int columnCount, List<Row> rows) {
+		Collections.sort(rows, new Comparator<Row>() {
+			@Override
+			public int compare(Row r1, Row r2) {
+				return Integer.compare(r1.id, r2.id);
+			}
+		});
+
+		int size = 0;
+		for (Row row : rows)
+			size += row.indices.length;
+
+		int[] rowIds = new int[rows.size()];
+		int[] rowOffsets = new int[rows.size() + 1];
+		int[] columnIndices = new int[size];
+		double[] values = new double[size];
+
+		int offset = 0;
+		for (int i = 0; i < rows.size(); i++) {
+			Row row = rows.get(i);
+			rowIds[i] = row.id;
+			rowOffsets[i] = offset;
+			System.arraycopy(row.indices, 0, columnIndices, offset, row.indices.length);
+			System.arraycopy(row.values, 0, values, offset, row.values.length);
+			offset += row.indices.length;
+		}
+		rowOffsets[rows.size()] = offset;
+
+		return new SparseFeatureMatrix(columnCount, rowIds, rowOffsets, columnIndices, values);
+	}
+
+	public int getColumnCount() {
+		return this.columnCount;
+	}
+
+	public int getRowCount() {
+		return this.rowCount;
+	}
+
+	public int getNonZeroCount() {
+		return this.rowOffsets.get(this.rowCount);
+	}
+
+	/**
+	 * @param id
+	 * @return the position of the row for the datum with the given id, or
+	 * a negative number if the matrix does not contain the datum
+	 */
+	public int getRowPosition(int id) {
+		int low = 0;
+		int high = this.rowCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midId = this.rowIds.get(mid);
+			if (midId < id)
+				low = mid + 1;
+			else if (midId > id)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	public boolean containsRow(int id) {
+		return getRowPosition(id) >= 0;
+	}
+
+	public int getRowId(int position) {
+		return this.rowIds.get(position);
+	}
+
+	public int getRowStart(int position) {
+		return this.rowOffsets.get(position);
+	}
+
+	public int getRowEnd(int position) {
+		return this.rowOffsets.get(position + 1);
+	}
+
+	public int getColumnIndex(int offset) {
+		return this.columnIndices[offset >>> SEGMENT_BITS].get(offset & SEGMENT_MASK);
+	}
+
+	public double getValue(int offset) {
+		return this.values[offset >>> SEGMENT_BITS].get(offset & SEGMENT_MASK);
+	}
+
+	/**
+	 * @param id
+	 * @return the row for the datum with the given id (with arrays copied
+	 * out of the matrix), or null if the matrix does not contain the datum
+	 */
+	public Row getRowValues(int id) {
+		int position = getRowPosition(id);
+		if (position < 0)
+			return null;
+
+		int start = this.rowOffsets.get(position);
+		int end = this.rowOffsets.get(position + 1);
+		int[] rowIndices = new int[end - start];
+		double[] rowValues = new double[end - start];
+		for (int i = start; i < end; i++) {
+			rowIndices[i - start] = getColumnIndex(i);
+			rowValues[i - start] = getValue(i);
+		}
+
+		return new Row(id, rowIndices, rowValues);
+	}
+
+	/**
+	 * @param id
+	 * @return a sparse vector containing the values of the row for the
+	 * datum with the given id, or null if the matrix does not contain the
+	 * datum
+	 */
+	public Vector getRow(int id) {
+		Row row = getRowValues(id);
+		if (row == null)
+			return null;
+		return new SparseVector(this.columnCount, row.indices, row.values);
+	}
+
+	public Map<Integer, Double> getRowAsMap(int id, Map<Integer, Double> map) {
+		int position = getRowPosition(id);
+		if (position < 0)
+			return null;
+
+		int end = this.rowOffsets.get(position + 1);
+		for (int i = this.rowOffsets.get(position); i < end; i++)
+			map.put(getColumnIndex(i), getValue(i));
+
+		return map;
+	}
+
+	/**
+	 * @return the number of bytes used by the arrays backing this matrix
+	 */
+	public long getMemorySize() {
+		return 4L*this.rowCount + 4L*(this.rowCount + 1) + 12L*getNonZeroCount();
+	}
+
+	/**
+	 * @return the number of bytes written by the write method
+	 */
+	public long getWrittenSize() {
+		int nonZeroCount = getNonZeroCount();
+		long length = 16 + 4L*(2*this.rowCount + 1) + 4L*nonZeroCount;
+		if (length % 8 != 0)
+			length += 4;
+		return length + 8L*nonZeroCount;
+	}
+	
+	/**
+	 * Writes the matrix in the format read by the map method.  The
+	 * writer should be positioned at a multiple of 8 bytes from the start
+	 * of the file.
+	 *
+	 * @param writer
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long write(DataOutputStream writer) throws IOException {
+		int nonZeroCount = getNonZeroCount();
+		writer.writeInt(this.columnCount);
+		writer.writeInt(this.rowCount);
+		writer.writeInt(nonZeroCount);
+		writer.writeInt(0);
+
+		for (int i = 0; i < this.rowCount; i++)
+			writer.writeInt(this.rowIds.get(i));
+		for (int i = 0; i <= this.rowCount; i++)
+			writer.writeInt(this.rowOffsets.get(i));
+		for (int i = 0; i < nonZeroCount; i++)
+			writer.writeInt(getColumnIndex(i));
+
+		long length = 16 + 4L*(2*this.rowCount + 1) + 4L*nonZeroCount;
+		if (length % 8 != 0) {
+			writer.writeInt(0);
+			length += 4;
+		}
+
+		for (int i = 0; i < nonZeroCount; i++)
+			writer.writeDouble(getValue(i));
+
+		return length + 8L*nonZeroCount;
+	}
+
+	/**
+	 * @param channel
+	 * @param position
+	 * @return a read-only matrix backed by memory-mapped regions of
+	 * the channel's file, starting at the given position (where a matrix
+	 * was previously written by the write method).
+	 * @throws IOException
+	 */
+	public static SparseFeatureMatrix map(FileChannel channel, long position) throws IOException {
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, position, 16);
+		int columnCount = header.getInt();
+		int rowCount = header.getInt();
+		int nonZeroCount = header.getInt();
+		position += 16;
+
+		IntBuffer rowIds = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*rowCount).asIntBuffer();
+		position += 4L*rowCount;
+		IntBuffer rowOffsets = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*(rowCount + 1)).asIntBuffer();
+		position += 4L*(rowCount + 1);
+
+		int segmentCount = getSegmentCount(nonZeroCount);
+		IntBuffer[] columnIndices = new IntBuffer[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			int length = Math.min(SEGMENT_SIZE, nonZeroCount - i*SEGMENT_SIZE);
+			columnIndices[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*length).asIntBuffer();
+			position += 4L*length;
+		}
+
+		if (position % 8 != 0)
+			position += 4;
+
+		DoubleBuffer[] values = new DoubleBuffer[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			int length = Math.min(SEGMENT_SIZE, nonZeroCount - i*SEGMENT_SIZE);
+			values[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L*length).asDoubleBuffer();
+			position += 8L*length;
+		}
+
+		return new SparseFeatureMatrix(columnCount, rowIds, rowOffsets, columnIndices, values);
+	}
+
+	private static int getSegmentCount(int size) {
+		return (int)(((long)size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+	}
+}
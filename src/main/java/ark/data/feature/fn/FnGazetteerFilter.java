@@ -58,7 +58,7 @@ public class FnGazetteerFilter extends Fn<String, String> {
 	@Override
 	public <C extends Collection<String>> C compute(Collection<String> input, C output) {
 		for (String str : input) {
-			List<Pair<String, Double>> ids = this.gazetteer.getWeightedIds(str);
+			List<Pair<String, Double>> ids = this.context.getDatumTools().getDataTools().getCachedWeightedIds(this.gazetteer, str);
 			for (Pair<String, Double> id : ids) {
 				if (id.getFirst().equals(this.idFilter) && id.getSecond() >= this.weightThreshold) {
 					output.add(str);
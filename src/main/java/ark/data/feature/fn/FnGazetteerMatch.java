@@ -0,0 +1,109 @@
+package ark.data.feature.fn;
+
+import java.util.Collection;
+import java.util.List;
+
+import ark.data.Context;
+import ark.data.Gazetteer;
+import ark.data.annotation.nlp.DocumentNLP;
+import ark.data.annotation.nlp.TokenSpan;
+import ark.parse.AssignmentList;
+import ark.parse.Obj;
+import ark.util.AhoCorasick;
+import ark.util.Pair;
+
+/**
+ * FnGazetteerMatch maps each token span to the sub-spans that are
+ * gazetteer values with an id that has at least the weight threshold (and
+ * that is equal to the id filter, if one is given).  The sub-spans are
+ * found in one pass over each span by Gazetteer.findMatches, rather than
+ * by cleaning and looking up each n-gram of the span separately.
+ */
+public class FnGazetteerMatch extends Fn<TokenSpan, TokenSpan> {
+	private String[] parameterNames = { "gazetteer", "weightThreshold", "idFilter" };
+	private Gazetteer gazetteer;
+	private double weightThreshold;
+	private String idFilter = "";
+
+	private Context<?, ?> context;
+
+	public FnGazetteerMatch() {
+
+	}
+
+	public FnGazetteerMatch(Context<?, ?> context) {
+		this.context = context;
+	}
+
+	@Override
+	public String[] getParameterNames() {
+		return this.parameterNames;
+	}
+
+	@Override
+	public Obj getParameterValue(String parameter) {
+		if (parameter.equals("gazetteer"))
+			return Obj.stringValue((this.gazetteer == null) ? "" : this.gazetteer.getName());
+		else if (parameter.equals("weightThreshold"))
+			return Obj.stringValue(String.valueOf(this.weightThreshold));
+		else if (parameter.equals("idFilter"))
+			return Obj.stringValue(this.idFilter);
+		return null;
+	}
+
+	@Override
+	public boolean setParameterValue(String parameter, Obj parameterValue) {
+		if (parameter.equals("gazetteer"))
+			this.gazetteer = this.context.getDatumTools().getDataTools().getGazetteer(this.context.getMatchValue(parameterValue));
+		else if (parameter.equals("weightThreshold"))
+			this.weightThreshold = Double.valueOf(this.context.getMatchValue(parameterValue));
+		else if (parameter.equals("idFilter"))
+			this.idFilter = this.context.getMatchValue(parameterValue);
+		else
+			return false;
+		return true;
+	}
+
+	@Override
+	public <C extends Collection<TokenSpan>> C compute(Collection<TokenSpan> input, C output) {
+		for (TokenSpan tokenSpan : input) {
+			DocumentNLP document = tokenSpan.getDocument();
+			int sentenceIndex = tokenSpan.getSentenceIndex();
+			String[] tokens = new String[tokenSpan.getLength()];
+			for (int i = 0; i < tokens.length; i++)
+				tokens[i] = document.getTokenStr(sentenceIndex, tokenSpan.getStartTokenIndex() + i);
+
+			List<AhoCorasick.Match<List<Pair<String, Double>>>> matches = this.gazetteer.findMatches(tokens);
+			for (AhoCorasick.Match<List<Pair<String, Double>>> match : matches) {
+				for (Pair<String, Double> id : match.getValue()) {
+					if ((this.idFilter.length() == 0 || id.getFirst().equals(this.idFilter)) && id.getSecond() >= this.weightThreshold) {
+						output.add(tokenSpan.getSubspan(match.getStart(), match.getEnd()));
+						break;
+					}
+				}
+			}
+		}
+
+		return output;
+	}
+
+	@Override
+	public Fn<TokenSpan, TokenSpan> makeInstance(Context<?, ?> context) {
+		return new FnGazetteerMatch(context);
+	}
+
+	@Override
+	protected boolean fromParseInternal(AssignmentList internalAssignments) {
+		return true;
+	}
+
+	@Override
+	protected AssignmentList toParseInternal() {
+		return null;
+	}
+
+	@Override
+	public String getGenericName() {
+		return "GazetteerMatch";
+	}
+}
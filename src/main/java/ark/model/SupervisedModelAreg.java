@@ -217,16 +217,18 @@ public class SupervisedModelAreg<D extends Datum<L>, L> extends SupervisedModel<
 			return null;
 		}
 		
-		DataSet<PredictedDataInstance<Vector, Double>> plataniosData = data.makePlataniosDataSet(this.weightedLabels, 0.0, false, false);
-
-		plataniosData = this.classifier.predict(plataniosData);
-		if (plataniosData == null) {
-			output.debugWriteln("ERROR: Areg failed to compute data posteriors.");
-			return null;
-		}
+		// Instances are predicted as they're streamed, so that the data set's
+		// instances are never all held in memory at once
+		Iterable<PredictedDataInstance<Vector, Double>> plataniosData = data.makePlataniosDataInstances(this.weightedLabels, 0.0, false, false);
 		
 		Map<D, Map<L, Double>> posteriors = new HashMap<D, Map<L, Double>>();
-		for (PredictedDataInstance<Vector, Double> prediction : plataniosData) {
+		for (PredictedDataInstance<Vector, Double> plataniosDatum : plataniosData) {
+			PredictedDataInstance<Vector, Double> prediction = this.classifier.predict(plataniosDatum);
+			if (prediction == null) {
+				output.debugWriteln("ERROR: Areg failed to compute data posteriors.");
+				return null;
+			}
+			
 			int datumId = Integer.parseInt(prediction.name());
 			D datum = data.getDatumById(datumId);
 			
@@ -257,17 +259,11 @@ public class SupervisedModelAreg<D extends Datum<L>, L> extends SupervisedModel<
 			return null;
 		}
 		
-		DataSet<PredictedDataInstance<Vector, Double>> plataniosData = data.makePlataniosDataSet(this.weightedLabels, 0.0, false, false);
-
-		plataniosData = this.classifier.predict(plataniosData);
-		if (plataniosData == null) {
-			output.debugWriteln("ERROR: Areg failed to compute data classifications.");
-			return null;
-		}
+		Iterable<PredictedDataInstance<Vector, Double>> plataniosData = data.makePlataniosDataInstances(this.weightedLabels, 0.0, false, false);
 		
 		Map<D, Boolean> predictions = new HashMap<D, Boolean>();
-		for (PredictedDataInstance<Vector, Double> prediction : plataniosData) {
-			int datumId = Integer.parseInt(prediction.name());
+		for (PredictedDataInstance<Vector, Double> plataniosDatum : plataniosData) {
+			int datumId = Integer.parseInt(plataniosDatum.name());
 			D datum = data.getDatumById(datumId);
 		
 			if (this.fixedDatumLabels.containsKey(datum)) {
@@ -275,6 +271,12 @@ public class SupervisedModelAreg<D extends Datum<L>, L> extends SupervisedModel<
 				continue;
 			}
 			
+			PredictedDataInstance<Vector, Double> prediction = this.classifier.predict(plataniosDatum);
+			if (prediction == null) {
+				output.debugWriteln("ERROR: Areg failed to compute data classifications.");
+				return null;
+			}
+			
 			double p = (prediction.label() == 1) ? prediction.probability() : 1.0 - prediction.probability();
 			if (p >= this.classificationThreshold)
 				predictions.put(datum, true);
@@ -596,7 +596,7 @@ public class SupervisedModelLogistmarGramression<D extends Datum<L>, L> extends
 			return null;
 		}
 		
-		DataSet<PredictedDataInstance<Vector, Double>> plataniosData = data.makePlataniosDataSet(this.weightedLabels, 0.0, false, true);
+		Iterable<PredictedDataInstance<Vector, Double>> plataniosData = data.makePlataniosDataInstances(this.weightedLabels, 0.0, false, true);
 		Map<D, Map<L, Double>> posteriors = new HashMap<D, Map<L, Double>>();
 		
 		Pair<Vector, Vector> uPosNeg = splitPosNeg(this.u);
@@ -639,7 +639,7 @@ public class SupervisedModelLogistmarGramression<D extends Datum<L>, L> extends
 			return null;
 		}
 		
-		DataSet<PredictedDataInstance<Vector, Double>> plataniosData = data.makePlataniosDataSet(this.weightedLabels, 0.0, false, true);
+		Iterable<PredictedDataInstance<Vector, Double>> plataniosData = data.makePlataniosDataInstances(this.weightedLabels, 0.0, false, true);
 		Map<D, Boolean> predictions = new HashMap<D, Boolean>();
 		
 		Pair<Vector, Vector> uPosNeg = splitPosNeg(this.u);
@@ -222,7 +222,7 @@ public class ValidationGSTBinary<T extends Datum<Boolean>, D extends Datum<L>, L
 					return null;
 			}
 			
-			output.debugWriteln("Finished computing features.");
+			output.debugWriteln("Finished computing features (gazetteer cache " + this.trainData.getDatumTools().getDataTools().getGazetteerCacheStatistics() + ").");
 			timer.stopClock(this.name + " Feature Computation");
 		}
 		
@@ -0,0 +1,180 @@
+package ark.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+
+/**
+ * AhoCorasick is an Aho-Corasick automaton over token sequences (see Aho
+ * and Corasick, "Efficient String Matching: An Aid to Bibliographic
+ * Search").  Patterns are added as arrays of tokens, and after the
+ * automaton is built, findMatches returns every occurrence of every
+ * pattern in a token sequence in a single pass over the sequence.
+ *
+ * The automaton is built by the first call to findMatches (or by an
+ * explicit call to build), and it isn't modified after that, so it can
+ * be shared by multiple threads once it's built.  Patterns must not be
+ * added after the automaton is built.
+ *
+ * @param <V> type of value associated with each pattern
+ */
+public class AhoCorasick<V> {
+	/**
+	 * Match is an occurrence of a pattern at tokens [start, end) of a
+	 * token sequence.
+	 *
+	 * @param <V> type of value associated with the matched pattern
+	 */
+	public static class Match<V> {
+		private int start;
+		private int end;
+		private V value;
+
+		public Match(int start, int end, V value) {
+			this.start = start;
+			this.end = end;
+			this.value = value;
+		}
+
+		public int getStart() {
+			return this.start;
+		}
+
+		public int getEnd() {
+			return this.end;
+		}
+
+		public V getValue() {
+			return this.value;
+		}
+	}
+
+	private static class Node<V> {
+		private Map<String, Node<V>> children;
+		private Node<V> fail; // Node for the longest proper suffix that's also a path from the root
+		private Node<V> output; // Nearest node along the failure links that ends a pattern
+		private List<V> values; // Values of the patterns ending at this node
+		private int depth;
+
+		public Node(int depth) {
+			this.depth = depth;
+		}
+
+		public Node<V> getChild(String token) {
+			return (this.children == null) ? null : this.children.get(token);
+		}
+	}
+
+	private Node<V> root;
+	private int size;
+	private volatile boolean built;
+
+	public AhoCorasick() {
+		this.root = new Node<V>(0);
+		this.size = 0;
+		this.built = false;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @param tokens
+	 * @param value
+	 * @return true if the pattern was added (false if the automaton has
+	 * already been built, or if the pattern has no tokens)
+	 */
+	public synchronized boolean add(String[] tokens, V value) {
+		if (this.built || tokens.length == 0)
+			return false;
+
+		Node<V> node = this.root;
+		for (int i = 0; i < tokens.length; i++) {
+			Node<V> child = node.getChild(tokens[i]);
+			if (child == null) {
+				if (node.children == null)
+					node.children = new HashMap<String, Node<V>>(4);
+				child = new Node<V>(i + 1);
+				node.children.put(tokens[i], child);
+			}
+			node = child;
+		}
+
+		if (node.values == null)
+			node.values = new ArrayList<V>(1);
+		node.values.add(value);
+		this.size++;
+
+		return true;
+	}
+
+	/**
+	 * Computes the failure and output links of the automaton by a breadth
+	 * first traversal of the pattern trie.
+	 */
+	public synchronized void build() {
+		if (this.built)
+			return;
+
+		Queue<Node<V>> queue = new LinkedList<Node<V>>();
+		this.root.fail = this.root;
+		if (this.root.children != null) {
+			for (Node<V> child : this.root.children.values()) {
+				child.fail = this.root;
+				queue.add(child);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			Node<V> node = queue.remove();
+			node.output = (node.fail.values != null) ? node.fail : node.fail.output;
+			if (node.children == null)
+				continue;
+
+			for (Entry<String, Node<V>> entry : node.children.entrySet()) {
+				Node<V> child = entry.getValue();
+				Node<V> fail = node.fail;
+				while (fail != this.root && fail.getChild(entry.getKey()) == null)
+					fail = fail.fail;
+				Node<V> failChild = fail.getChild(entry.getKey());
+				child.fail = (failChild != null) ? failChild : this.root;
+				queue.add(child);
+			}
+		}
+
+		this.built = true;
+	}
+
+	/**
+	 * @param tokens
+	 * @return all occurrences of the patterns in the tokens, ordered by
+	 * end index (and by decreasing length for occurrences with the same
+	 * end index)
+	 */
+	public List<Match<V>> findMatches(String[] tokens) {
+		if (!this.built)
+			build();
+
+		List<Match<V>> matches = new ArrayList<Match<V>>();
+		Node<V> node = this.root;
+		for (int i = 0; i < tokens.length; i++) {
+			Node<V> child = node.getChild(tokens[i]);
+			while (child == null && node != this.root) {
+				node = node.fail;
+				child = node.getChild(tokens[i]);
+			}
+			node = (child != null) ? child : this.root;
+
+			for (Node<V> match = (node.values != null) ? node : node.output; match != null; match = match.output)
+				for (V value : match.values)
+					matches.add(new Match<V>(i + 1 - match.depth, i + 1, value));
+		}
+
+		return matches;
+	}
+}
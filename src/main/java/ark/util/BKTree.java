@@ -0,0 +1,179 @@
+package ark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BKTree is a Burkhard-Keller tree of strings under Levenshtein
+ * distance.  Each child of a node is labeled by its distance from the
+ * node's string, and by the triangle inequality, the strings in the
+ * subtree below the child with label e are at least |d - e| from a query
+ * string that is distance d from the node's string.  This allows nearest
+ * neighbor queries to skip most of the strings in the tree.
+ *
+ * The nearestNormalized method finds the string that minimizes the
+ * Levenshtein distance normalized by the sum of the string lengths (the
+ * measure used by FeatureGazetteerEditDistance).  The normalized distance
+ * isn't a metric, but a string that is at least distance d from a query
+ * string of length m must have a normalized distance of at least
+ * d/(2m + d), so subtrees can still be pruned against the best distance
+ * found so far.  Strings at the same normalized distance are broken in
+ * favor of the string that was added first (so a tree built from a
+ * gazetteer's values in iteration order gives the same result as a scan
+ * of the values that keeps the first minimum).
+ *
+ */
+public class BKTree {
+	private static class Node {
+		private String str;
+		private int ordinal; // Order in which the string was added
+		private int[] childDistances;
+		private Node[] children;
+		private int childCount;
+		private int maxChildDistance;
+
+		public Node(String str, int ordinal) {
+			this.str = str;
+			this.ordinal = ordinal;
+		}
+
+		public Node getChild(int distance) {
+			for (int i = 0; i < this.childCount; i++)
+				if (this.childDistances[i] == distance)
+					return this.children[i];
+			return null;
+		}
+
+		public void addChild(int distance, Node child) {
+			if (this.children == null) {
+				this.childDistances = new int[2];
+				this.children = new Node[2];
+			} else if (this.childCount == this.children.length) {
+				this.childDistances = Arrays.copyOf(this.childDistances, 2*this.childCount);
+				this.children = Arrays.copyOf(this.children, 2*this.childCount);
+			}
+
+			this.childDistances[this.childCount] = distance;
+			this.children[this.childCount] = child;
+			this.childCount++;
+			this.maxChildDistance = Math.max(this.maxChildDistance, distance);
+		}
+	}
+
+	private Node root;
+	private int size;
+
+	public BKTree() {
+		this.size = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @param str
+	 * @return true if the string was added (false if it was already in the
+	 * tree)
+	 */
+	public boolean add(String str) {
+		if (this.root == null) {
+			this.root = new Node(str, this.size);
+			this.size++;
+			return true;
+		}
+
+		Node node = this.root;
+		while (true) {
+			int distance = StringUtil.levenshteinDistance(str, node.str, Integer.MAX_VALUE - 1);
+			if (distance == 0)
+				return false;
+
+			Node child = node.getChild(distance);
+			if (child == null) {
+				node.addChild(distance, new Node(str, this.size));
+				this.size++;
+				return true;
+			}
+
+			node = child;
+		}
+	}
+
+	/**
+	 * @param query
+	 * @return the string in the tree with the minimum Levenshtein distance
+	 * to the query divided by the sum of the lengths of the two strings,
+	 * paired with that normalized distance, or null if the tree is empty.
+	 * Of the strings at the minimum distance, the one added first is 
+	 * returned.
+	 */
+	public Pair<String, Double> nearestNormalized(String query) {
+		if (this.root == null)
+			return null;
+
+		int m = query.length();
+		String best = null;
+		int bestOrdinal = Integer.MAX_VALUE;
+		double bestDistance = Double.POSITIVE_INFINITY;
+
+		// Nodes to visit, with lower bounds on the distances of their subtrees
+		List<Node> nodes = new ArrayList<Node>();
+		int[] lowerBounds = new int[16];
+		nodes.add(this.root);
+		lowerBounds[0] = 0;
+
+		while (!nodes.isEmpty()) {
+			int top = nodes.size() - 1;
+			Node node = nodes.remove(top);
+			if (getNormalizedLowerBound(lowerBounds[top], m) > bestDistance)
+				continue;
+
+			// Distances beyond this can't match the best, and can't reach a child that might
+			int maxDistance = Integer.MAX_VALUE - 1;
+			if (bestDistance < 1.0)
+				maxDistance = (int)Math.min(Integer.MAX_VALUE - 1, (long)Math.ceil(2*m*bestDistance/(1.0 - bestDistance)) + node.maxChildDistance);
+
+			int distance = StringUtil.levenshteinDistance(query, node.str, maxDistance);
+			if (distance <= maxDistance) {
+				double normalizedDistance = (m + node.str.length() == 0) ? 0.0 : distance/(double)(m + node.str.length());
+				if (normalizedDistance < bestDistance || (normalizedDistance == bestDistance && node.ordinal < bestOrdinal)) {
+					bestDistance = normalizedDistance;
+					bestOrdinal = node.ordinal;
+					best = node.str;
+				}
+			}
+
+			// Push the children so that the closest (by lower bound) are visited first
+			int start = nodes.size();
+			for (int i = 0; i < node.childCount; i++) {
+				int lowerBound = Math.abs(distance - node.childDistances[i]);
+				if (distance > maxDistance) // Only know that distance >= maxDistance + 1
+					lowerBound = Math.max(0, distance - node.childDistances[i]);
+				if (getNormalizedLowerBound(lowerBound, m) > bestDistance)
+					continue;
+
+				if (nodes.size() == lowerBounds.length)
+					lowerBounds = Arrays.copyOf(lowerBounds, 2*lowerBounds.length);
+
+				int j = nodes.size();
+				nodes.add(node.children[i]);
+				for (; j > start && lowerBounds[j - 1] < lowerBound; j--) {
+					lowerBounds[j] = lowerBounds[j - 1];
+					nodes.set(j, nodes.get(j - 1));
+				}
+				lowerBounds[j] = lowerBound;
+				nodes.set(j, node.children[i]);
+			}
+		}
+
+		return new Pair<String, Double>(best, bestDistance);
+	}
+
+	private double getNormalizedLowerBound(int distance, int queryLength) {
+		if (distance == 0)
+			return 0.0;
+		return distance/(double)(2*queryLength + distance);
+	}
+}
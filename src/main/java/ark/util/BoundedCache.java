@@ -0,0 +1,114 @@
+package ark.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BoundedCache is a least-recently-used cache with a maximum size that
+ * can be used by multiple threads.  Keys are split by hash across several
+ * synchronized access-ordered maps (like the caches in
+ * ark.data.feature.fn.Fn), so that threads looking up different keys
+ * don't usually contend for the same lock.  Each map evicts its own
+ * least recently used entry when it's full, so eviction order is only
+ * approximately least recently used across the whole cache.
+ *
+ * The cache counts hits and misses so that callers can report how
+ * effective it is.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BoundedCache<K, V> {
+	private static final int SEGMENT_COUNT = 16;
+
+	private int capacity;
+	private List<Map<K, V>> segments;
+	private AtomicLong hits;
+	private AtomicLong misses;
+
+	public BoundedCache(int capacity) {
+		this.capacity = capacity;
+		this.segments = new ArrayList<Map<K, V>>(SEGMENT_COUNT);
+		final int segmentCapacity = Math.max(1, capacity / SEGMENT_COUNT);
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			this.segments.add(Collections.synchronizedMap(new LinkedHashMap<K, V>(16, .75F, true) {
+				private static final long serialVersionUID = 1L;
+
+				public boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+					return size() > segmentCapacity;
+				}
+			}));
+		}
+
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @param key
+	 * @return the value cached for the key, or null if there is none
+	 */
+	public V get(K key) {
+		V value = getSegment(key).get(key);
+		if (value == null)
+			this.misses.incrementAndGet();
+		else
+			this.hits.incrementAndGet();
+		return value;
+	}
+
+	public void put(K key, V value) {
+		getSegment(key).put(key, value);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Map<K, V> segment : this.segments)
+			size += segment.size();
+		return size;
+	}
+
+	public void clear() {
+		for (Map<K, V> segment : this.segments)
+			segment.clear();
+		this.hits.set(0);
+		this.misses.set(0);
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the fraction of lookups that found a cached value (0 if
+	 * there haven't been any lookups)
+	 */
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long lookups = hits + this.misses.get();
+		return (lookups == 0) ? 0.0 : hits/(double)lookups;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getHitCount() + " misses=" + getMissCount() + " hitRate=" + getHitRate() + " size=" + size() + "/" + this.capacity;
+	}
+
+	private Map<K, V> getSegment(K key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return this.segments.get((h & 0x7FFFFFFF) % SEGMENT_COUNT);
+	}
+}
@@ -0,0 +1,111 @@
+package ark.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CountMinSketch approximately counts items in a fixed amount of memory
+ * (see Cormode and Muthukrishnan, "An Improved Data Stream Summary: The
+ * Count-Min Sketch and its Applications").  Estimated counts are never
+ * less than the true counts, and with probability 1 - failureProbability,
+ * an estimate exceeds the true count by at most error*N where N is the
+ * total of all counts.
+ *
+ * Features use a sketch as a pre-pass before counting their vocabularies
+ * exactly in a CounterTable, so that only items whose estimated counts
+ * meet a minimum occurrence threshold need to be held in memory.  Since
+ * estimates never undercount, this doesn't drop any items that meet the
+ * threshold.
+ *
+ * Counts are held in an AtomicIntegerArray, so multiple threads can
+ * increment the sketch concurrently.
+ *
+ * @param <T> item type
+ */
+public class CountMinSketch<T> {
+	private int width;
+	private int depth;
+	private AtomicIntegerArray counts;
+
+	public CountMinSketch(double error) {
+		this(error, 0.01);
+	}
+
+	/**
+	 * @param error maximum overestimate as a fraction of the total count
+	 * @param failureProbability probability that an estimate exceeds the error
+	 * bound
+	 */
+	public CountMinSketch(double error, double failureProbability) {
+		this.width = (int)Math.ceil(Math.E/error);
+		this.depth = Math.max(1, (int)Math.ceil(Math.log(1.0/failureProbability)));
+		this.counts = new AtomicIntegerArray(this.width*this.depth);
+	}
+
+	public int getWidth() {
+		return this.width;
+	}
+
+	public int getDepth() {
+		return this.depth;
+	}
+
+	public void increment(T item) {
+		incrementHashCode(item.hashCode());
+	}
+
+	/**
+	 * Increments the item with the given hash code, so that items such as 
+	 * primitive keys can be counted without boxing them
+	 *
+	 * @param hashCode
+	 */
+	public void incrementHashCode(int hashCode) {
+		int h1 = hash1(hashCode);
+		int h2 = hash2(hashCode);
+		for (int i = 0; i < this.depth; i++)
+			this.counts.incrementAndGet(i*this.width + getColumn(h1, h2, i));
+	}
+
+	/**
+	 * @param item
+	 * @return an estimate of the number of times the item was incremented
+	 * that is at least the true count
+	 */
+	public int estimate(T item) {
+		return estimateHashCode(item.hashCode());
+	}
+
+	/**
+	 * @param hashCode
+	 * @return an estimate of the count of the item with the given hash code
+	 * (see incrementHashCode)
+	 */
+	public int estimateHashCode(int hashCode) {
+		int h1 = hash1(hashCode);
+		int h2 = hash2(hashCode);
+		int estimate = Integer.MAX_VALUE;
+		for (int i = 0; i < this.depth; i++)
+			estimate = Math.min(estimate, this.counts.get(i*this.width + getColumn(h1, h2, i)));
+		return estimate;
+	}
+
+	private int getColumn(int h1, int h2, int row) {
+		// Row hashes are combinations of two hashes (Kirsch and Mitzenmacher)
+		return ((h1 + row*h2) & 0x7FFFFFFF) % this.width;
+	}
+
+	private static int hash1(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+
+	private static int hash2(int h) {
+		h *= 0x9E3779B9;
+		h ^= h >>> 15;
+		h *= 0x27D4EB2F;
+		return (h ^ (h >>> 13)) | 1;
+	}
+}
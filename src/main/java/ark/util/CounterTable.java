@@ -18,11 +18,14 @@
 
 package ark.util;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -33,25 +36,124 @@ import org.json.JSONObject;
  * and decrementing counts for each item, and transforming the histogram
  * into various data-structures.
  * 
+ * Counts are incremented into a separate open-addressing table for each
+ * thread, so that threads counting items in parallel (e.g. in 
+ * FeaturizedDataSet.map) don't contend on a lock or box each count.  The
+ * thread tables are held by the counter (not by the threads, which may be 
+ * long-lived pool threads), and they are merged into the counts map and 
+ * dropped the next time the counts are read.  So the counts must only be 
+ * read after the threads have finished incrementing them (e.g. after 
+ * FeaturizedDataSet.map returns).
+ * 
  * @author Lingpeng Kong, Bill McDowell
  * 
  */
 public class CounterTable<T>{
-	public HashMap<T, Integer> counts;
+	/**
+	 * Shard is an open-addressing (linear probing) table of counts 
+	 * incremented by a single thread.  It isn't synchronized, since it's 
+	 * only merged into the counts map after its thread has finished.
+	 */
+	private static class Shard {
+		private static final int INITIAL_CAPACITY = 64;
+		
+		private Object[] keys;
+		private int[] counts;
+		private int size;
+		
+		public Shard() {
+			this.keys = new Object[INITIAL_CAPACITY];
+			this.counts = new int[INITIAL_CAPACITY];
+			this.size = 0;
+		}
+		
+		public void increment(Object key) {
+			int mask = this.keys.length - 1;
+			int i = spread(key.hashCode()) & mask;
+			while (this.keys[i] != null) {
+				if (this.keys[i].equals(key)) {
+					this.counts[i]++;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			
+			this.keys[i] = key;
+			this.counts[i] = 1;
+			this.size++;
+			if (2*this.size > this.keys.length)
+				resize();
+		}
+		
+		@SuppressWarnings("unchecked")
+		public <T> void mergeInto(Map<T, Integer> target) {
+			for (int i = 0; i < this.keys.length; i++) {
+				if (this.keys[i] == null)
+					continue;
+				T key = (T)this.keys[i];
+				Integer count = target.get(key);
+				target.put(key, (count == null) ? this.counts[i] : count + this.counts[i]);
+			}
+		}
+		
+		private void resize() {
+			Object[] oldKeys = this.keys;
+			int[] oldCounts = this.counts;
+			this.keys = new Object[2*oldKeys.length];
+			this.counts = new int[2*oldKeys.length];
+			
+			int mask = this.keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] == null)
+					continue;
+				int i = spread(oldKeys[j].hashCode()) & mask;
+				while (this.keys[i] != null)
+					i = (i + 1) & mask;
+				this.keys[i] = oldKeys[j];
+				this.counts[i] = oldCounts[j];
+			}
+		}
+		
+		private static int spread(int h) {
+			h *= 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+	
+	private HashMap<T, Integer> counts;
+	private ConcurrentHashMap<Thread, Shard> shards; // Unmerged counts by incrementing thread
 	
 	public CounterTable(){
 		this.counts= new HashMap<T,Integer>();
+		this.shards = new ConcurrentHashMap<Thread, Shard>();
 	}
 	
-	public synchronized void incrementCount(T w){
-		if(this.counts.containsKey(w)){
-			this.counts.put(w, this.counts.get(w) + 1);
-		} else {
-			this.counts.put(w, 1);
+	public void incrementCount(T w){
+		Thread thread = Thread.currentThread();
+		Shard shard = this.shards.get(thread);
+		if (shard == null) {
+			shard = new Shard();
+			this.shards.put(thread, shard);
 		}
+		shard.increment(w);
+	}
+	
+	/**
+	 * Merges the counts incremented by each thread into the counts map,
+	 * and drops the thread tables
+	 */
+	private synchronized void merge() {
+		if (this.shards.isEmpty())
+			return;
+		
+		for (Shard shard : this.shards.values())
+			shard.mergeInto(this.counts);
+		this.shards.clear();
 	}
 	
 	public void removeCountsLessThan(int minCount) {
+		merge();
+		
 		List<T> valuesToRemove = new ArrayList<T>();
 		for (Entry<T, Integer> entry : this.counts.entrySet()) {
 			if (entry.getValue() < minCount)
@@ -63,18 +165,41 @@ public class CounterTable<T>{
 	}
 	
 	public Map<T, Integer> buildIndex() {
-		HashMap<T, Integer> index = new HashMap<T, Integer>(this.counts.size());
-		int i = 0;
+		return buildIndex(0);
+	}
+	
+	/**
+	 * @param maxSize maximum number of items to index, or 0 for no maximum
+	 * @return a map from the (at most maxSize) most frequent items to 
+	 * indices assigned in order of descending count, so that frequent items
+	 * get low indices.  Ties are broken by the items' string representations
+	 * so that indices are the same across runs.
+	 */
+	public Map<T, Integer> buildIndex(int maxSize) {
+		merge();
 		
-		for (Entry<T, Integer> entry : this.counts.entrySet()) {
-			index.put(entry.getKey(), i);
-			i++;
-		}
+		List<Entry<T, Integer>> entries = new ArrayList<Entry<T, Integer>>(this.counts.entrySet());
+		Collections.sort(entries, new Comparator<Entry<T, Integer>>() {
+			@Override
+			public int compare(Entry<T, Integer> e1, Entry<T, Integer> e2) {
+				int countCompare = e2.getValue().compareTo(e1.getValue());
+				if (countCompare != 0)
+					return countCompare;
+				return e1.getKey().toString().compareTo(e2.getKey().toString());
+			}
+		});
+		
+		int size = (maxSize > 0) ? Math.min(maxSize, entries.size()) : entries.size();
+		HashMap<T, Integer> index = new HashMap<T, Integer>(size);
+		for (int i = 0; i < size; i++)
+			index.put(entries.get(i).getKey(), i);
 		
 		return index;
 	}
 	
 	public TreeMap<Integer, List<T>> getSortedCounts() {
+		merge();
+		
 		TreeMap<Integer, List<T>> sortedCounts = new TreeMap<Integer, List<T>>();
 		
 		for (Entry<T, Integer> entry : this.counts.entrySet()) {
@@ -87,11 +212,17 @@ public class CounterTable<T>{
 		return sortedCounts;
 	}
 	
+	/**
+	 * @return the counts, including those incremented by each thread since
+	 * the counts were last read
+	 */
 	public Map<T, Integer> getCounts() {
+		merge();
 		return this.counts;
 	}
 	
 	public int getSize() {
+		merge();
 		return this.counts.size();
 	}
 	
@@ -115,6 +246,7 @@ public class CounterTable<T>{
 	
 	@SuppressWarnings("unchecked")
 	public boolean fromJSON(JSONObject json) {
+		merge();
 		this.counts = new HashMap<T, Integer>(); 
 		
 		JSONArray keys = json.names();
@@ -0,0 +1,154 @@
+package ark.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HashedVocabulary maps terms to indices in a fixed number of buckets
+ * by hashing them (the "hashing trick"), so that features can compute
+ * vectors without first building a vocabulary over the whole data set.
+ * Distinct terms may collide in the same bucket.
+ *
+ * Since hashing loses the terms, the vocabulary can optionally keep
+ * a sampled term for each bucket (up to a maximum number of sampled
+ * terms) so that getTerm still returns a readable name for buckets that
+ * end up with large weights in a model.  Terms are sampled through 
+ * addSampledTerm (e.g. by a feature's initialization pass), which keeps
+ * the lexicographically smallest term in each bucket, and of those, the
+ * smallest maxSampledTerms terms.  So the sample depends only on the set 
+ * of terms added, and not on the order in which threads add them.
+ *
+ * Indices are computed with the 32-bit MurmurHash3 function over the
+ * characters of a term.
+ *
+ */
+public class HashedVocabulary {
+	private static final int SEED = 0x9747B28C;
+
+	private int bucketCount;
+	private int maxSampledTerms;
+	private ConcurrentHashMap<Integer, String> sampledTerms; // Bucket index -> sampled term
+	private TreeMap<String, Integer> sampledBuckets; // Sampled term -> bucket index, guarded by this
+
+	public HashedVocabulary(int bucketCount) {
+		this(bucketCount, 0);
+	}
+
+	/**
+	 * @param bucketCount number of indices that terms are hashed into
+	 * @param maxSampledTerms maximum number of terms to keep for getTerm
+	 */
+	public HashedVocabulary(int bucketCount, int maxSampledTerms) {
+		this.bucketCount = bucketCount;
+		this.maxSampledTerms = maxSampledTerms;
+		this.sampledTerms = new ConcurrentHashMap<Integer, String>();
+		this.sampledBuckets = new TreeMap<String, Integer>();
+	}
+
+	public int size() {
+		return this.bucketCount;
+	}
+
+	/**
+	 * Sets the maximum number of sampled terms, dropping the largest 
+	 * sampled terms if there are more than the new maximum
+	 *
+	 * @param maxSampledTerms
+	 */
+	public synchronized void setMaxSampledTerms(int maxSampledTerms) {
+		this.maxSampledTerms = maxSampledTerms;
+		while (this.sampledBuckets.size() > Math.max(0, maxSampledTerms))
+			this.sampledTerms.remove(this.sampledBuckets.remove(this.sampledBuckets.lastKey()));
+	}
+
+	/**
+	 * @param term
+	 * @return the index of the bucket containing the term
+	 */
+	public int get(String term) {
+		return (hash(term) & 0x7FFFFFFF) % this.bucketCount;
+	}
+
+	/**
+	 * @param index
+	 * @return the term sampled for the bucket at the given index, or a
+	 * name constructed from the index if no term was sampled
+	 */
+	public String getTerm(int index) {
+		String term = this.sampledTerms.get(index);
+		return (term == null) ? "#" + index : term;
+	}
+
+	/**
+	 * Adds a term to the sample if it is smaller than the term sampled for
+	 * its bucket, and either the sample isn't full or the term is smaller
+	 * than the largest sampled term (which is then dropped)
+	 *
+	 * @param term
+	 * @return true if the term was added to the sample
+	 */
+	public synchronized boolean addSampledTerm(String term) {
+		if (this.maxSampledTerms <= 0)
+			return false;
+
+		int index = get(term);
+		String bucketTerm = this.sampledTerms.get(index);
+		if (bucketTerm != null) {
+			if (term.compareTo(bucketTerm) >= 0)
+				return false;
+			this.sampledBuckets.remove(bucketTerm);
+		} else if (this.sampledBuckets.size() >= this.maxSampledTerms) {
+			String lastTerm = this.sampledBuckets.lastKey();
+			if (term.compareTo(lastTerm) >= 0)
+				return false;
+			this.sampledTerms.remove(this.sampledBuckets.remove(lastTerm));
+		}
+
+		this.sampledBuckets.put(term, index);
+		this.sampledTerms.put(index, term);
+		return true;
+	}
+
+	/**
+	 * @return the sampled terms in lexicographic order
+	 */
+	public synchronized List<String> getSampledTerms() {
+		return new ArrayList<String>(this.sampledBuckets.keySet());
+	}
+
+	public static int hash(String term) {
+		int length = term.length();
+		int h = SEED;
+
+		int i = 0;
+		for (; i + 1 < length; i += 2) {
+			int k = term.charAt(i) | (term.charAt(i + 1) << 16);
+			k *= 0xCC9E2D51;
+			k = Integer.rotateLeft(k, 15);
+			k *= 0x1B873593;
+
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h*5 + 0xE6546B64;
+		}
+
+		if (i < length) {
+			int k = term.charAt(i);
+			k *= 0xCC9E2D51;
+			k = Integer.rotateLeft(k, 15);
+			k *= 0x1B873593;
+			h ^= k;
+		}
+
+		h ^= 2*length;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+}
@@ -0,0 +1,185 @@
+package ark.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LongCounterTable is a CounterTable for long keys (like packed
+ * conjunctions in FeatureConjunction) that holds the keys and counts in
+ * open-addressing (linear probing) tables of primitives, so that counting
+ * doesn't box a Long for each increment.
+ *
+ * Like CounterTable, counts are incremented into a separate table for
+ * each thread, and the thread tables are merged the next time the counts
+ * are read.  So the counts must only be read after the threads have
+ * finished incrementing them.
+ *
+ */
+public class LongCounterTable {
+	/**
+	 * Table maps keys to counts.  Slots with a count of 0 are empty.
+	 */
+	private static class Table {
+		private static final int INITIAL_CAPACITY = 64;
+
+		private long[] keys;
+		private int[] counts;
+		private int size;
+
+		public Table() {
+			this(INITIAL_CAPACITY);
+		}
+
+		public Table(int capacity) {
+			this.keys = new long[capacity];
+			this.counts = new int[capacity];
+			this.size = 0;
+		}
+
+		public void add(long key, int count) {
+			int mask = this.keys.length - 1;
+			int i = spread(key) & mask;
+			while (this.counts[i] != 0) {
+				if (this.keys[i] == key) {
+					this.counts[i] += count;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+
+			this.keys[i] = key;
+			this.counts[i] = count;
+			this.size++;
+			if (2*this.size > this.keys.length)
+				resize();
+		}
+
+		public int get(long key) {
+			int mask = this.keys.length - 1;
+			int i = spread(key) & mask;
+			while (this.counts[i] != 0) {
+				if (this.keys[i] == key)
+					return this.counts[i];
+				i = (i + 1) & mask;
+			}
+			return 0;
+		}
+
+		public void addTo(Table target) {
+			for (int i = 0; i < this.keys.length; i++)
+				if (this.counts[i] != 0)
+					target.add(this.keys[i], this.counts[i]);
+		}
+
+		private void resize() {
+			long[] oldKeys = this.keys;
+			int[] oldCounts = this.counts;
+			this.keys = new long[2*oldKeys.length];
+			this.counts = new int[2*oldKeys.length];
+
+			int mask = this.keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldCounts[j] == 0)
+					continue;
+				int i = spread(oldKeys[j]) & mask;
+				while (this.counts[i] != 0)
+					i = (i + 1) & mask;
+				this.keys[i] = oldKeys[j];
+				this.counts[i] = oldCounts[j];
+			}
+		}
+
+		private static int spread(long key) {
+			key *= 0x9E3779B97F4A7C15L;
+			return (int)(key ^ (key >>> 32));
+		}
+	}
+
+	private Table counts;
+	private ConcurrentHashMap<Thread, Table> shards; // Unmerged counts by incrementing thread
+
+	public LongCounterTable() {
+		this.counts = new Table();
+		this.shards = new ConcurrentHashMap<Thread, Table>();
+	}
+
+	public void incrementCount(long key) {
+		Thread thread = Thread.currentThread();
+		Table shard = this.shards.get(thread);
+		if (shard == null) {
+			shard = new Table();
+			this.shards.put(thread, shard);
+		}
+		shard.add(key, 1);
+	}
+
+	/**
+	 * Merges the counts incremented by each thread into the counts table,
+	 * and drops the thread tables
+	 */
+	private synchronized void merge() {
+		if (this.shards.isEmpty())
+			return;
+
+		for (Table shard : this.shards.values())
+			shard.addTo(this.counts);
+		this.shards.clear();
+	}
+
+	public int getCount(long key) {
+		merge();
+		return this.counts.get(key);
+	}
+
+	public int getSize() {
+		merge();
+		return this.counts.size;
+	}
+
+	public void removeCountsLessThan(int minCount) {
+		merge();
+
+		Table counts = new Table();
+		for (int i = 0; i < this.counts.keys.length; i++)
+			if (this.counts.counts[i] >= minCount)
+				counts.add(this.counts.keys[i], this.counts.counts[i]);
+		this.counts = counts;
+	}
+
+	/**
+	 * @param maxSize maximum number of keys to index, or 0 for no maximum
+	 * @return a table from the (at most maxSize) most frequent keys to
+	 * indices assigned in order of descending count.  Ties are broken by
+	 * the keys' decimal strings, so that the indices are the same as
+	 * CounterTable.buildIndex gives for the boxed keys.
+	 */
+	public LongLookupTable buildIndex(int maxSize) {
+		merge();
+
+		final long[] keys = this.counts.keys;
+		final int[] counts = this.counts.counts;
+		List<Integer> slots = new ArrayList<Integer>(this.counts.size);
+		for (int i = 0; i < keys.length; i++)
+			if (counts[i] != 0)
+				slots.add(i);
+
+		Collections.sort(slots, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer s1, Integer s2) {
+				if (counts[s1] != counts[s2])
+					return (counts[s1] > counts[s2]) ? -1 : 1;
+				return String.valueOf(keys[s1]).compareTo(String.valueOf(keys[s2]));
+			}
+		});
+
+		int size = (maxSize > 0) ? Math.min(maxSize, slots.size()) : slots.size();
+		LongLookupTable index = new LongLookupTable();
+		for (int i = 0; i < size; i++)
+			index.put(keys[slots.get(i)], i);
+
+		return index;
+	}
+}
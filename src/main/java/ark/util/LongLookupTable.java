@@ -0,0 +1,151 @@
+package ark.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * LongLookupTable maps long keys to non-negative int indices and back,
+ * like StringLookupTable, for vocabularies whose terms can be packed into
+ * longs.  Keys are looked up in an open-addressing (linear probing) table
+ * of primitive keys and indices, and indices are looked up in a dense
+ * array of keys, so the table doesn't need boxed Longs or Integers for
+ * each term.
+ *
+ * Lookups can run concurrently, but puts must not run concurrently with
+ * other operations.
+ *
+ */
+public class LongLookupTable {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] keys;
+	private int[] indices; // Index of each key, or -1 for empty slots
+	private int size;
+	private long[] terms; // Keys at each index
+	private boolean[] hasTerms;
+
+	public LongLookupTable() {
+		this(null);
+	}
+
+	public LongLookupTable(Map<Long, Integer> forwardLookup) {
+		int capacity = INITIAL_CAPACITY;
+		int termCapacity = INITIAL_CAPACITY;
+		if (forwardLookup != null) {
+			while (capacity < 2*forwardLookup.size())
+				capacity *= 2;
+			for (Integer index : forwardLookup.values())
+				termCapacity = Math.max(termCapacity, index + 1);
+		}
+
+		this.keys = new long[capacity];
+		this.indices = new int[capacity];
+		Arrays.fill(this.indices, -1);
+		this.terms = new long[termCapacity];
+		this.hasTerms = new boolean[termCapacity];
+
+		if (forwardLookup != null) {
+			for (Entry<Long, Integer> entry : forwardLookup.entrySet())
+				put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	public boolean reverseContainsKey(int index) {
+		return index >= 0 && index < this.hasTerms.length && this.hasTerms[index];
+	}
+
+	/**
+	 * @param key
+	 * @return the index of the key, or -1 if the table doesn't contain
+	 * the key
+	 */
+	public int indexOf(long key) {
+		int mask = this.keys.length - 1;
+		int i = spread(key) & mask;
+		while (this.indices[i] >= 0) {
+			if (this.keys[i] == key)
+				return this.indices[i];
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param index
+	 * @return the key at the index (the table must contain the index, see
+	 * reverseContainsKey)
+	 */
+	public long reverseGet(int index) {
+		return this.terms[index];
+	}
+
+	/**
+	 * @param key
+	 * @param index
+	 * @return the previous index of the key, or -1 if the table didn't
+	 * contain the key
+	 */
+	public int put(long key, int index) {
+		if (index >= this.terms.length) {
+			int termCapacity = Math.max(index + 1, 2*this.terms.length);
+			this.terms = Arrays.copyOf(this.terms, termCapacity);
+			this.hasTerms = Arrays.copyOf(this.hasTerms, termCapacity);
+		}
+		this.terms[index] = key;
+		this.hasTerms[index] = true;
+
+		int mask = this.keys.length - 1;
+		int i = spread(key) & mask;
+		while (this.indices[i] >= 0) {
+			if (this.keys[i] == key) {
+				int oldIndex = this.indices[i];
+				this.indices[i] = index;
+				if (oldIndex != index && this.terms[oldIndex] == key)
+					this.hasTerms[oldIndex] = false;
+				return oldIndex;
+			}
+			i = (i + 1) & mask;
+		}
+
+		this.keys[i] = key;
+		this.indices[i] = index;
+		this.size++;
+		if (2*this.size > this.keys.length)
+			resize();
+
+		return -1;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private void resize() {
+		long[] oldKeys = this.keys;
+		int[] oldIndices = this.indices;
+		this.keys = new long[2*oldKeys.length];
+		this.indices = new int[2*oldKeys.length];
+		Arrays.fill(this.indices, -1);
+
+		int mask = this.keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldIndices[j] < 0)
+				continue;
+			int i = spread(oldKeys[j]) & mask;
+			while (this.indices[i] >= 0)
+				i = (i + 1) & mask;
+			this.keys[i] = oldKeys[j];
+			this.indices[i] = oldIndices[j];
+		}
+	}
+
+	private static int spread(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int)(key ^ (key >>> 32));
+	}
+}
@@ -0,0 +1,158 @@
+package ark.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * StringLookupTable maps strings to non-negative int indices and back,
+ * for use as a feature vocabulary in place of a
+ * BidirectionalLookupTable<String, Integer>.  Strings are looked up in an
+ * open-addressing (linear probing) table of keys and primitive indices,
+ * and indices are looked up in a dense array of strings, so the table
+ * doesn't need map entry objects or boxed Integers for each term.
+ *
+ * Lookups can run concurrently, but puts must not run concurrently with
+ * other operations.
+ *
+ */
+public class StringLookupTable {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private String[] keys;
+	private int[] indices;
+	private int size;
+	private String[] terms; // Terms at each index
+
+	public StringLookupTable() {
+		this(null);
+	}
+
+	public StringLookupTable(Map<String, Integer> forwardLookup) {
+		int capacity = INITIAL_CAPACITY;
+		int termCapacity = INITIAL_CAPACITY;
+		if (forwardLookup != null) {
+			while (capacity < 2*forwardLookup.size())
+				capacity *= 2;
+			for (Integer index : forwardLookup.values())
+				termCapacity = Math.max(termCapacity, index + 1);
+		}
+
+		this.keys = new String[capacity];
+		this.indices = new int[capacity];
+		this.terms = new String[termCapacity];
+
+		if (forwardLookup != null) {
+			for (Entry<String, Integer> entry : forwardLookup.entrySet())
+				put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public boolean containsKey(String key) {
+		return indexOf(key) >= 0;
+	}
+
+	public boolean reverseContainsKey(int index) {
+		return reverseGet(index) != null;
+	}
+
+	/**
+	 * @param key
+	 * @return the index of the key, or -1 if the table doesn't contain
+	 * the key
+	 */
+	public int indexOf(String key) {
+		int mask = this.keys.length - 1;
+		int i = spread(key.hashCode()) & mask;
+		while (this.keys[i] != null) {
+			if (this.keys[i].equals(key))
+				return this.indices[i];
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param index
+	 * @return the key at the index, or null if the table doesn't contain
+	 * the index
+	 */
+	public String reverseGet(int index) {
+		if (index < 0 || index >= this.terms.length)
+			return null;
+		return this.terms[index];
+	}
+
+	/**
+	 * @param key
+	 * @param index
+	 * @return the previous index of the key, or -1 if the table didn't
+	 * contain the key
+	 */
+	public int put(String key, int index) {
+		if (index >= this.terms.length)
+			this.terms = Arrays.copyOf(this.terms, Math.max(index + 1, 2*this.terms.length));
+		this.terms[index] = key;
+
+		int mask = this.keys.length - 1;
+		int i = spread(key.hashCode()) & mask;
+		while (this.keys[i] != null) {
+			if (this.keys[i].equals(key)) {
+				int oldIndex = this.indices[i];
+				this.indices[i] = index;
+				if (oldIndex != index && key.equals(this.terms[oldIndex]))
+					this.terms[oldIndex] = null;
+				return oldIndex;
+			}
+			i = (i + 1) & mask;
+		}
+
+		this.keys[i] = key;
+		this.indices[i] = index;
+		this.size++;
+		if (2*this.size > this.keys.length)
+			resize();
+
+		return -1;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return a new set containing the keys in the table
+	 */
+	public Set<String> keySet() {
+		Set<String> keySet = new HashSet<String>(2*this.size);
+		for (int i = 0; i < this.keys.length; i++)
+			if (this.keys[i] != null)
+				keySet.add(this.keys[i]);
+		return keySet;
+	}
+
+	private void resize() {
+		String[] oldKeys = this.keys;
+		int[] oldIndices = this.indices;
+		this.keys = new String[2*oldKeys.length];
+		this.indices = new int[2*oldKeys.length];
+
+		int mask = this.keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == null)
+				continue;
+			int i = spread(oldKeys[j].hashCode()) & mask;
+			while (this.keys[i] != null)
+				i = (i + 1) & mask;
+			this.keys[i] = oldKeys[j];
+			this.indices[i] = oldIndices[j];
+		}
+	}
+
+	private static int spread(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
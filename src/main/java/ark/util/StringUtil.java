@@ -85,6 +85,47 @@ public class StringUtil {
 		return distance[str1.length()][str2.length()];
 	}
 	
+	/**
+	 * @param str1
+	 * @param str2
+	 * @param maxDistance
+	 * @return the Levenshtein distance between str1 and str2 if it is at most
+	 * maxDistance, and otherwise maxDistance + 1.  The computation stops as soon
+	 * as the distance is known to exceed maxDistance, and only keeps two rows of
+	 * the distance table.
+	 */
+	public static int levenshteinDistance(String str1, String str2, int maxDistance) {
+		if (Math.abs(str1.length() - str2.length()) > maxDistance)
+			return maxDistance + 1;
+		
+		int[] previous = new int[str2.length() + 1];
+		int[] current = new int[str2.length() + 1];
+		for (int j = 0; j <= str2.length(); j++)
+			previous[j] = j;
+		
+		for (int i = 1; i <= str1.length(); i++) {
+			current[0] = i;
+			int rowMin = i;
+			char c1 = str1.charAt(i - 1);
+			for (int j = 1; j <= str2.length(); j++) {
+				current[j] = Math.min(
+						Math.min(previous[j] + 1, current[j - 1] + 1),
+						previous[j - 1] + ((c1 == str2.charAt(j - 1)) ? 0 : 1)
+					);
+				rowMin = Math.min(rowMin, current[j]);
+			}
+			
+			if (rowMin > maxDistance)
+				return maxDistance + 1;
+			
+			int[] temp = previous;
+			previous = current;
+			current = temp;
+		}
+		
+		return Math.min(previous[str2.length()], maxDistance + 1);
+	}
+	
 	// FIXME: This function is messy and inefficient and really shouldn't exist
 	public static String clean(String str) {
 		StringBuilder cleanStrBuilder = new StringBuilder();
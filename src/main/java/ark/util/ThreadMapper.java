@@ -2,11 +2,16 @@ package ark.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 
 public class ThreadMapper<S, T> {
@@ -27,12 +32,86 @@ public class ThreadMapper<S, T> {
 		}
 	}
 	
+	/**
+	 * ChunkTask applies the function to the items in a range of
+	 * the list, splitting the range in half until it is at most
+	 * chunkSize items, so that idle threads can steal the halves
+	 */
+	private class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private List<S> items;
+		private List<T> results;
+		private int start;
+		private int end;
+		private int chunkSize;
+		
+		public ChunkTask(List<S> items, List<T> results, int start, int end, int chunkSize) {
+			this.items = items;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+			this.chunkSize = chunkSize;
+		}
+		
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= this.chunkSize) {
+				for (int i = this.start; i < this.end; i++)
+					this.results.set(i, fn.apply(this.items.get(i)));
+			} else {
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new ChunkTask(this.items, this.results, this.start, mid, this.chunkSize),
+						  new ChunkTask(this.items, this.results, mid, this.end, this.chunkSize));
+			}
+		}
+	}
+	
+	private static final int CHUNKS_PER_THREAD = 16;
+	private static Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>(); // Shared pools by parallelism
+	
 	private Fn<S, T> fn;
 	
 	public ThreadMapper(Fn<S, T> fn) {
 		this.fn = fn;
 	}
 	
+	/**
+	 * Applies the function to each item using a shared work-stealing pool
+	 * with at most maxThreads threads.  The items are split into small
+	 * contiguous chunks rather than one part per thread, so that threads
+	 * that finish their chunks early take work from the others.  
+	 * 
+	 * @param items (should support fast random access)
+	 * @param maxThreads
+	 * @return the results in the same order as the items, or null if 
+	 * the function threw an exception
+	 */
+	public List<T> runChunked(List<S> items, int maxThreads) {
+		List<T> results = new ArrayList<T>(Collections.<T>nCopies(items.size(), null));
+		int chunkSize = Math.max(1, items.size() / (Math.max(1, maxThreads) * CHUNKS_PER_THREAD));
+		
+		try {
+			if (maxThreads <= 1 || items.size() <= chunkSize) {
+				for (int i = 0; i < items.size(); i++)
+					results.set(i, this.fn.apply(items.get(i)));
+			} else {
+				getPool(maxThreads).invoke(new ChunkTask(items, results, 0, items.size(), chunkSize));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		return results;
+	}
+	
+	private static synchronized ForkJoinPool getPool(int maxThreads) {
+		if (!pools.containsKey(maxThreads))
+			pools.put(maxThreads, new ForkJoinPool(maxThreads));
+		return pools.get(maxThreads);
+	}
+	
 	public List<T> run(Collection<S> items, int maxThreads) {
 		List<T> results = new ArrayList<T>(items.size());
 		ExecutorService threadPool = Executors.newFixedThreadPool(maxThreads);
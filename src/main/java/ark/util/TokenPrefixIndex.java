@@ -0,0 +1,89 @@
+package ark.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TokenPrefixIndex is a trie of token sequences, where each sequence is
+ * added with an integer ordinal.  It finds the minimum ordinal of the
+ * sequences that are equal to a query sequence, or that have the query
+ * sequence as a prefix, in time proportional to the length of the query.
+ *
+ * Gazetteer uses these indices to find the first gazetteer entry (in
+ * iteration order) whose tokens or token initials match a query,
+ * without comparing the query to every entry.
+ *
+ */
+public class TokenPrefixIndex {
+	private static class Node {
+		private Map<String, Node> children;
+		private int exactMin = -1; // Minimum ordinal of sequences ending at this node
+		private int subtreeMin = -1; // Minimum ordinal of sequences ending at or below this node
+
+		public Node getChild(String token) {
+			return (this.children == null) ? null : this.children.get(token);
+		}
+
+		public Node getOrAddChild(String token) {
+			if (this.children == null)
+				this.children = new HashMap<String, Node>(4);
+			Node child = this.children.get(token);
+			if (child == null) {
+				child = new Node();
+				this.children.put(token, child);
+			}
+			return child;
+		}
+	}
+
+	private Node root;
+
+	public TokenPrefixIndex() {
+		this.root = new Node();
+	}
+
+	public void add(String[] tokens, int ordinal) {
+		Node node = this.root;
+		node.subtreeMin = min(node.subtreeMin, ordinal);
+		for (int i = 0; i < tokens.length; i++) {
+			node = node.getOrAddChild(tokens[i]);
+			node.subtreeMin = min(node.subtreeMin, ordinal);
+		}
+		node.exactMin = min(node.exactMin, ordinal);
+	}
+
+	/**
+	 * @param tokens
+	 * @param length
+	 * @return the minimum ordinal of the sequences equal to the first
+	 * length tokens, or -1 if there are none
+	 */
+	public int getExactMin(String[] tokens, int length) {
+		Node node = getNode(tokens, length);
+		return (node == null) ? -1 : node.exactMin;
+	}
+
+	/**
+	 * @param tokens
+	 * @param length
+	 * @return the minimum ordinal of the sequences that start with the
+	 * first length tokens, or -1 if there are none
+	 */
+	public int getPrefixedMin(String[] tokens, int length) {
+		Node node = getNode(tokens, length);
+		return (node == null) ? -1 : node.subtreeMin;
+	}
+
+	private Node getNode(String[] tokens, int length) {
+		Node node = this.root;
+		for (int i = 0; i < length && node != null; i++)
+			node = node.getChild(tokens[i]);
+		return node;
+	}
+
+	private static int min(int ordinal1, int ordinal2) {
+		if (ordinal1 < 0)
+			return ordinal2;
+		return Math.min(ordinal1, ordinal2);
+	}
+}
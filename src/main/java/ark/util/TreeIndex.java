@@ -0,0 +1,172 @@
+package ark.util;
+
+/**
+ * TreeIndex indexes a tree given by an array of parent indices, for
+ * finding the lowest common ancestor of any two nodes in constant time
+ * (with a sparse table of minimum depth nodes over an Euler tour of the
+ * tree), and paths between nodes in time proportional to their lengths.
+ *
+ * DependencyParse and ConstituencyParse use tree indices to compute
+ * paths between tokens without searching their parse trees.
+ *
+ */
+public class TreeIndex {
+	private int root;
+	private int[] parents;
+	private int[] depths;
+	private int[] firstVisits; // Index in the Euler tour of each node's first visit (-1 if not in the tree)
+	private int[][] minDepthNodes; // minDepthNodes[k][i] is the shallowest node in tour[i, i + 2^k)
+	private boolean connected;
+
+	/**
+	 * @param parents parent of each node, or -1 for the root and for nodes
+	 * that aren't in the tree
+	 * @param root
+	 */
+	public TreeIndex(int[] parents, int root) {
+		this.root = root;
+		this.parents = parents;
+		this.depths = new int[parents.length];
+		this.firstVisits = new int[parents.length];
+
+		int nodeCount = 1;
+		int[] childCounts = new int[parents.length];
+		for (int i = 0; i < parents.length; i++) {
+			this.firstVisits[i] = -1;
+			if (i != root && parents[i] >= 0) {
+				childCounts[parents[i]]++;
+				nodeCount++;
+			}
+		}
+
+		int[][] children = new int[parents.length][];
+		for (int i = 0; i < parents.length; i++)
+			children[i] = new int[childCounts[i]];
+		int[] childPositions = new int[parents.length];
+		for (int i = 0; i < parents.length; i++)
+			if (i != root && parents[i] >= 0)
+				children[parents[i]][childPositions[parents[i]]++] = i;
+
+		// Euler tour from the root (nodes on cycles aren't reached)
+		int[] tour = new int[2*nodeCount - 1];
+		int tourLength = 0;
+		int[] stack = new int[nodeCount];
+		int[] nextChild = new int[parents.length];
+		int stackSize = 0;
+		stack[stackSize++] = root;
+		this.firstVisits[root] = tourLength;
+		tour[tourLength++] = root;
+		int visited = 1;
+		while (stackSize > 0) {
+			int node = stack[stackSize - 1];
+			if (nextChild[node] < children[node].length) {
+				int child = children[node][nextChild[node]++];
+				this.depths[child] = this.depths[node] + 1;
+				stack[stackSize++] = child;
+				this.firstVisits[child] = tourLength;
+				tour[tourLength++] = child;
+				visited++;
+			} else {
+				stackSize--;
+				if (stackSize > 0)
+					tour[tourLength++] = stack[stackSize - 1];
+			}
+		}
+
+		this.connected = (visited == nodeCount);
+		if (tourLength < tour.length) {
+			int[] fullTour = tour;
+			tour = new int[tourLength];
+			System.arraycopy(fullTour, 0, tour, 0, tourLength);
+		}
+
+		int levels = 1;
+		while ((1 << levels) <= tour.length)
+			levels++;
+		this.minDepthNodes = new int[levels][];
+		this.minDepthNodes[0] = tour;
+		for (int k = 1; k < levels; k++) {
+			int[] previous = this.minDepthNodes[k - 1];
+			int[] current = new int[tour.length - (1 << k) + 1];
+			for (int i = 0; i < current.length; i++)
+				current[i] = shallower(previous[i], previous[i + (1 << (k - 1))]);
+			this.minDepthNodes[k] = current;
+		}
+	}
+
+	/**
+	 * @return true if every node with a parent is reachable from the root
+	 * (false if the parents contain cycles)
+	 */
+	public boolean isConnected() {
+		return this.connected;
+	}
+
+	public boolean contains(int node) {
+		return node >= 0 && node < this.firstVisits.length && this.firstVisits[node] >= 0;
+	}
+
+	public int getRoot() {
+		return this.root;
+	}
+
+	public int getParent(int node) {
+		return (node == this.root) ? -1 : this.parents[node];
+	}
+
+	public int getDepth(int node) {
+		return this.depths[node];
+	}
+
+	/**
+	 * @param node1
+	 * @param node2
+	 * @return the lowest common ancestor of two nodes in the tree
+	 */
+	public int getLowestCommonAncestor(int node1, int node2) {
+		int start = Math.min(this.firstVisits[node1], this.firstVisits[node2]);
+		int end = Math.max(this.firstVisits[node1], this.firstVisits[node2]) + 1;
+		int k = 31 - Integer.numberOfLeadingZeros(end - start);
+		return shallower(this.minDepthNodes[k][start], this.minDepthNodes[k][end - (1 << k)]);
+	}
+
+	/**
+	 * @param node1
+	 * @param node2
+	 * @return the number of edges on the path between two nodes in the tree
+	 */
+	public int getDistance(int node1, int node2) {
+		return this.depths[node1] + this.depths[node2] - 2*this.depths[getLowestCommonAncestor(node1, node2)];
+	}
+
+	/**
+	 * @param source
+	 * @param target
+	 * @return the nodes on the path from source up to the lowest common
+	 * ancestor and down to target
+	 */
+	public int[] getPath(int source, int target) {
+		int ancestor = getLowestCommonAncestor(source, target);
+		int sourceLength = this.depths[source] - this.depths[ancestor];
+		int[] path = new int[sourceLength + this.depths[target] - this.depths[ancestor] + 1];
+
+		int node = source;
+		for (int i = 0; i < sourceLength; i++) {
+			path[i] = node;
+			node = this.parents[node];
+		}
+		path[sourceLength] = ancestor;
+
+		node = target;
+		for (int i = path.length - 1; i > sourceLength; i--) {
+			path[i] = node;
+			node = this.parents[node];
+		}
+
+		return path;
+	}
+
+	private int shallower(int node1, int node2) {
+		return (this.depths[node1] <= this.depths[node2]) ? node1 : node2;
+	}
+}
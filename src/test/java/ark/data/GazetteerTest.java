@@ -0,0 +1,269 @@
+package ark.data;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ark.util.OutputWriter;
+import ark.util.Pair;
+import ark.util.StringUtil;
+
+public class GazetteerTest {
+	private DataTools dataTools = new DataTools(new OutputWriter());
+	
+	private File writeSourceFile() throws IOException {
+		File file = File.createTempFile("gazetteer", ".txt");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		writer.write("id1\tCarnegie Mellon:0.9\tCMU:1.0\n");
+		writer.write("id2\tPittsburgh:0.75\tPgh:0.5\tSteel City:0.25\n");
+		writer.write("id3\tCarnegie Mellon:0.1\tCarnegie:0.8\n");
+		writer.write("idé\tCafé Résumé:1.0\n");
+		writer.close();
+		return file;
+	}
+	
+	private File writeSourceFile(List<String> values) throws IOException {
+		File file = File.createTempFile("gazetteer", ".txt");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		for (int i = 0; i < values.size(); i++)
+			writer.write("id" + i + "\t" + values.get(i) + ":1.0\n");
+		writer.close();
+		return file;
+	}
+	
+	private String randomString(Random random, String alphabet, int maxLength) {
+		StringBuilder str = new StringBuilder();
+		int length = 1 + random.nextInt(maxLength);
+		for (int i = 0; i < length; i++)
+			str.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		return str.toString();
+	}
+	
+	private Map<String, List<Pair<String, Double>>> toMap(Gazetteer gazetteer, String[] values) {
+		Map<String, List<Pair<String, Double>>> map = new HashMap<String, List<Pair<String, Double>>>();
+		for (String value : values)
+			map.put(value, gazetteer.getWeightedIds(value));
+		return map;
+	}
+	
+	private void assertSameWeightedIds(List<Pair<String, Double>> expected, List<Pair<String, Double>> actual) {
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Assert.assertEquals(expected.get(i).getFirst(), actual.get(i).getFirst());
+			Assert.assertEquals(expected.get(i).getSecond(), actual.get(i).getSecond(), 0.0);
+		}
+	}
+	
+	@Test
+	public void testCompactGazetteerMap() throws IOException {
+		DataTools.StringTransform cleanFn = this.dataTools.getCleanFn("DefaultCleanFn");
+		File sourceFile = writeSourceFile();
+		Gazetteer gazetteer = new Gazetteer("test", sourceFile.getAbsolutePath(), cleanFn, true);
+		
+		File compiledFile = File.createTempFile("gazetteer", ".gazc");
+		compiledFile.deleteOnExit();
+		Assert.assertTrue(gazetteer.compile(compiledFile.getAbsolutePath()));
+		Assert.assertTrue(CompactGazetteerMap.isCompactFile(compiledFile));
+		Assert.assertFalse(CompactGazetteerMap.isCompactFile(sourceFile));
+		
+		String[] values = { "Carnegie Mellon", "CMU", "Pittsburgh", "Pgh", "Steel City", "Carnegie", "Café Résumé" };
+		Map<String, List<Pair<String, Double>>> expected = toMap(gazetteer, values);
+		
+		CompactGazetteerMap map = new CompactGazetteerMap(compiledFile);
+		Assert.assertEquals(cleanFn.toString(), map.getCleanFnName());
+		Assert.assertEquals(values.length, map.size());
+		Assert.assertEquals(values.length, map.keySet().size());
+		Assert.assertEquals(values.length, map.entrySet().size());
+		
+		int index = 0;
+		String previous = null;
+		for (Entry<String, List<Pair<String, Double>>> entry : map.entrySet()) {
+			Assert.assertTrue(map.containsKey(entry.getKey()));
+			Assert.assertEquals(entry.getKey(), map.getKey(index));
+			assertSameWeightedIds(map.get(entry.getKey()), entry.getValue());
+			assertSameWeightedIds(map.getWeightedIds(index), entry.getValue());
+			if (previous != null)
+				Assert.assertTrue(previous.compareTo(entry.getKey()) < 0);
+			previous = entry.getKey();
+			index++;
+		}
+		
+		for (String value : values) {
+			String cleanValue = gazetteer.cleanString(value);
+			Assert.assertTrue(map.containsKey(cleanValue));
+			Assert.assertTrue(map.keySet().contains(cleanValue));
+			assertSameWeightedIds(expected.get(value), map.get(cleanValue));
+		}
+		
+		Assert.assertFalse(map.containsKey("pitt"));
+		Assert.assertFalse(map.containsKey("zzz"));
+		Assert.assertFalse(map.containsKey(""));
+		Assert.assertNull(map.get("pittsburgh pa"));
+		
+		List<Pair<String, Double>> weightedIds = map.get(gazetteer.cleanString("Carnegie Mellon"));
+		Assert.assertEquals(2, weightedIds.size());
+		Assert.assertEquals("id1", weightedIds.get(0).getFirst());
+		Assert.assertEquals(0.9, weightedIds.get(0).getSecond(), 0.0);
+		Assert.assertEquals("id3", weightedIds.get(1).getFirst());
+		Assert.assertEquals(0.1, weightedIds.get(1).getSecond(), 0.0);
+		
+		// The compiled gazetteer gives the same results as the source
+		Gazetteer compiledGazetteer = new Gazetteer("test", compiledFile.getAbsolutePath(), cleanFn, true);
+		for (String value : values) {
+			Assert.assertTrue(compiledGazetteer.contains(value));
+			assertSameWeightedIds(expected.get(value), compiledGazetteer.getWeightedIds(value));
+		}
+		Assert.assertEquals(gazetteer.maxPrefixTokenOverlap("carnegie mellon university").getSecond(), 
+							compiledGazetteer.maxPrefixTokenOverlap("carnegie mellon university").getSecond(), 0.0);
+		assertSameWeightedIds(gazetteer.maxPrefixTokenOverlap("carnegie mellon university").getFirst(), 
+							compiledGazetteer.maxPrefixTokenOverlap("carnegie mellon university").getFirst());
+		assertSameWeightedIds(gazetteer.maxInitialism("sc", false).getFirst(), compiledGazetteer.maxInitialism("sc", false).getFirst());
+	}
+	
+	@Test
+	public void testCompiledGazetteerCleanFnMismatch() throws IOException {
+		Gazetteer gazetteer = new Gazetteer("test", writeSourceFile().getAbsolutePath(), this.dataTools.getCleanFn("DefaultCleanFn"), true);
+		File compiledFile = File.createTempFile("gazetteer", ".gazc");
+		compiledFile.deleteOnExit();
+		Assert.assertTrue(gazetteer.compile(compiledFile.getAbsolutePath()));
+		
+		try {
+			new Gazetteer("test", compiledFile.getAbsolutePath(), null, true);
+			Assert.fail("Loaded a gazetteer compiled with a different clean function");
+		} catch (IllegalArgumentException e) {
+			
+		}
+	}
+	
+	@Test
+	public void testGazetteerCacheReplacedGazetteer() throws IOException {
+		DataTools dataTools = new DataTools(new OutputWriter());
+		dataTools.setGazetteerCacheSize(100);
+		DataTools.StringTransform cleanFn = dataTools.getCleanFn("DefaultCleanFn");
+		Gazetteer gazetteer = new Gazetteer("test", writeSourceFile().getAbsolutePath(), cleanFn, true);
+		dataTools.addGazetteer(gazetteer);
+		Assert.assertEquals("id2", dataTools.getCachedWeightedIds(gazetteer, "Pgh").get(0).getFirst());
+		
+		File file = File.createTempFile("gazetteer", ".txt");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		writer.write("id4\tPgh:1.0\n");
+		writer.close();
+		
+		Gazetteer replacement = new Gazetteer("test", file.getAbsolutePath(), cleanFn, true);
+		dataTools.addGazetteer(replacement);
+		Assert.assertEquals("id4", dataTools.getCachedWeightedIds(replacement, "Pgh").get(0).getFirst());
+		Assert.assertEquals("id2", dataTools.getCachedWeightedIds(gazetteer, "Pgh").get(0).getFirst());
+		Assert.assertNull(dataTools.getCachedWeightedIds(replacement, "CMU"));
+	}
+	
+	@Test
+	public void testMinNormalizedEditDistance() throws IOException {
+		DataTools.StringTransform cleanFn = this.dataTools.getCleanFn("DefaultCleanFn");
+		DataTools.StringPairMeasure editDistanceMeasure = new DataTools.StringPairMeasure() {
+			public double compute(String str1, String str2) {
+				return StringUtil.levenshteinDistance(str1, str2)/((double)(str1.length()+str2.length()));
+			}
+		};
+		
+		// Short strings over a small alphabet, so that many are tied
+		Random random = new Random(1);
+		List<String> values = new ArrayList<String>();
+		values.add("cat");
+		values.add("bat");
+		values.add("hat");
+		values.add("cot");
+		for (int i = 0; i < 200; i++)
+			values.add(randomString(random, "abc", 5));
+		
+		Gazetteer gazetteer = new Gazetteer("test", writeSourceFile(values).getAbsolutePath(), cleanFn, true);
+		File compiledFile = File.createTempFile("gazetteer", ".gazc");
+		compiledFile.deleteOnExit();
+		Assert.assertTrue(gazetteer.compile(compiledFile.getAbsolutePath()));
+		Gazetteer compiledGazetteer = new Gazetteer("test", compiledFile.getAbsolutePath(), cleanFn, true);
+		
+		List<String> queries = new ArrayList<String>();
+		queries.add("mat");
+		queries.add("ct");
+		for (int i = 0; i < 200; i++)
+			queries.add(randomString(random, "abcd", 6));
+		
+		for (Gazetteer g : new Gazetteer[] { gazetteer, compiledGazetteer }) {
+			for (String query : queries) {
+				Pair<List<Pair<String, Double>>, Double> expected = g.min(query, editDistanceMeasure);
+				Pair<List<Pair<String, Double>>, Double> actual = g.minNormalizedEditDistance(query);
+				Assert.assertEquals(expected.getSecond(), actual.getSecond(), 0.0);
+				assertSameWeightedIds(expected.getFirst(), actual.getFirst());
+			}
+		}
+	}
+	
+	private void assertSameExtremum(Pair<List<Pair<String, Double>>, Double> expected, Pair<List<Pair<String, Double>>, Double> actual) {
+		Assert.assertEquals(expected.getSecond(), actual.getSecond(), 0.0);
+		assertSameWeightedIds(expected.getFirst(), actual.getFirst());
+	}
+	
+	@Test
+	public void testMaxInitialismAndPrefixTokenOverlap() throws IOException {
+		// Mixed case tokens, so that values tie on initials and prefixes 
+		// that only match after case folding
+		String[] tokens = { "Carnegie", "carnegie", "Mellon", "MELLON", "Univ", "u", "CMU", "Steel", "city", "C" };
+		Random random = new Random(1);
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			StringBuilder value = new StringBuilder(tokens[random.nextInt(tokens.length)]);
+			int length = random.nextInt(3);
+			for (int j = 0; j < length; j++)
+				value.append(" ").append(tokens[random.nextInt(tokens.length)]);
+			values.add(value.toString());
+		}
+		
+		List<String> queries = new ArrayList<String>();
+		String[] initialisms = { "c", "C", "cm", "CMU", "cmc", "sc", "ucs", "x", "cccc" };
+		for (String initialism : initialisms)
+			queries.add(initialism);
+		for (int i = 0; i < 50; i++) {
+			StringBuilder query = new StringBuilder(tokens[random.nextInt(tokens.length)]);
+			int length = random.nextInt(4);
+			for (int j = 0; j < length; j++)
+				query.append(" ").append(tokens[random.nextInt(tokens.length)]);
+			queries.add(query.toString());
+		}
+		
+		final boolean[] allowPrefix = new boolean[1];
+		DataTools.StringPairMeasure initialismMeasure = new DataTools.StringPairMeasure() {
+			public double compute(String str1, String str2) {
+				return StringUtil.isInitialism(str1, str2, allowPrefix[0]) ? 1.0 : 0.0;
+			}
+		};
+		DataTools.StringPairMeasure prefixTokenOverlapMeasure = new DataTools.StringPairMeasure() {
+			public double compute(String str1, String str2) {
+				return StringUtil.prefixTokenOverlap(str1, str2);
+			}
+		};
+		
+		File sourceFile = writeSourceFile(values);
+		DataTools.StringTransform[] cleanFns = { null, this.dataTools.getCleanFn("DefaultCleanFn") };
+		for (DataTools.StringTransform cleanFn : cleanFns) {
+			Gazetteer gazetteer = new Gazetteer("test", sourceFile.getAbsolutePath(), cleanFn, true);
+			for (String query : queries) {
+				assertSameExtremum(gazetteer.max(query, prefixTokenOverlapMeasure), gazetteer.maxPrefixTokenOverlap(query));
+				for (int i = 0; i < 2; i++) {
+					allowPrefix[0] = (i == 1);
+					assertSameExtremum(gazetteer.max(query, initialismMeasure), gazetteer.maxInitialism(query, allowPrefix[0]));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package ark.data.annotation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ark.data.DataTools;
+import ark.data.annotation.nlp.DocumentNLP;
+import ark.data.annotation.nlp.TestDocumentNLP;
+import ark.data.annotation.nlp.TokenSpan;
+import ark.util.OutputWriter;
+import ark.util.ThreadMapper;
+
+public class DataSetTest {
+	private DataTools dataTools = new DataTools(new OutputWriter());
+	private TestDatum.Tools<String> datumTools = TestDatum.getStringTools(this.dataTools);
+	
+	private DataSet<TestDatum<String>, String> constructTestDataSet(int size) {
+		String[] tokens = new String[size + 1];
+		for (int i = 0; i < tokens.length; i++)
+			tokens[i] = ((i % 7 == 0) ? "café" : "token") + i;
+		DocumentNLP document = new TestDocumentNLP(this.dataTools, "test", new String[][] { tokens });
+		
+		DataSet<TestDatum<String>, String> dataSet = new DataSet<TestDatum<String>, String>(this.datumTools, null);
+		for (int i = 0; i < size; i++)
+			dataSet.add(new TestDatum<String>(i, new TokenSpan(document, 0, i, i + 2), (i % 3 == 0) ? null : String.valueOf(i % 2)));
+		return dataSet;
+	}
+	
+	private String getTokens(TokenSpan tokenSpan) {
+		StringBuilder tokens = new StringBuilder();
+		for (int i = tokenSpan.getStartTokenIndex(); i < tokenSpan.getEndTokenIndex(); i++)
+			tokens.append(tokenSpan.getDocument().getTokenStr(tokenSpan.getSentenceIndex(), i)).append(" ");
+		return tokens.toString();
+	}
+	
+	private void assertSameDatum(TestDatum<String> expected, TestDatum<String> actual) {
+		Assert.assertNotNull(actual);
+		Assert.assertEquals(expected.getLabel(), actual.getLabel());
+		Assert.assertEquals(getTokens(expected.getTokenSpan()), getTokens(actual.getTokenSpan()));
+	}
+	
+	@Test
+	public void testBinarySerialization() throws IOException {
+		DataSet<TestDatum<String>, String> dataSet = constructTestDataSet(5000); // More than one block
+		File file = File.createTempFile("data", ".bin");
+		file.deleteOnExit();
+		Assert.assertTrue(dataSet.serializeBinary(file, 3));
+		
+		DataSet<TestDatum<String>, String> loadedDataSet = new DataSet<TestDatum<String>, String>(this.datumTools, null);
+		Assert.assertTrue(loadedDataSet.deserializeBinary(file, 0, 3));
+		Assert.assertEquals(dataSet.size(), loadedDataSet.size());
+		for (TestDatum<String> datum : dataSet)
+			assertSameDatum(datum, loadedDataSet.getDatumById(datum.getId()));
+		
+		// A range across the first two blocks keeps the datums' ids relative to the whole file
+		DataSet<TestDatum<String>, String> rangeDataSet = new DataSet<TestDatum<String>, String>(this.datumTools, null);
+		Assert.assertTrue(rangeDataSet.deserializeBinary(file, 100, 4000, 4200, 2));
+		Assert.assertEquals(200, rangeDataSet.size());
+		for (int i = 4000; i < 4200; i++)
+			assertSameDatum(dataSet.getDatumById(i), rangeDataSet.getDatumById(100 + i));
+		Assert.assertNull(rangeDataSet.getDatumById(100 + 3999));
+		Assert.assertNull(rangeDataSet.getDatumById(100 + 4200));
+	}
+	
+	@Test
+	public void testBinarySerializationTruncatedBlock() throws IOException {
+		DataSet<TestDatum<String>, String> dataSet = constructTestDataSet(100);
+		File file = File.createTempFile("data", ".bin");
+		file.deleteOnExit();
+		Assert.assertTrue(dataSet.serializeBinary(file, 1));
+		
+		// Shorten the first block's compressed length so that its data ends early
+		RandomAccessFile blockFile = new RandomAccessFile(file, "rw");
+		blockFile.seek(16);
+		blockFile.writeInt(8);
+		blockFile.close();
+		
+		DataSet<TestDatum<String>, String> loadedDataSet = new DataSet<TestDatum<String>, String>(this.datumTools, null);
+		try {
+			loadedDataSet.deserializeBinary(file, 0, 1);
+			Assert.fail("Deserialized a truncated block");
+		} catch (IOException e) {
+			
+		}
+	}
+	
+	@Test
+	public void testBinarySerializationFailure() throws IOException {
+		// A datum without a token span can't be encoded, so a later block fails
+		DataSet<TestDatum<String>, String> dataSet = constructTestDataSet(5000);
+		dataSet.add(new TestDatum<String>(5000, null, "a"));
+		File file = File.createTempFile("data", ".bin");
+		file.deleteOnExit();
+		Assert.assertFalse(dataSet.serializeBinary(file, 1));
+		Assert.assertFalse(file.exists());
+	}
+	
+	@Test
+	public void testSerialization() throws IOException {
+		DataSet<TestDatum<String>, String> dataSet = constructTestDataSet(3000); // Several batches
+		for (String suffix : new String[] { ".json", ".json.gz" }) {
+			File file = File.createTempFile("data", suffix);
+			file.deleteOnExit();
+			Assert.assertTrue(dataSet.serialize(file, 4));
+			
+			// Datums get consecutive ids in the order they were serialized
+			DataSet<TestDatum<String>, String> loadedDataSet = new DataSet<TestDatum<String>, String>(this.datumTools, null);
+			Assert.assertTrue(loadedDataSet.deserialize(file, 10, 4));
+			Assert.assertEquals(dataSet.size(), loadedDataSet.size());
+			for (TestDatum<String> datum : dataSet)
+				assertSameDatum(datum, loadedDataSet.getDatumById(10 + datum.getId()));
+		}
+	}
+	
+	@Test
+	public void testMap() {
+		DataSet<TestDatum<String>, String> dataSet = new DataSet<TestDatum<String>, String>(this.datumTools, null);
+		DataSet<TestDatum<String>, String> source = constructTestDataSet(1000);
+		for (int i = source.size() - 1; i >= 0; i--)
+			dataSet.add(source.getDatumById(i));
+		
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+		ThreadMapper.Fn<TestDatum<String>, Integer> fn = new ThreadMapper.Fn<TestDatum<String>, Integer>() {
+			@Override
+			public Integer apply(TestDatum<String> datum) {
+				threads.add(Thread.currentThread().getName());
+				return datum.getId();
+			}
+		};
+		
+		// Results are in datum id order, whatever the number of threads
+		for (int maxThreads = 1; maxThreads <= 4; maxThreads += 3) {
+			List<Integer> ids = dataSet.map(fn, maxThreads);
+			Assert.assertEquals(dataSet.size(), ids.size());
+			for (int i = 0; i < ids.size(); i++)
+				Assert.assertEquals(i, ids.get(i).intValue());
+		}
+		Assert.assertTrue(threads.size() <= 1 + 4);
+		
+		List<Integer> failed = dataSet.map(new ThreadMapper.Fn<TestDatum<String>, Integer>() {
+			@Override
+			public Integer apply(TestDatum<String> datum) {
+				if (datum.getId() == 500)
+					throw new IllegalStateException();
+				return datum.getId();
+			}
+		}, 4);
+		Assert.assertNull(failed);
+	}
+	
+	private int count(Iterator<TestDatum<String>> iterator) {
+		int count = 0;
+		for (; iterator.hasNext(); iterator.next())
+			count++;
+		return count;
+	}
+	
+	private void assertLabelData(DataSet<TestDatum<String>, String> dataSet) {
+		List<TestDatum<String>> zeros = new ArrayList<TestDatum<String>>();
+		List<TestDatum<String>> ones = new ArrayList<TestDatum<String>>();
+		int unlabeled = 0;
+		for (TestDatum<String> datum : dataSet) {
+			if (datum.getLabel() == null)
+				unlabeled++;
+			else if (datum.getLabel().equals("0"))
+				zeros.add(datum);
+			else
+				ones.add(datum);
+		}
+		
+		Assert.assertEquals(zeros, dataSet.getDataForLabel("0"));
+		Assert.assertEquals(ones, dataSet.getDataForLabel("1"));
+		Assert.assertEquals(zeros.size(), dataSet.getDataSizeForLabel("0"));
+		Assert.assertEquals(ones.size(), dataSet.getDataSizeForLabel("1"));
+		Assert.assertEquals(unlabeled, count(dataSet.iterator(DataSet.DataFilter.OnlyUnlabeled)));
+		Assert.assertEquals(zeros.size() + ones.size(), count(dataSet.iterator(DataSet.DataFilter.OnlyLabeled)));
+		Assert.assertEquals(unlabeled, dataSet.getSubset(DataSet.DataFilter.OnlyUnlabeled).size());
+		Assert.assertEquals(zeros.size() + ones.size(), dataSet.getSubset(DataSet.DataFilter.OnlyLabeled).size());
+	}
+	
+	@Test
+	public void testSetDatumLabel() {
+		DataSet<TestDatum<String>, String> dataSet = constructTestDataSet(30);
+		assertLabelData(dataSet);
+		
+		Assert.assertTrue(dataSet.setDatumLabel(dataSet.getDatumById(0), "1"));
+		Assert.assertTrue(dataSet.setDatumLabel(dataSet.getDatumById(1), null));
+		Assert.assertTrue(dataSet.setDatumLabel(dataSet.getDatumById(2), "1"));
+		Assert.assertEquals("1", dataSet.getDatumById(0).getLabel());
+		assertLabelData(dataSet);
+		
+		// Inserting a datum before the others shifts the ordinals of the label data
+		TestDatum<String> datum = new TestDatum<String>(-1, dataSet.getDatumById(0).getTokenSpan(), "0");
+		Assert.assertTrue(dataSet.add(datum));
+		Assert.assertTrue(dataSet.setDatumLabel(dataSet.getDatumById(4), "0"));
+		Assert.assertTrue(dataSet.setDatumLabel(datum, null));
+		assertLabelData(dataSet);
+		
+		Assert.assertFalse(dataSet.setDatumLabel(new TestDatum<String>(100, datum.getTokenSpan(), "0"), "1"));
+		assertLabelData(dataSet);
+	}
+}
@@ -1,9 +1,13 @@
 package ark.data.annotation;
 
 import java.io.File;
+
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import ark.data.DataTools;
+import ark.data.annotation.nlp.TestDocumentNLP;
 import ark.data.annotation.nlp.TokenSpan;
 import ark.util.OutputWriter;
 
@@ -85,14 +89,42 @@ public class TestDatum<L> extends Datum<L> {
 			
 		}
 		
+		/**
+		 * The datum's token span is deserialized into a new document that 
+		 * only contains the span's tokens
+		 */
 		@Override
 		public TestDatum<L> datumFromJSON(JSONObject json) {
-			throw new UnsupportedOperationException();
+			try {
+				JSONArray tokensJson = json.getJSONArray("tokens");
+				String[] tokens = new String[tokensJson.length()];
+				for (int i = 0; i < tokens.length; i++)
+					tokens[i] = tokensJson.getString(i);
+				TestDocumentNLP document = new TestDocumentNLP(this.dataTools, "", new String[][] { tokens });
+				L label = json.has("label") ? labelFromString(json.getString("label")) : null;
+				return new TestDatum<L>(json.getInt("id"), new TokenSpan(document, 0, 0, tokens.length), label);
+			} catch (JSONException e) {
+				e.printStackTrace();
+				return null;
+			}
 		}
 		
 		@Override
 		public JSONObject datumToJSON(TestDatum<L> datum) {
-			throw new UnsupportedOperationException();
+			JSONObject json = new JSONObject();
+			try {
+				json.put("id", datum.getId());
+				if (datum.getLabel() != null)
+					json.put("label", datum.getLabel().toString());
+				JSONArray tokensJson = new JSONArray();
+				TokenSpan tokenSpan = datum.getTokenSpan();
+				for (int i = tokenSpan.getStartTokenIndex(); i < tokenSpan.getEndTokenIndex(); i++)
+					tokensJson.put(tokenSpan.getDocument().getToken(tokenSpan.getSentenceIndex(), i).getStr());
+				json.put("tokens", tokensJson);
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+			return json;
 		}
 		
 		@SuppressWarnings("unchecked")
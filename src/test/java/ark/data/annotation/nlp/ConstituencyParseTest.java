@@ -0,0 +1,113 @@
+package ark.data.annotation.nlp;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ark.data.DataTools;
+import ark.util.OutputWriter;
+
+public class ConstituencyParseTest {
+	private DataTools dataTools = new DataTools(new OutputWriter());
+
+	private ConstituencyParse constructParse(int tokenCount, String parse) {
+		String[] tokens = new String[tokenCount];
+		for (int i = 0; i < tokenCount; i++)
+			tokens[i] = "w" + i;
+
+		TestDocumentNLP document = new TestDocumentNLP(this.dataTools, "test", new String[][] { tokens });
+		document.setConstituencyParse(0, parse);
+		return document.getConstituencyParse(0);
+	}
+
+	/**
+	 * @return a random parse of the tokens from start to end, with random
+	 * branching and unary chains
+	 */
+	private String randomParse(Random random, int start, int end) {
+		StringBuilder parse = new StringBuilder();
+		int unaryCount = (random.nextInt(3) == 0) ? 1 + random.nextInt(3) : 0;
+		for (int i = 0; i < unaryCount; i++)
+			parse.append("(U").append(i).append(" ");
+
+		if (end - start == 1) {
+			parse.append("(NN w").append(start).append(")");
+		} else {
+			parse.append("(X");
+			int childStart = start;
+			while (childStart < end) {
+				int childEnd = childStart + 1 + random.nextInt(end - childStart);
+				if (childStart == start && childEnd == end)
+					childEnd--; // Unary chains are only added above
+				parse.append(" ").append(randomParse(random, childStart, childEnd));
+				childStart = childEnd;
+			}
+			parse.append(")");
+		}
+
+		for (int i = 0; i < unaryCount; i++)
+			parse.append(")");
+		return parse.toString();
+	}
+
+	private void assertSamePath(ConstituencyParse.ConstituentPath expected, ConstituencyParse.ConstituentPath actual) {
+		Assert.assertEquals(expected.getLength(), actual.getLength());
+		for (int i = 0; i < expected.getLength(); i++)
+			Assert.assertSame(expected.getConstituent(i), actual.getConstituent(i));
+	}
+
+	private void assertIndexMatchesSearch(ConstituencyParse parse, int tokenCount) {
+		for (int i = 0; i < tokenCount; i++) {
+			Assert.assertNotNull(parse.getTokenConstituent(i));
+			Assert.assertSame(parse.searchTokenConstituent(i), parse.getTokenConstituent(i));
+		}
+
+		for (int i = 0; i < tokenCount; i++) {
+			for (int j = 0; j < tokenCount; j++) {
+				ConstituencyParse.ConstituentPath expected = parse.searchPath(parse.searchTokenConstituent(i), parse.searchTokenConstituent(j));
+				assertSamePath(expected, parse.getPath(i, j));
+				assertSamePath(expected, parse.getPath(parse.getTokenConstituent(i), parse.getTokenConstituent(j)));
+				Assert.assertEquals(expected.getLength(), parse.getPathLength(i, j));
+			}
+		}
+
+		Assert.assertNull(parse.getTokenConstituent(tokenCount));
+		Assert.assertNull(parse.getPath(0, tokenCount));
+		Assert.assertEquals(-1, parse.getPathLength(-1, 0));
+	}
+
+	@Test
+	public void testRandomTrees() {
+		Random random = new Random(1);
+		for (int t = 0; t < 100; t++) {
+			int tokenCount = 1 + random.nextInt(12);
+			ConstituencyParse parse = constructParse(tokenCount, "(ROOT " + randomParse(random, 0, tokenCount) + ")");
+			assertIndexMatchesSearch(parse, tokenCount);
+		}
+	}
+
+	@Test
+	public void testSingleToken() {
+		ConstituencyParse parse = constructParse(1, "(NN w0)");
+		assertIndexMatchesSearch(parse, 1);
+		Assert.assertSame(parse.getRoot(), parse.getTokenConstituent(0));
+		Assert.assertEquals(1, parse.getPathLength(0, 0));
+
+		parse = constructParse(1, "(ROOT (NN w0))");
+		assertIndexMatchesSearch(parse, 1);
+		Assert.assertEquals("NN", parse.getTokenConstituent(0).getLabel());
+	}
+
+	@Test
+	public void testUnaryChains() {
+		ConstituencyParse parse = constructParse(2, "(ROOT (S (VP (NP (NN w0)))) (A (B (C (NN w1)))))");
+		assertIndexMatchesSearch(parse, 2);
+
+		// Up through the first chain and down through the second
+		ConstituencyParse.ConstituentPath path = parse.getPath(0, 1);
+		Assert.assertEquals(9, path.getLength());
+		Assert.assertSame(parse.getRoot(), path.getConstituent(4));
+		Assert.assertEquals("C", path.getConstituent(7).getLabel());
+	}
+}
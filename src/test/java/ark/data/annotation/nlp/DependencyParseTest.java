@@ -0,0 +1,70 @@
+package ark.data.annotation.nlp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ark.data.DataTools;
+import ark.util.OutputWriter;
+
+public class DependencyParseTest {
+	private static final String TREE_PARSE = 
+			"det(fox-3, The-1)\n" +
+			"amod(fox-3, quick-2)\n" +
+			"nsubj(jumped-4, fox-3)\n" +
+			"root(ROOT-0, jumped-4)\n" +
+			"prep(jumped-4, over-5)\n" +
+			"det(dog-7, the-6)\n" +
+			"pobj(over-5, dog-7)\n" +
+			"punct(jumped-4, .-8)\n";
+	
+	// fox has a second governor, so the dependencies don't form a tree
+	private static final String NON_TREE_PARSE = TREE_PARSE + "xsubj(over-5, fox-3)\n";
+	
+	private DataTools dataTools = new DataTools(new OutputWriter());
+	
+	private DependencyParse constructParse(String parse) {
+		TestDocumentNLP document = new TestDocumentNLP(this.dataTools, "test", new String[][] {
+			{ "The", "quick", "fox", "jumped", "over", "the", "dog", "." }
+		});
+		document.setDependencyParse(0, parse);
+		return document.getDependencyParse(0);
+	}
+	
+	private void assertSamePath(DependencyParse.DependencyPath expected, DependencyParse.DependencyPath actual) {
+		Assert.assertEquals(expected.getTokenLength(), actual.getTokenLength());
+		for (int i = 0; i < expected.getTokenLength(); i++)
+			Assert.assertEquals(expected.getTokenIndex(i), actual.getTokenIndex(i));
+		Assert.assertEquals(expected.toString(), actual.toString());
+	}
+	
+	private void assertPathsMatchSearch(DependencyParse parse) {
+		for (int i = -1; i < 8; i++) {
+			for (int j = -1; j < 8; j++) {
+				DependencyParse.DependencyPath expected = parse.searchPath(i, j);
+				Assert.assertNotNull(expected);
+				assertSamePath(expected, parse.getPath(i, j));
+				Assert.assertEquals(parse.getPath(i, j).getTokenLength(), parse.getPathTokenLength(i, j));
+			}
+		}
+		
+		Assert.assertNull(parse.getPath(0, 8));
+		Assert.assertEquals(-1, parse.getPathTokenLength(0, 8));
+	}
+	
+	@Test
+	public void testTreePaths() {
+		DependencyParse parse = constructParse(TREE_PARSE);
+		assertPathsMatchSearch(parse);
+		
+		DependencyParse.DependencyPath path = parse.getPath(0, 6);
+		Assert.assertEquals(5, path.getTokenLength());
+		Assert.assertEquals("det-D/nsubj-D/prep-G/pobj-G", path.toString());
+		Assert.assertEquals(3, parse.getPathTokenLength(-1, 2));
+	}
+	
+	@Test
+	public void testNonTreePaths() {
+		DependencyParse parse = constructParse(NON_TREE_PARSE);
+		assertPathsMatchSearch(parse);
+	}
+}
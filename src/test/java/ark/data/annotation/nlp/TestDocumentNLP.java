@@ -0,0 +1,36 @@
+package ark.data.annotation.nlp;
+
+import ark.data.DataTools;
+
+/**
+ * TestDocumentNLP is an in-memory document built directly from tokenized
+ * sentences (and optionally their parses), so that tests don't need to 
+ * run an NLP pipeline.
+ */
+public class TestDocumentNLP extends DocumentNLPInMemory {
+	public TestDocumentNLP(DataTools dataTools, String name, String[][] sentences) {
+		super(dataTools);
+		
+		this.name = name;
+		this.tokens = new Token[sentences.length][];
+		this.dependencyParses = new DependencyParse[sentences.length];
+		this.constituencyParses = new ConstituencyParse[sentences.length];
+		
+		int characterOffset = 0;
+		for (int i = 0; i < sentences.length; i++) {
+			this.tokens[i] = new Token[sentences[i].length];
+			for (int j = 0; j < sentences[i].length; j++) {
+				this.tokens[i][j] = new Token(this, sentences[i][j], characterOffset, characterOffset + sentences[i][j].length());
+				characterOffset += sentences[i][j].length() + 1;
+			}
+		}
+	}
+	
+	public void setDependencyParse(int sentenceIndex, String parse) {
+		this.dependencyParses[sentenceIndex] = DependencyParse.fromString(parse, this, sentenceIndex);
+	}
+	
+	public void setConstituencyParse(int sentenceIndex, String parse) {
+		this.constituencyParses[sentenceIndex] = ConstituencyParse.fromString(parse, this, sentenceIndex);
+	}
+}
@@ -0,0 +1,281 @@
+package ark.data.feature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ark.data.Context;
+import ark.data.DataTools;
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools.LabelIndicator;
+import ark.data.annotation.TestDatum;
+import ark.data.annotation.nlp.DocumentNLP;
+import ark.data.annotation.nlp.TestDocumentNLP;
+import ark.data.annotation.nlp.TokenSpan;
+import ark.parse.AssignmentList;
+import ark.parse.Obj;
+import ark.util.HashedVocabulary;
+import ark.util.OutputWriter;
+
+public class FeatureTest {
+	private DataTools dataTools = new DataTools(new OutputWriter());
+	private TestDatum.Tools<String> datumTools = TestDatum.getStringTools(this.dataTools);
+	
+	private List<TestDatum<String>> constructTestData() {
+		DocumentNLP document = new TestDocumentNLP(this.dataTools, "test", new String[][] {
+			{ "This", "is", "some", "test", "text", "." },
+			{ "It", "is", "good", "text", "for", "TESTING", "." },
+			{ "Test", "it", "." }
+		});
+		
+		List<TestDatum<String>> data = new ArrayList<TestDatum<String>>();
+		data.add(new TestDatum<String>(1, new TokenSpan(document, 0, 0, 2), "a"));
+		data.add(new TestDatum<String>(2, new TokenSpan(document, 0, 2, 5), "b"));
+		data.add(new TestDatum<String>(3, new TokenSpan(document, 1, 1, 4), "a"));
+		data.add(new TestDatum<String>(4, new TokenSpan(document, 1, 4, 6), "b"));
+		data.add(new TestDatum<String>(5, new TokenSpan(document, 2, 0, 2), "a"));
+		return data;
+	}
+	
+	private FeaturizedDataSet<TestDatum<String>, String> constructTestDataSet(List<Feature<TestDatum<String>, String>> features) {
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = new FeaturizedDataSet<TestDatum<String>, String>("test", 1, this.datumTools, null);
+		for (TestDatum<String> datum : constructTestData())
+			dataSet.add(datum);
+		for (Feature<TestDatum<String>, String> feature : features)
+			Assert.assertTrue(dataSet.addFeature(feature, true));
+		return dataSet;
+	}
+	
+	private List<Feature<TestDatum<String>, String>> constructConjunctionFeatures(String conjunctionParameters) {
+		Context<TestDatum<String>, String> context = Context.deserialize(this.datumTools,
+				"ts_fn ins1=NGramInside(n=\"1\", noHead=\"false\");\n" +
+				"ts_str_fn str=String(cleanFn=\"DefaultCleanFn\");\n" +
+				"feature form=StringForm(stringExtractor=\"TokenSpan\", minFeatureOccurrence=\"1\");\n" +
+				"feature words=TokenSpanFnDataVocab(scale=INDICATOR, minFeatureOccurrence=1, tokenExtractor=TokenSpan, fn=(${str} o ${ins1}));\n" +
+				"feature conj=Conjunction(" + conjunctionParameters + ", featureReferences=\"form/words\");\n");
+		
+		// Referenced features are initialized before the conjunction
+		List<Feature<TestDatum<String>, String>> features = new ArrayList<Feature<TestDatum<String>, String>>();
+		features.add(getFeature(context.getFeatures(), "form"));
+		features.add(getFeature(context.getFeatures(), "words"));
+		features.add(getFeature(context.getFeatures(), "conj"));
+		return features;
+	}
+	
+	private Feature<TestDatum<String>, String> getFeature(List<Feature<TestDatum<String>, String>> features, String referenceName) {
+		for (Feature<TestDatum<String>, String> feature : features)
+			if (referenceName.equals(feature.getReferenceName()))
+				return feature;
+		return null;
+	}
+	
+	@Test
+	public void testConjunctionSerialization() {
+		List<Feature<TestDatum<String>, String>> features = constructConjunctionFeatures("minFeatureOccurrence=\"1\"");
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructTestDataSet(features);
+		Feature<TestDatum<String>, String> conjunction = getFeature(features, "conj");
+		Assert.assertTrue(conjunction.getVocabularySize() > 0);
+		
+		// Load the features from their saved vocabularies into a new data set
+		Context<TestDatum<String>, String> savedContext = new Context<TestDatum<String>, String>(this.datumTools, features);
+		Context<TestDatum<String>, String> loadedContext = Context.deserialize(this.datumTools, savedContext.toString());
+		List<Feature<TestDatum<String>, String>> loadedFeatures = loadedContext.getFeatures();
+		FeaturizedDataSet<TestDatum<String>, String> loadedDataSet = new FeaturizedDataSet<TestDatum<String>, String>("loaded", 1, this.datumTools, null);
+		for (TestDatum<String> datum : dataSet)
+			loadedDataSet.add(datum);
+		Assert.assertTrue(loadedDataSet.addFeatures(loadedFeatures, false));
+		
+		Feature<TestDatum<String>, String> loadedConjunction = getFeature(loadedFeatures, "conj");
+		Assert.assertEquals(conjunction.getVocabularySize(), loadedConjunction.getVocabularySize());
+		
+		Feature<TestDatum<String>, String> clonedConjunction = conjunction.clone(true);
+		List<Feature<TestDatum<String>, String>> clonedFeatures = new ArrayList<Feature<TestDatum<String>, String>>();
+		clonedFeatures.add(getFeature(features, "form"));
+		clonedFeatures.add(getFeature(features, "words"));
+		clonedFeatures.add(clonedConjunction);
+		FeaturizedDataSet<TestDatum<String>, String> clonedDataSet = new FeaturizedDataSet<TestDatum<String>, String>("cloned", 1, this.datumTools, null);
+		for (TestDatum<String> datum : dataSet)
+			clonedDataSet.add(datum);
+		Assert.assertTrue(clonedDataSet.addFeatures(clonedFeatures, false));
+		
+		for (TestDatum<String> datum : dataSet) {
+			Map<Integer, Double> vector = conjunction.computeVector(datum);
+			Assert.assertFalse(vector.isEmpty());
+			Assert.assertEquals(vector, loadedConjunction.computeVector(datum));
+			Assert.assertEquals(vector, clonedConjunction.computeVector(datum));
+			for (Integer index : vector.keySet())
+				Assert.assertEquals(conjunction.getVocabularyTerm(index), loadedConjunction.getVocabularyTerm(index));
+		}
+	}
+	
+	@Test
+	public void testConjunctionFusedInitMatchesInit() {
+		List<Feature<TestDatum<String>, String>> features = constructConjunctionFeatures("minFeatureOccurrence=\"2\"");
+		constructTestDataSet(features);
+		
+		List<Feature<TestDatum<String>, String>> sketchedFeatures = constructConjunctionFeatures("minFeatureOccurrence=\"2\", sketchError=\"0.001\"");
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructTestDataSet(sketchedFeatures);
+		
+		Feature<TestDatum<String>, String> conjunction = getFeature(features, "conj");
+		Feature<TestDatum<String>, String> sketchedConjunction = getFeature(sketchedFeatures, "conj");
+		Assert.assertEquals(conjunction.getVocabularySize(), sketchedConjunction.getVocabularySize());
+		for (TestDatum<String> datum : dataSet)
+			Assert.assertEquals(conjunction.computeVector(datum), sketchedConjunction.computeVector(datum));
+	}
+	
+	@Test
+	public void testHashedVocabularyCollisions() {
+		// With a single bucket, every term collides
+		Context<TestDatum<String>, String> context = Context.deserialize(this.datumTools,
+				"ts_fn ins1=NGramInside(n=\"1\", noHead=\"false\");\n" +
+				"ts_str_fn str=String(cleanFn=\"DefaultCleanFn\");\n" +
+				"feature words=TokenSpanFnDataVocab(scale=NORMALIZED_LOG, minFeatureOccurrence=1, tokenExtractor=TokenSpan, hashBuckets=1, fn=(${str} o ${ins1}));\n");
+		Feature<TestDatum<String>, String> feature = getFeature(context.getFeatures(), "words");
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructTestDataSet(context.getFeatures());
+		
+		for (TestDatum<String> datum : dataSet) {
+			Map<Integer, Double> vector = feature.computeVector(datum);
+			Assert.assertEquals(1, vector.size());
+			Assert.assertEquals(1.0, vector.get(0), .0001);
+		}
+		
+		Assert.assertNull(Context.deserialize(this.datumTools,
+				"ts_fn ins1=NGramInside(n=\"1\", noHead=\"false\");\n" +
+				"ts_str_fn str=String(cleanFn=\"DefaultCleanFn\");\n" +
+				"feature words=TokenSpanFnDataVocab(scale=NORMALIZED_TFIDF, minFeatureOccurrence=1, tokenExtractor=TokenSpan, hashBuckets=16, fn=(${str} o ${ins1}));\n"));
+	}
+	
+	private Feature<TestDatum<String>, String> constructWordsFeature(String parameters) {
+		Context<TestDatum<String>, String> context = Context.deserialize(this.datumTools,
+				"ts_fn ins1=NGramInside(n=\"1\", noHead=\"false\");\n" +
+				"ts_str_fn str=String(cleanFn=\"DefaultCleanFn\");\n" +
+				"feature words=TokenSpanFnDataVocab(scale=INDICATOR, tokenExtractor=TokenSpan, " + parameters + ", fn=(${str} o ${ins1}));\n");
+		return getFeature(context.getFeatures(), "words");
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testHashedVocabularyParameters() {
+		FeatureTokenSpanFnDataVocab<TestDatum<String>, String> feature = (FeatureTokenSpanFnDataVocab<TestDatum<String>, String>)constructWordsFeature("hashBuckets=16, hashTermSampleSize=4");
+		HashedVocabulary hashedVocabulary = feature.hashedVocabulary;
+		Assert.assertEquals(16, hashedVocabulary.size());
+		
+		// An invalid value is rejected without being assigned
+		Assert.assertFalse(feature.setParameterValue("scale", Obj.stringValue("NORMALIZED_TFIDF")));
+		Assert.assertEquals(FeatureTokenSpanFnDataVocab.Scale.INDICATOR, feature.getScale());
+		
+		// The vocabulary is only rebuilt when the number of buckets changes
+		Assert.assertTrue(feature.setParameterValue("hashTermSampleSize", Obj.stringValue("2")));
+		Assert.assertTrue(feature.setParameterValue("hashBuckets", Obj.stringValue("16")));
+		Assert.assertSame(hashedVocabulary, feature.hashedVocabulary);
+		Assert.assertTrue(feature.setParameterValue("hashBuckets", Obj.stringValue("32")));
+		Assert.assertEquals(32, feature.hashedVocabulary.size());
+		Assert.assertTrue(feature.setParameterValue("hashBuckets", Obj.stringValue("0")));
+		Assert.assertNull(feature.hashedVocabulary);
+		Assert.assertTrue(feature.setParameterValue("scale", Obj.stringValue("NORMALIZED_TFIDF")));
+	}
+	
+	@Test
+	public void testSketchedVocabularyMatchesExact() {
+		List<Feature<TestDatum<String>, String>> features = new ArrayList<Feature<TestDatum<String>, String>>();
+		features.add(constructWordsFeature("minFeatureOccurrence=2"));
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructTestDataSet(features);
+		
+		// A large error makes the sketch overestimate rare terms, which are then dropped by the exact counts
+		List<Feature<TestDatum<String>, String>> sketchedFeatures = new ArrayList<Feature<TestDatum<String>, String>>();
+		sketchedFeatures.add(constructWordsFeature("minFeatureOccurrence=2, sketchError=\"0.5\""));
+		constructTestDataSet(sketchedFeatures);
+		
+		Feature<TestDatum<String>, String> feature = features.get(0);
+		Feature<TestDatum<String>, String> sketchedFeature = sketchedFeatures.get(0);
+		Assert.assertTrue(feature.getVocabularySize() > 0);
+		Assert.assertEquals(feature.getVocabularySize(), sketchedFeature.getVocabularySize());
+		for (int i = 0; i < feature.getVocabularySize(); i++)
+			Assert.assertEquals(feature.getVocabularyTerm(i), sketchedFeature.getVocabularyTerm(i));
+		for (TestDatum<String> datum : dataSet)
+			Assert.assertEquals(feature.computeVector(datum), sketchedFeature.computeVector(datum));
+	}
+	
+	private List<Feature<TestDatum<String>, String>> constructObservedFeatures() {
+		Context<TestDatum<String>, String> context = Context.deserialize(this.datumTools,
+				"ts_fn ins1=NGramInside(n=\"1\", noHead=\"false\");\n" +
+				"ts_fn ins2=NGramInside(n=\"2\", noHead=\"false\");\n" +
+				"ts_str_fn str=String(cleanFn=\"DefaultCleanFn\");\n" +
+				"feature words=TokenSpanFnDataVocab(scale=NORMALIZED_TFIDF, minFeatureOccurrence=2, tokenExtractor=TokenSpan, fn=(${str} o ${ins1}));\n" +
+				"feature bigrams=TokenSpanFnDataVocab(scale=INDICATOR, minFeatureOccurrence=1, tokenExtractor=TokenSpan, fn=(${str} o ${ins2}));\n" +
+				"feature form=StringForm(stringExtractor=\"TokenSpan\", minFeatureOccurrence=\"1\");\n");
+		
+		List<Feature<TestDatum<String>, String>> features = new ArrayList<Feature<TestDatum<String>, String>>();
+		features.add(getFeature(context.getFeatures(), "words"));
+		features.add(getFeature(context.getFeatures(), "bigrams"));
+		features.add(getFeature(context.getFeatures(), "form"));
+		return features;
+	}
+	
+	@Test
+	public void testFusedInitMatchesInit() {
+		// Each feature is initialized by its own pass
+		List<Feature<TestDatum<String>, String>> features = constructObservedFeatures();
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructTestDataSet(features);
+		
+		// The observed features are initialized together by one pass on several threads
+		List<Feature<TestDatum<String>, String>> fusedFeatures = constructObservedFeatures();
+		Assert.assertNotNull(fusedFeatures.get(0).makeInitObserver(dataSet));
+		Assert.assertNull(fusedFeatures.get(2).makeInitObserver(dataSet));
+		FeaturizedDataSet<TestDatum<String>, String> fusedDataSet = new FeaturizedDataSet<TestDatum<String>, String>("fused", 4, this.datumTools, null);
+		for (TestDatum<String> datum : dataSet)
+			fusedDataSet.add(datum);
+		Assert.assertTrue(fusedDataSet.addFeatures(fusedFeatures, true));
+		
+		Assert.assertEquals(dataSet.getFeatureVocabularySize(), fusedDataSet.getFeatureVocabularySize());
+		for (int i = 0; i < features.size(); i++) {
+			Feature<TestDatum<String>, String> feature = features.get(i);
+			Feature<TestDatum<String>, String> fusedFeature = fusedFeatures.get(i);
+			Assert.assertTrue(feature.getVocabularySize() > 0);
+			Assert.assertEquals(feature.getVocabularySize(), fusedFeature.getVocabularySize());
+			for (int j = 0; j < feature.getVocabularySize(); j++)
+				Assert.assertEquals(feature.getVocabularyTerm(j), fusedFeature.getVocabularyTerm(j));
+			for (TestDatum<String> datum : dataSet)
+				Assert.assertEquals(feature.computeVector(datum), fusedFeature.computeVector(datum));
+		}
+	}
+	
+	/**
+	 * FeatureNoVector overrides neither computeVector method
+	 */
+	private static class FeatureNoVector extends Feature<TestDatum<String>, String> {
+		public boolean init(FeaturizedDataSet<TestDatum<String>, String> dataSet) { return true; }
+		public int getVocabularySize() { return 0; }
+		public String getVocabularyTerm(int index) { return null; }
+		protected boolean setVocabularyTerm(int index, String term) { return false; }
+		protected <T extends Datum<Boolean>> Feature<T, Boolean> makeBinaryHelper(Context<T, Boolean> context, LabelIndicator<String> labelIndicator, Feature<T, Boolean> binaryFeature) { return binaryFeature; }
+		protected boolean cloneHelper(Feature<TestDatum<String>, String> clone) { return true; }
+		protected boolean fromParseInternalHelper(AssignmentList internalAssignments) { return true; }
+		protected AssignmentList toParseInternalHelper(AssignmentList internalAssignments) { return internalAssignments; }
+		public Feature<TestDatum<String>, String> makeInstance(Context<TestDatum<String>, String> context) { return new FeatureNoVector(); }
+		public String getGenericName() { return "NoVector"; }
+		public String[] getParameterNames() { return new String[0]; }
+		public Obj getParameterValue(String parameter) { return null; }
+		public boolean setParameterValue(String parameter, Obj parameterValue) { return false; }
+	}
+	
+	@Test
+	public void testComputeVectorNotOverridden() {
+		TestDatum<String> datum = constructTestData().get(0);
+		FeatureNoVector feature = new FeatureNoVector();
+		for (int i = 0; i < 2; i++) {
+			try {
+				if (i == 0)
+					feature.computeVector(datum);
+				else
+					feature.computeVector(datum, 0, new FeatureVectorBuffer());
+				Assert.fail("Expected IllegalStateException");
+			} catch (IllegalStateException e) {
+				Assert.assertTrue(e.getMessage().contains(FeatureNoVector.class.getName()));
+			}
+		}
+	}
+}
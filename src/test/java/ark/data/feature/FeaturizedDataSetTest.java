@@ -0,0 +1,345 @@
+package ark.data.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.platanios.learn.data.DataSetInMemory;
+import org.platanios.learn.data.PredictedDataInstance;
+import org.platanios.learn.math.matrix.Vector;
+
+import ark.data.Context;
+import ark.data.DataTools;
+import ark.data.annotation.DataSet;
+import ark.data.annotation.TestDatum;
+import ark.data.annotation.nlp.DocumentNLP;
+import ark.data.annotation.nlp.TestDocumentNLP;
+import ark.data.annotation.nlp.TokenSpan;
+import ark.parse.Obj;
+import ark.util.OutputWriter;
+
+public class FeaturizedDataSetTest {
+	private DataTools dataTools = new DataTools(new OutputWriter());
+	private TestDatum.Tools<String> datumTools = TestDatum.getStringTools(this.dataTools);
+	
+	private DocumentNLP constructDocument() {
+		return new TestDocumentNLP(this.dataTools, "test", new String[][] {
+			{ "This", "is", "some", "test", "text", "." },
+			{ "It", "is", "good", "text", "for", "TESTING", "." },
+			{ "Test", "it", "." }
+		});
+	}
+	
+	private FeaturizedDataSet<TestDatum<String>, String> constructTestDataSet(String name) {
+		return constructTestDataSet(name, constructDocument());
+	}
+	
+	private FeaturizedDataSet<TestDatum<String>, String> constructTestDataSet(String name, DocumentNLP document) {
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = new FeaturizedDataSet<TestDatum<String>, String>(name, 2, this.datumTools, null);
+		dataSet.add(new TestDatum<String>(1, new TokenSpan(document, 0, 0, 2), "a"));
+		dataSet.add(new TestDatum<String>(2, new TokenSpan(document, 0, 2, 5), "b"));
+		dataSet.add(new TestDatum<String>(3, new TokenSpan(document, 1, 1, 4), "a"));
+		dataSet.add(new TestDatum<String>(4, new TokenSpan(document, 1, 4, 6), "b"));
+		dataSet.add(new TestDatum<String>(5, new TokenSpan(document, 2, 0, 2), "a"));
+		return dataSet;
+	}
+	
+	private List<Feature<TestDatum<String>, String>> constructFeatures() {
+		Context<TestDatum<String>, String> context = Context.deserialize(this.datumTools,
+				"ts_fn ins1=NGramInside(n=\"1\", noHead=\"false\");\n" +
+				"ts_str_fn str=String(cleanFn=\"DefaultCleanFn\");\n" +
+				"feature words=TokenSpanFnDataVocab(scale=INDICATOR, minFeatureOccurrence=1, tokenExtractor=TokenSpan, fn=(${str} o ${ins1}));\n" +
+				"feature form=StringForm(stringExtractor=\"TokenSpan\", minFeatureOccurrence=\"1\");\n");
+		
+		List<Feature<TestDatum<String>, String>> features = new ArrayList<Feature<TestDatum<String>, String>>();
+		features.add(context.getMatchFeature(Obj.curlyBracedValue("words")));
+		features.add(context.getMatchFeature(Obj.curlyBracedValue("form")));
+		return features;
+	}
+	
+	private FeaturizedDataSet<TestDatum<String>, String> constructFeaturizedDataSet(String name) {
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructTestDataSet(name);
+		Assert.assertTrue(dataSet.addFeatures(constructFeatures(), true));
+		return dataSet;
+	}
+	
+	private void assertSameValues(FeaturizedDataSet<TestDatum<String>, String> expected, FeaturizedDataSet<TestDatum<String>, String> actual) {
+		Assert.assertEquals(expected.getFeatureVocabularySize(), actual.getFeatureVocabularySize());
+		Assert.assertEquals(expected.getFeatureVocabularyNames(), actual.getFeatureVocabularyNames());
+		for (TestDatum<String> datum : expected)
+			Assert.assertEquals(expected.getFeatureVocabularyValuesAsMap(datum, false), 
+								actual.getFeatureVocabularyValuesAsMap(actual.getDatumById(datum.getId()), false));
+	}
+	
+	@Test
+	public void testFeatureSnapshot() throws IOException {
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructFeaturizedDataSet("test");
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		Assert.assertTrue(dataSet.saveFeatureSnapshot(file));
+		
+		FeaturizedDataSet<TestDatum<String>, String> loadedDataSet = constructTestDataSet("loaded");
+		List<Feature<TestDatum<String>, String>> features = constructFeatures();
+		Assert.assertTrue(loadedDataSet.addFeaturesFromSnapshot(features, file));
+		Assert.assertTrue(loadedDataSet.getPrecomputedFeatures());
+		Assert.assertEquals(dataSet.getFeature(0).getVocabularySize(), features.get(0).getVocabularySize());
+		assertSameValues(dataSet, loadedDataSet);
+	}
+	
+	@Test
+	public void testFeatureSnapshotMismatch() throws IOException {
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructFeaturizedDataSet("test");
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		Assert.assertTrue(dataSet.saveFeatureSnapshot(file));
+		
+		// Shift the second feature's saved starting index
+		RandomAccessFile snapshot = new RandomAccessFile(file, "rw");
+		snapshot.seek(16);
+		long startIndexPosition = 24 + snapshot.readInt() + 4;
+		snapshot.seek(startIndexPosition);
+		int startIndex = snapshot.readInt();
+		snapshot.seek(startIndexPosition);
+		snapshot.writeInt(startIndex + 1);
+		snapshot.close();
+		
+		FeaturizedDataSet<TestDatum<String>, String> loadedDataSet = constructTestDataSet("loaded");
+		List<Feature<TestDatum<String>, String>> features = constructFeatures();
+		Assert.assertFalse(loadedDataSet.addFeaturesFromSnapshot(features, file));
+		Assert.assertEquals(0, loadedDataSet.getFeatureCount());
+		Assert.assertEquals(0, loadedDataSet.getFeatureVocabularySize());
+		Assert.assertEquals(0, features.get(0).getVocabularySize());
+		Assert.assertEquals(0, features.get(1).getVocabularySize());
+		
+		// A data set with other datums doesn't match the snapshot's key
+		FeaturizedDataSet<TestDatum<String>, String> otherDataSet = constructTestDataSet("other");
+		otherDataSet.add(new TestDatum<String>(6, otherDataSet.getDatumById(1).getTokenSpan(), "b"));
+		Assert.assertFalse(otherDataSet.addFeaturesFromSnapshot(constructFeatures(), file));
+		Assert.assertEquals(0, otherDataSet.getFeatureCount());
+	}
+	
+	@Test
+	public void testCachedVectorsAreCopied() {
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructFeaturizedDataSet("test");
+		TestDatum<String> datum = dataSet.getDatumById(3);
+		Map<Integer, Double> values = dataSet.getFeatureVocabularyValuesAsMap(datum);
+		Assert.assertFalse(values.isEmpty());
+		
+		Vector vector = dataSet.getFeatureVocabularyValues(datum);
+		for (Integer index : values.keySet())
+			vector.set(index, -1.0);
+		
+		Assert.assertEquals(values, dataSet.getFeatureVocabularyValuesAsMap(datum));
+	}
+	
+	@Test
+	public void testFeatureVectorCacheSpill() throws IOException, InterruptedException {
+		File spillFile = File.createTempFile("cache", ".bin");
+		spillFile.deleteOnExit();
+		final FeatureVectorCache cache = new FeatureVectorCache(16*1024, spillFile);
+		final int rowsPerThread = 1000;
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int firstId = t*rowsPerThread;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int id = firstId; id < firstId + rowsPerThread; id++)
+							Assert.assertTrue(cache.put(new SparseFeatureMatrix.Row(id, new int[] { id, id + 1 }, new double[] { 1.0, id })));
+						for (int id = firstId; id < firstId + rowsPerThread; id++) {
+							SparseFeatureMatrix.Row row = cache.get(id);
+							Assert.assertEquals(id, row.getId());
+							Assert.assertEquals(id + 1, row.getIndices()[1]);
+							Assert.assertEquals(id, row.getValues()[1], 0.0);
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+		}
+		
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		Assert.assertEquals(4*rowsPerThread, cache.size());
+		Assert.assertTrue(cache.getSpills() > 0);
+		Assert.assertTrue(cache.getMemory() <= cache.getMaxMemory());
+		Assert.assertFalse(cache.contains(4*rowsPerThread));
+		Assert.assertNull(cache.get(4*rowsPerThread));
+		
+		cache.clear();
+		Assert.assertTrue(cache.isEmpty());
+	}
+	
+	@Test
+	public void testFeatureVectorCacheReplacement() throws IOException {
+		File spillDirectory = File.createTempFile("caches", "");
+		Assert.assertTrue(spillDirectory.delete() && spillDirectory.mkdir());
+		spillDirectory.deleteOnExit();
+		File spillFile = new File(spillDirectory, "cache");
+		
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructFeaturizedDataSet("test");
+		Assert.assertTrue(dataSet.setFeatureVectorCache(new FeatureVectorCache(1, spillFile)));
+		cacheValues(dataSet);
+		Assert.assertTrue(spillFile.exists());
+		
+		// The replaced cache's spill file is deleted, and the new cache's
+		// file isn't created until it spills
+		Assert.assertTrue(dataSet.removeFeature(dataSet.getFeature(0)));
+		Assert.assertEquals(0, spillDirectory.listFiles().length);
+		cacheValues(dataSet);
+		Assert.assertEquals(1, spillDirectory.listFiles().length);
+		
+		// A replaced cache that a subset shares is kept until the subset 
+		// replaces it too
+		FeaturizedDataSet<TestDatum<String>, String> subset = (FeaturizedDataSet<TestDatum<String>, String>)dataSet.getSubset(DataSet.DataFilter.All);
+		Assert.assertTrue(dataSet.removeFeature(dataSet.getFeature(0)));
+		Assert.assertEquals(1, spillDirectory.listFiles().length);
+		Assert.assertFalse(subset.getFeatureVectorCache().isEmpty());
+		Assert.assertTrue(subset.removeFeature(subset.getFeature(0)));
+		Assert.assertEquals(0, spillDirectory.listFiles().length);
+	}
+	
+	private void cacheValues(FeaturizedDataSet<TestDatum<String>, String> dataSet) {
+		for (TestDatum<String> datum : dataSet)
+			dataSet.getFeatureVocabularyValues(datum);
+	}
+	
+	private Map<Integer, Map<Integer, Double>> getValues(FeaturizedDataSet<TestDatum<String>, String> dataSet) {
+		Map<Integer, Map<Integer, Double>> values = new HashMap<Integer, Map<Integer, Double>>();
+		for (TestDatum<String> datum : dataSet)
+			values.put(datum.getId(), dataSet.getFeatureVocabularyValuesAsMap(datum, false));
+		return values;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void assertPartValues(Map<Integer, Map<Integer, Double>> expected, DataSet<TestDatum<String>, String> part) {
+		Assert.assertTrue(part instanceof FeaturizedDataSet);
+		FeaturizedDataSet<TestDatum<String>, String> featurizedPart = (FeaturizedDataSet<TestDatum<String>, String>)part;
+		for (TestDatum<String> datum : featurizedPart)
+			Assert.assertEquals(expected.get(datum.getId()), featurizedPart.getFeatureVocabularyValuesAsMap(datum));
+	}
+	
+	@Test
+	public void testPartitionFeatureValues() {
+		for (int precompute = 0; precompute < 2; precompute++) {
+			FeaturizedDataSet<TestDatum<String>, String> dataSet = constructFeaturizedDataSet("test");
+			Map<Integer, Map<Integer, Double>> expected = getValues(dataSet);
+			if (precompute == 1)
+				Assert.assertTrue(dataSet.precomputeFeatures());
+			
+			List<DataSet<TestDatum<String>, String>> partition = dataSet.makePartition(new double[] { .6, .4 }, new Random(1));
+			Assert.assertEquals(2, partition.size());
+			Assert.assertEquals(dataSet.size(), partition.get(0).size() + partition.get(1).size());
+			for (DataSet<TestDatum<String>, String> part : partition)
+				assertPartValues(expected, part);
+			assertPartValues(expected, dataSet.getSubset(DataSet.DataFilter.All));
+			
+			// Changing a part's features doesn't change the parent's vectors
+			FeaturizedDataSet<TestDatum<String>, String> part = (FeaturizedDataSet<TestDatum<String>, String>)partition.get(1);
+			Assert.assertTrue(part.removeFeature(part.getFeature(0)));
+			for (TestDatum<String> datum : part)
+				part.getFeatureVocabularyValues(datum);
+			assertPartValues(expected, dataSet);
+		}
+	}
+	
+	@Test
+	public void testPrecomputedFeatureChanges() {
+		DocumentNLP document = constructDocument();
+		FeaturizedDataSet<TestDatum<String>, String> dataSet = constructTestDataSet("test", document);
+		Assert.assertTrue(dataSet.addFeatures(constructFeatures(), true));
+		Assert.assertTrue(dataSet.precomputeFeatures());
+		
+		// Removing the first feature shifts the second feature's block
+		Assert.assertTrue(dataSet.removeFeature(dataSet.getFeature(0)));
+		Assert.assertTrue(dataSet.getPrecomputedFeatures());
+		FeaturizedDataSet<TestDatum<String>, String> expected = constructTestDataSet("expected", document);
+		Assert.assertTrue(expected.addFeature(constructFeatures().get(1), true));
+		assertSameValues(expected, dataSet);
+		
+		// Adding a feature only computes the added feature's block
+		Assert.assertTrue(dataSet.addFeature(constructFeatures().get(0), true));
+		Assert.assertTrue(dataSet.getPrecomputedFeatures());
+		Assert.assertTrue(expected.addFeature(constructFeatures().get(0), true));
+		assertSameValues(expected, dataSet);
+		for (TestDatum<String> datum : dataSet)
+			Assert.assertEquals(expected.getFeatureVocabularyValuesAsMap(expected.getDatumById(datum.getId())), 
+								dataSet.getFeatureVocabularyValuesAsMap(datum));
+	}
+	
+	private FeaturizedDataSet<TestDatum<Boolean>, Boolean> constructBooleanDataSet() {
+		TestDatum.Tools<Boolean> booleanTools = TestDatum.getBooleanTools(this.dataTools);
+		DocumentNLP document = constructDocument();
+		FeaturizedDataSet<TestDatum<Boolean>, Boolean> dataSet = new FeaturizedDataSet<TestDatum<Boolean>, Boolean>("boolean", 2, booleanTools, null);
+		dataSet.add(new TestDatum<Boolean>(1, new TokenSpan(document, 0, 0, 2), true));
+		dataSet.add(new TestDatum<Boolean>(2, new TokenSpan(document, 0, 2, 5), false));
+		dataSet.add(new TestDatum<Boolean>(3, new TokenSpan(document, 1, 1, 4), null));
+		dataSet.add(new TestDatum<Boolean>(4, new TokenSpan(document, 1, 4, 6), true));
+		dataSet.add(new TestDatum<Boolean>(5, new TokenSpan(document, 2, 0, 2), false));
+		
+		Context<TestDatum<Boolean>, Boolean> context = Context.deserialize(booleanTools,
+				"ts_fn ins1=NGramInside(n=\"1\", noHead=\"false\");\n" +
+				"ts_str_fn str=String(cleanFn=\"DefaultCleanFn\");\n" +
+				"feature words=TokenSpanFnDataVocab(scale=INDICATOR, minFeatureOccurrence=1, tokenExtractor=TokenSpan, fn=(${str} o ${ins1}));\n");
+		Assert.assertTrue(dataSet.addFeature(context.getMatchFeature(Obj.curlyBracedValue("words")), true));
+		return dataSet;
+	}
+	
+	private void assertPlataniosInstance(FeaturizedDataSet<TestDatum<Boolean>, Boolean> dataSet, PredictedDataInstance<Vector, Double> instance, boolean infiniteVectorsWithBias) {
+		TestDatum<Boolean> datum = dataSet.getDatumById(Integer.valueOf(instance.name()));
+		Assert.assertEquals((datum.getLabel() == null) ? null : (datum.getLabel() ? 1.0 : 0.0), instance.label());
+		
+		Map<Integer, Double> values = dataSet.getFeatureVocabularyValuesAsMap(datum, false);
+		Assert.assertFalse(values.isEmpty());
+		int shift = (infiniteVectorsWithBias) ? 1 : 0;
+		if (infiniteVectorsWithBias)
+			Assert.assertEquals(1.0, instance.features().get(0), 0.0);
+		for (Entry<Integer, Double> entry : values.entrySet())
+			Assert.assertEquals(entry.getValue(), instance.features().get(entry.getKey() + shift), 0.0);
+		Assert.assertEquals(0.0, instance.features().get(dataSet.getFeatureVocabularySize() + shift), 0.0);
+	}
+	
+	@Test
+	public void testPlataniosDataInstances() {
+		FeaturizedDataSet<TestDatum<Boolean>, Boolean> dataSet = constructBooleanDataSet();
+		for (int bias = 0; bias < 2; bias++) {
+			boolean infiniteVectorsWithBias = (bias == 1);
+			DataSetInMemory<PredictedDataInstance<Vector, Double>> instances = dataSet.makePlataniosDataSet(false, 0.0, true, infiniteVectorsWithBias);
+			Assert.assertEquals(4, instances.size());
+			
+			int i = 0;
+			for (PredictedDataInstance<Vector, Double> instance : dataSet.makePlataniosDataInstances(false, 0.0, true, infiniteVectorsWithBias)) {
+				Assert.assertEquals(instances.get(i).name(), instance.name());
+				assertPlataniosInstance(dataSet, instance, infiniteVectorsWithBias);
+				assertPlataniosInstance(dataSet, instances.get(i), infiniteVectorsWithBias);
+				i++;
+			}
+			Assert.assertEquals(4, i);
+		}
+		
+		// Negatives aren't sampled when all of the sampled datums must be positive
+		int count = 0;
+		for (PredictedDataInstance<Vector, Double> instance : dataSet.makePlataniosDataInstances(false, 1.0, false, false)) {
+			Assert.assertFalse(Double.valueOf(0.0).equals(instance.label()));
+			count++;
+		}
+		Assert.assertEquals(3, count);
+	}
+}
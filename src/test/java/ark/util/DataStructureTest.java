@@ -1,5 +1,14 @@
 package ark.util;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 
 import org.ardverk.collection.PatriciaTrie;
@@ -10,6 +19,9 @@ import org.junit.Assert;
 import org.platanios.learn.math.matrix.SparseVector;
 import org.platanios.learn.math.matrix.Vector;
 
+import ark.data.feature.FeatureVectorBuffer;
+import ark.data.feature.SparseFeatureMatrix;
+
 public class DataStructureTest {
 	@Test
 	public void testTrie() {
@@ -29,6 +41,366 @@ public class DataStructureTest {
 		Assert.assertTrue(prefixed.containsKey("dog"));
 	}
 	
+	@Test
+	public void testSparseFeatureMatrixWriteMap() throws IOException {
+		List<SparseFeatureMatrix.Row> rows = new ArrayList<SparseFeatureMatrix.Row>();
+		rows.add(new SparseFeatureMatrix.Row(9, new int[] { 1, 4, 6 }, new double[] { 1.0, 4.0, 6.0 }));
+		rows.add(new SparseFeatureMatrix.Row(2, new int[] { 0 }, new double[] { 0.5 }));
+		rows.add(new SparseFeatureMatrix.Row(5, new int[0], new double[0]));
+		SparseFeatureMatrix matrix = SparseFeatureMatrix.fromRows(7, rows);
+		
+		File file = File.createTempFile("matrix", ".bin");
+		file.deleteOnExit();
+		DataOutputStream writer = new DataOutputStream(new FileOutputStream(file));
+		writer.writeLong(0L); // Matrices are written at multiples of 8 bytes
+		Assert.assertEquals(matrix.getWrittenSize(), matrix.write(writer));
+		writer.close();
+		Assert.assertEquals(8 + matrix.getWrittenSize(), file.length());
+		
+		RandomAccessFile reader = new RandomAccessFile(file, "r");
+		SparseFeatureMatrix mapped = SparseFeatureMatrix.map(reader.getChannel(), 8);
+		reader.close();
+		
+		Assert.assertEquals(7, mapped.getColumnCount());
+		Assert.assertEquals(3, mapped.getRowCount());
+		Assert.assertEquals(4, mapped.getNonZeroCount());
+		for (SparseFeatureMatrix.Row row : rows) {
+			SparseFeatureMatrix.Row mappedRow = mapped.getRowValues(row.getId());
+			Assert.assertArrayEquals(row.getIndices(), mappedRow.getIndices());
+			Assert.assertArrayEquals(row.getValues(), mappedRow.getValues(), 0.0);
+			Assert.assertEquals(matrix.getRowAsMap(row.getId(), new HashMap<Integer, Double>()), 
+								mapped.getRowAsMap(row.getId(), new HashMap<Integer, Double>()));
+		}
+		
+		Assert.assertEquals(2, mapped.getRowId(0));
+		Assert.assertFalse(mapped.containsRow(3));
+		Assert.assertNull(mapped.getRowValues(3));
+	}
+	
+	@Test
+	public void testFeatureVectorBufferCompact() {
+		FeatureVectorBuffer buffer = new FeatureVectorBuffer(2);
+		buffer.append(7, 7.0);
+		buffer.append(2, 2.0);
+		buffer.append(7, 8.0);
+		buffer.append(5, 5.0);
+		buffer.compact();
+		
+		Assert.assertEquals(3, buffer.size());
+		Assert.assertEquals(2, buffer.getIndex(0));
+		Assert.assertEquals(2.0, buffer.getValue(0), .01);
+		Assert.assertEquals(5, buffer.getIndex(1));
+		Assert.assertEquals(5.0, buffer.getValue(1), .01);
+		Assert.assertEquals(7, buffer.getIndex(2));
+		Assert.assertEquals(8.0, buffer.getValue(2), .01);
+		
+		buffer.clear();
+		buffer.append(1, 1.0);
+		Assert.assertEquals(1, buffer.toRow(0).getIndices().length);
+	}
+	
+	@Test
+	public void testFeatureVectorBufferSumDuplicates() {
+		FeatureVectorBuffer buffer = new FeatureVectorBuffer(2);
+		buffer.append(1, 1.0);
+		buffer.append(9, 1.0);
+		buffer.append(4, 2.0);
+		buffer.append(9, 3.0);
+		buffer.append(4, 5.0);
+		buffer.sumDuplicates(1);
+		
+		Assert.assertEquals(3, buffer.size());
+		Assert.assertEquals(1, buffer.getIndex(0));
+		Assert.assertEquals(1.0, buffer.getValue(0), .01);
+		Assert.assertEquals(4, buffer.getIndex(1));
+		Assert.assertEquals(7.0, buffer.getValue(1), .01);
+		Assert.assertEquals(9, buffer.getIndex(2));
+		Assert.assertEquals(4.0, buffer.getValue(2), .01);
+		
+		buffer.append(2, 2.0);
+		buffer.compact();
+		Assert.assertEquals(4, buffer.size());
+		Assert.assertEquals(2, buffer.getIndex(1));
+	}
+	
+	@Test
+	public void testCounterTableConcurrentIncrement() throws InterruptedException {
+		final CounterTable<String> counter = new CounterTable<String>();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++)
+						counter.incrementCount(String.valueOf(j % 100));
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+		
+		Assert.assertEquals(100, counter.getSize());
+		Assert.assertEquals(40, counter.getCounts().get("0").intValue());
+		Assert.assertEquals(40, counter.getCounts().get("99").intValue());
+		
+		counter.incrementCount("0");
+		counter.removeCountsLessThan(41);
+		Assert.assertEquals(1, counter.buildIndex().size());
+	}
+	
+	@Test
+	public void testCounterTableBuildIndex() {
+		CounterTable<String> counter = new CounterTable<String>();
+		for (int i = 0; i < 3; i++)
+			counter.incrementCount("c");
+		for (int i = 0; i < 2; i++)
+			counter.incrementCount("a");
+		counter.incrementCount("b");
+		counter.incrementCount("d");
+		
+		Map<String, Integer> index = counter.buildIndex();
+		Assert.assertEquals(0, index.get("c").intValue());
+		Assert.assertEquals(1, index.get("a").intValue());
+		Assert.assertEquals(2, index.get("b").intValue());
+		Assert.assertEquals(3, index.get("d").intValue());
+		
+		index = counter.buildIndex(2);
+		Assert.assertEquals(2, index.size());
+		Assert.assertTrue(index.containsKey("c"));
+		Assert.assertTrue(index.containsKey("a"));
+	}
+	
+	@Test
+	public void testHashedVocabularySample() {
+		String[] terms = { "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "a", "b", "c", "d" };
+		HashedVocabulary vocabulary = new HashedVocabulary(8, 5);
+		HashedVocabulary reversedVocabulary = new HashedVocabulary(8, 5);
+		for (int i = 0; i < terms.length; i++) {
+			Assert.assertEquals(vocabulary.get(terms[i]), reversedVocabulary.get(terms[i]));
+			vocabulary.addSampledTerm(terms[i]);
+			reversedVocabulary.addSampledTerm(terms[terms.length - i - 1]);
+		}
+		
+		// The sample doesn't depend on the order in which terms were added
+		List<String> sample = vocabulary.getSampledTerms();
+		Assert.assertEquals(5, sample.size());
+		Assert.assertEquals(sample, reversedVocabulary.getSampledTerms());
+		
+		// Each sampled term is the smallest term in its bucket
+		for (String term : terms) {
+			int index = vocabulary.get(term);
+			if (sample.contains(term))
+				Assert.assertEquals(term, vocabulary.getTerm(index));
+			else
+				Assert.assertTrue(vocabulary.getTerm(index).startsWith("#") || vocabulary.getTerm(index).compareTo(term) < 0);
+		}
+		
+		// Looking up terms doesn't sample them
+		HashedVocabulary unsampledVocabulary = new HashedVocabulary(8, 5);
+		for (String term : terms)
+			unsampledVocabulary.get(term);
+		Assert.assertTrue(unsampledVocabulary.getSampledTerms().isEmpty());
+		Assert.assertFalse(new HashedVocabulary(8, 0).addSampledTerm("the"));
+	}
+	
+	@Test
+	public void testLongCounterTable() throws InterruptedException {
+		final LongCounterTable counter = new LongCounterTable();
+		final CounterTable<Long> boxedCounter = new CounterTable<Long>();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int t = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						long key = (j*(t + 1)) % 150 + ((j % 3 == 0) ? 1L << 40 : 0L);
+						counter.incrementCount(key);
+						boxedCounter.incrementCount(key);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+		
+		Assert.assertEquals(boxedCounter.getSize(), counter.getSize());
+		for (Map.Entry<Long, Integer> entry : boxedCounter.getCounts().entrySet())
+			Assert.assertEquals(entry.getValue().intValue(), counter.getCount(entry.getKey()));
+		Assert.assertEquals(0, counter.getCount(-1));
+		
+		// Indices match the boxed counter's, including ties
+		counter.removeCountsLessThan(5);
+		boxedCounter.removeCountsLessThan(5);
+		for (int maxSize = 0; maxSize < 20; maxSize += 10) {
+			Map<Long, Integer> boxedIndex = boxedCounter.buildIndex(maxSize);
+			LongLookupTable index = counter.buildIndex(maxSize);
+			Assert.assertEquals(boxedIndex.size(), index.size());
+			for (Map.Entry<Long, Integer> entry : boxedIndex.entrySet())
+				Assert.assertEquals(entry.getValue().intValue(), index.indexOf(entry.getKey()));
+		}
+	}
+	
+	@Test
+	public void testBKTreeNearestNormalized() {
+		String[] strs = { "united states", "united kingdom", "unity", "canada", "china", "chile", "mexico" };
+		BKTree tree = new BKTree();
+		for (String str : strs)
+			tree.add(str);
+		
+		String[] queries = { "unted states", "chin", "mexco", "x", "" };
+		for (String query : queries) {
+			double min = Double.POSITIVE_INFINITY;
+			for (String str : strs)
+				min = Math.min(min, StringUtil.levenshteinDistance(query, str)/((double)(query.length() + str.length())));
+			Assert.assertEquals(min, tree.nearestNormalized(query).getSecond(), .000001);
+		}
+		
+		Assert.assertEquals("chile", tree.nearestNormalized("chile").getFirst());
+	}
+	
+	@Test
+	public void testTokenPrefixIndex() {
+		TokenPrefixIndex index = new TokenPrefixIndex();
+		index.add(new String[] { "new", "york", "city" }, 2);
+		index.add(new String[] { "new", "york" }, 3);
+		index.add(new String[] { "new", "jersey" }, 1);
+		
+		String[] query = { "new", "york", "state" };
+		Assert.assertEquals(1, index.getPrefixedMin(query, 1));
+		Assert.assertEquals(2, index.getPrefixedMin(query, 2));
+		Assert.assertEquals(3, index.getExactMin(query, 2));
+		Assert.assertEquals(-1, index.getExactMin(query, 1));
+		Assert.assertEquals(-1, index.getPrefixedMin(query, 3));
+	}
+	
+	@Test
+	public void testAhoCorasickFindMatches() {
+		AhoCorasick<String> matcher = new AhoCorasick<String>();
+		matcher.add(new String[] { "new", "york" }, "NY");
+		matcher.add(new String[] { "new", "york", "city" }, "NYC");
+		matcher.add(new String[] { "york" }, "York");
+		
+		List<AhoCorasick.Match<String>> matches = matcher.findMatches(new String[] { "in", "new", "york", "city" });
+		Assert.assertEquals(3, matches.size());
+		Assert.assertEquals("NY", matches.get(0).getValue());
+		Assert.assertEquals(1, matches.get(0).getStart());
+		Assert.assertEquals(3, matches.get(0).getEnd());
+		Assert.assertEquals("York", matches.get(1).getValue());
+		Assert.assertEquals(2, matches.get(1).getStart());
+		Assert.assertEquals("NYC", matches.get(2).getValue());
+		Assert.assertEquals(4, matches.get(2).getEnd());
+	}
+	
+	@Test
+	public void testBoundedCache() {
+		BoundedCache<String, Integer> cache = new BoundedCache<String, Integer>(160);
+		for (int i = 0; i < 1000; i++)
+			cache.put(String.valueOf(i), i);
+		
+		Assert.assertTrue(cache.size() <= 160);
+		Assert.assertEquals(999, cache.get("999").intValue());
+		Assert.assertNull(cache.get("0"));
+		Assert.assertEquals(0.5, cache.getHitRate(), .000001);
+	}
+	
+	@Test
+	public void testTreeIndexPath() {
+		//        0
+		//      /   \
+		//     1     2
+		//    / \     \
+		//   3   4     5
+		int[] parents = { -1, 0, 0, 1, 1, 2 };
+		TreeIndex tree = new TreeIndex(parents, 0);
+		
+		Assert.assertTrue(tree.isConnected());
+		Assert.assertEquals(1, tree.getLowestCommonAncestor(3, 4));
+		Assert.assertEquals(0, tree.getLowestCommonAncestor(4, 5));
+		Assert.assertEquals(4, tree.getDistance(3, 5));
+		Assert.assertArrayEquals(new int[] { 3, 1, 0, 2, 5 }, tree.getPath(3, 5));
+		Assert.assertArrayEquals(new int[] { 1, 4 }, tree.getPath(1, 4));
+		
+		int[] cyclicParents = { -1, 2, 1 };
+		Assert.assertFalse(new TreeIndex(cyclicParents, 0).isConnected());
+	}
+	
+	@Test
+	public void testCountMinSketch() throws InterruptedException {
+		final CountMinSketch<String> sketch = new CountMinSketch<String>(0.01);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++)
+						for (int k = 0; k <= j % 5; k++)
+							sketch.increment("item" + j);
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+		
+		// Estimates never undercount, and overcount by at most error*N (with high probability)
+		int total = 4*3000;
+		for (int j = 0; j < 1000; j++) {
+			int count = 4*(j % 5 + 1);
+			int estimate = sketch.estimate("item" + j);
+			Assert.assertTrue(estimate >= count);
+			Assert.assertTrue(estimate - count <= 0.01*total);
+		}
+		
+		Assert.assertTrue(sketch.estimate("missing") <= 0.01*total);
+	}
+	
+	@Test
+	public void testStringLookupTable() {
+		StringLookupTable table = new StringLookupTable();
+		for (int i = 0; i < 1000; i++)
+			table.put("term" + i, i);
+		
+		Assert.assertEquals(1000, table.size());
+		Assert.assertEquals(0, table.indexOf("term0"));
+		Assert.assertEquals(999, table.indexOf("term999"));
+		Assert.assertEquals(-1, table.indexOf("term1000"));
+		Assert.assertEquals("term500", table.reverseGet(500));
+		Assert.assertNull(table.reverseGet(1000));
+		
+		Assert.assertEquals(500, table.put("term500", 1500));
+		Assert.assertEquals(1500, table.indexOf("term500"));
+		Assert.assertEquals(1000, table.size());
+		Assert.assertEquals("term500", table.reverseGet(1500));
+		Assert.assertNull(table.reverseGet(500));
+		Assert.assertFalse(table.reverseContainsKey(500));
+	}
+	
+	@Test
+	public void testLongLookupTable() {
+		LongLookupTable table = new LongLookupTable();
+		for (int i = 0; i < 1000; i++)
+			table.put(((long)i) << 32, i);
+		
+		Assert.assertEquals(1000, table.size());
+		Assert.assertEquals(0, table.indexOf(0L));
+		Assert.assertEquals(999, table.indexOf(999L << 32));
+		Assert.assertEquals(-1, table.indexOf(999L));
+		Assert.assertEquals(500L << 32, table.reverseGet(500));
+		Assert.assertFalse(table.reverseContainsKey(1000));
+		
+		Assert.assertEquals(500, table.put(500L << 32, 1500));
+		Assert.assertEquals(1500, table.indexOf(500L << 32));
+		Assert.assertEquals(1000, table.size());
+		Assert.assertEquals(500L << 32, table.reverseGet(1500));
+		Assert.assertFalse(table.reverseContainsKey(500));
+	}
+	
 	@Test
 	public void testVectorSetRange1() {
 		Vector overwritten = new SparseVector(20, 